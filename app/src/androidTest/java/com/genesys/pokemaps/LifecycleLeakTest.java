@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.runner.lifecycle.ActivityLifecycleMonitorRegistry;
+import android.support.test.runner.lifecycle.Stage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 7:10 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Recreates MapActivity over and over, the way rotating the phone does, and checks that every old
+ * instance can be collected and that neither the thread count nor the heap keeps growing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LifecycleLeakTest {
+
+    private static final int RECREATIONS = 10;
+
+    /**
+     * How many more threads than the baseline we tolerate. Pool threads come and go.
+     */
+    private static final int THREAD_SLACK = 2;
+
+    /**
+     * How much the heap may grow over all recreations, in bytes. A leaked MapActivity holds its
+     * map and views, which is far more than this each time.
+     */
+    private static final long HEAP_SLACK = 4 * 1024 * 1024;
+
+    @Rule
+    public ActivityTestRule<MapActivity> activityRule = new ActivityTestRule<>(MapActivity.class);
+
+    @Test
+    public void recreatingMapActivityDoesNotLeak() throws Exception {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+
+        // Once first, so everything started lazily (the scan service, pools, the map) is
+        // already running when we take the baseline.
+        recreate(instrumentation, activityRule.getActivity());
+        collectGarbage();
+        int baselineThreads = Thread.activeCount();
+        long baselineHeap = usedHeap();
+
+        List<WeakReference<Activity>> oldActivities = new ArrayList<>();
+        for (int i = 0; i < RECREATIONS; i++) {
+            Activity activity = getResumedActivity(instrumentation);
+            oldActivities.add(new WeakReference<>(activity));
+            recreate(instrumentation, activity);
+        }
+        collectGarbage();
+
+        for (WeakReference<Activity> oldActivity : oldActivities) {
+            assertNull("A recreated MapActivity is still reachable", oldActivity.get());
+        }
+        int threads = Thread.activeCount();
+        assertTrue("Thread count grew from " + baselineThreads + " to " + threads,
+                threads <= baselineThreads + THREAD_SLACK);
+        long heapGrowth = usedHeap() - baselineHeap;
+        assertTrue("Heap grew by " + heapGrowth + " bytes", heapGrowth < HEAP_SLACK);
+    }
+
+    private static void recreate(Instrumentation instrumentation, final Activity activity) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.recreate();
+            }
+        });
+        instrumentation.waitForIdleSync();
+    }
+
+    private static Activity getResumedActivity(Instrumentation instrumentation) {
+        final Activity[] resumed = new Activity[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Collection<Activity> activities = ActivityLifecycleMonitorRegistry.getInstance()
+                        .getActivitiesInStage(Stage.RESUMED);
+                resumed[0] = activities.iterator().next();
+            }
+        });
+        return resumed[0];
+    }
+
+    private static void collectGarbage() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            Thread.sleep(200);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -25,9 +25,6 @@ package com.genesys.pokemaps;
 
 public class Constants {
 
-    // Enables debug actions through the app. Mostly things like debug logging.
-    static final boolean DEBUG = true;
-
     // Location settings
     static final int REQUEST_FINE_LOCATION_KEY = 0;
     static boolean locationEnabled = false;
@@ -34,6 +34,7 @@ import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
@@ -41,7 +42,8 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.genesys.pokemaps.helpers.GameManager;
-import com.google.firebase.analytics.FirebaseAnalytics;
+import com.genesys.pokemaps.helpers.Logger;
+import com.genesys.pokemaps.helpers.StartupTracer;
 
 /**
  * Hand crafted by Primed with love for the Pokemaps project.
@@ -51,6 +53,8 @@ import com.google.firebase.analytics.FirebaseAnalytics;
 
 public class LoginActivity extends AppCompatActivity implements GameManager.LoginListener {
 
+    private static final Logger LOG = Logger.get("LoginActivity");
+
     // @layout/activity_login.xml views.
     private CoordinatorLayout loginViewGroup;
     private LinearLayout loginContainer;
@@ -63,9 +67,6 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
     // Pokemon Go components
     private GameManager gameManager;
 
-    // Firebase stuff
-    protected FirebaseAnalytics mFirebaseAnalytics;
-
     // Other objects
     private SharedPreferences preferences;
 
@@ -73,14 +74,19 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTracer tracer = StartupTracer.getInstance();
+        StartupTracer.Section onCreateSection = tracer.begin("LoginActivity.onCreate");
         super.onCreate(savedInstanceState);
+        StartupTracer.Section section = tracer.begin("Inflate login layout");
         setContentView(R.layout.activity_login);
+        section.end();
 
-        // Start Firebase analytics.
-        mFirebaseAnalytics = FirebaseAnalytics.getInstance(this);
+        // Firebase analytics starts once we're idle. See PokemapsApplication.
 
         // Get our preferences
+        section = tracer.begin("Preferences");
         preferences = getSharedPreferences(getString(R.string.preference_file_key), Context.MODE_PRIVATE);
+        section.end();
 
         // Get our views from our layout.
         loginViewGroup = (CoordinatorLayout) findViewById(R.id.login_viewgroup);
@@ -109,7 +115,9 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
             checkForLocationPermission();
         }
 
+        section = tracer.begin("GameManager");
         setupGameManager();
+        section.end();
 
         // Launch MapActivity automatically if username and password are stored.
         final String usernameTemp = preferences.getString(getString(R.string.username_preference_key), null);
@@ -122,6 +130,9 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
             if (gameManager != null) {
                 gameManager.loginPTC(usernameTemp, passwordTemp);
             }
+            // The map is the first screen the user can use; it marks us interactive.
+        } else {
+            markInteractiveOnFirstDraw();
         }
 
         // Set our login click listener
@@ -151,6 +162,7 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
                 startActivity(signUpIntent);
             }
         });
+        onCreateSection.end();
     }
 
     @Override
@@ -173,6 +185,21 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
         gameManager.setOnLoginCompletedListener(this);
     }
 
+    /**
+     * Tells the startup tracer we're interactive just before the login form is first drawn.
+     */
+    private void markInteractiveOnFirstDraw() {
+        final View root = loginViewGroup;
+        root.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                root.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTracer.getInstance().markInteractive();
+                return true;
+            }
+        });
+    }
+
     private void setLoginProgressBarVisible(boolean visible) {
         if (visible) {
             if (loginContainer != null) loginContainer.setVisibility(View.GONE);
@@ -252,7 +279,7 @@ public class LoginActivity extends AppCompatActivity implements GameManager.Logi
 
     @Override
     public void onLoginCompleted(final GameManager.LoginResult loginResult) {
-        Utils.debug(this, "Login completed in LoginActivity.");
+        LOG.d("Login completed in LoginActivity.");
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -18,31 +18,50 @@
 package com.genesys.pokemaps;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.location.Location;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.FileProvider;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
-import android.util.Log;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.GridLayout;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.genesys.pokemaps.helpers.CoverageTileProvider;
+import com.genesys.pokemaps.helpers.GameCallback;
+import com.genesys.pokemaps.helpers.GameEvent;
+import com.genesys.pokemaps.helpers.GameEventBus;
 import com.genesys.pokemaps.helpers.GameManager;
+import com.genesys.pokemaps.helpers.LanServer;
 import com.genesys.pokemaps.helpers.LocationManager;
 import com.genesys.pokemaps.helpers.LocationManager.Listener;
+import com.genesys.pokemaps.helpers.Logger;
+import com.genesys.pokemaps.helpers.NearbyTracker;
+import com.genesys.pokemaps.helpers.RoutePlanner;
+import com.genesys.pokemaps.helpers.StartupTracer;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
@@ -51,29 +70,40 @@ import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.pokegoapi.api.map.fort.PokestopLootResult;
 import com.pokegoapi.api.map.pokemon.NearbyPokemon;
 import com.pokegoapi.api.pokemon.PokemonMetaRegistry;
-import com.pokegoapi.exceptions.AsyncPokemonGoException;
-import com.pokegoapi.exceptions.LoginFailedException;
-import com.pokegoapi.exceptions.NoSuchItemException;
-import com.pokegoapi.exceptions.RemoteServerException;
 import com.pokegoapi.util.PokeDictionary;
 
+import java.io.File;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
+
+import POGOProtos.Enums.PokemonIdOuterClass;
 
 public class MapActivity extends AppCompatActivity implements
         OnMapReadyCallback,
         Listener,
-        GameManager.LoginListener {
+        GameManager.LoginListener,
+        GameEventBus.Listener {
 
     /**
      * The name of this class for use in debugging purposes.
      */
     private static final String TAG = "MapActivity";
+    private static final Logger LOG = Logger.get(TAG);
     /**
      * Radius in which our current position can access things in meters
      * This is defined by the Pokemon GO settings; this is simply
@@ -88,9 +118,25 @@ public class MapActivity extends AppCompatActivity implements
     private static final int DEFAULT_ZOOM = 17;
 
     /**
-     * The rate at which game components update in milliseconds.
+     * The shortest time between two game event snack bars in milliseconds.
+     */
+    private static final long SNACK_BAR_INTERVAL = 2500;
+
+    /**
+     * How sure we have to be of a nearby pokemon's position before we draw it, from 0 to 1.
+     */
+    private static final double MIN_ESTIMATE_CONFIDENCE = 0.2;
+
+    /**
+     * Where exports go in our cache directory. The only place our FileProvider shares from.
      */
-    private static final long GAME_REFRESH_RATE = 3000;
+    private static final String EXPORT_DIRECTORY = "exports";
+
+    /**
+     * Matches the provider in our manifest.
+     */
+    private static final String FILE_PROVIDER_AUTHORITY =
+            BuildConfig.APPLICATION_ID + ".fileprovider";
 
     /**
      * Our Google Map object. We can use this to manipulate various map options.
@@ -144,6 +190,26 @@ public class MapActivity extends AppCompatActivity implements
      */
     private Circle scanCircle;
 
+    /**
+     * The line showing our planned pokestop route, if we've planned one.
+     */
+    private Polyline routePolyline;
+
+    /**
+     * The circles showing where we think nearby pokemon are, by encounter id.
+     */
+    private final Map<Long, Circle> estimateCircles = new HashMap<>();
+
+    /**
+     * Draws where we've scanned and how long ago.
+     */
+    private CoverageTileProvider coverageTileProvider;
+
+    /**
+     * The map layer showing coverageTileProvider's tiles.
+     */
+    private TileOverlay coverageOverlay;
+
     /**
      * Stays true until the first time it's been accessed, the becomes false. This creates a branch
      * that allows only a single passthrough.
@@ -160,6 +226,57 @@ public class MapActivity extends AppCompatActivity implements
      */
     private Vibrator vibrator;
 
+    /**
+     * The nearby pokemon currently shown in our bottom sheet.
+     */
+    private List<PokemonIdOuterClass.PokemonId> shownNearbyPokemon;
+
+    /**
+     * When we last showed a throttled snack bar, in SystemClock.uptimeMillis() time.
+     */
+    private long lastSnackBarTime;
+
+    /**
+     * The newest snack bar message that's waiting for SNACK_BAR_INTERVAL to pass, if any.
+     */
+    private String pendingSnackBar;
+
+    /**
+     * The scan service while we're bound to it, for exporting its history. Null otherwise.
+     */
+    private ScanService scanService;
+
+    /**
+     * Our connection to ScanService. Being bound is what tells it someone's looking.
+     */
+    private final ServiceConnection scanServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            LOG.d("Bound to ScanService.");
+            scanService = ((ScanService.ScanBinder) service).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            LOG.d("ScanService disconnected.");
+            scanService = null;
+        }
+    };
+
+    /**
+     * Shows pendingSnackBar once it's allowed.
+     */
+    private final Runnable showPendingSnackBar = new Runnable() {
+        @Override
+        public void run() {
+            if (pendingSnackBar != null) {
+                lastSnackBarTime = SystemClock.uptimeMillis();
+                showSnackBar(pendingSnackBar);
+                pendingSnackBar = null;
+            }
+        }
+    };
+
     /* Overridden parent methods */
 
     /**
@@ -170,7 +287,10 @@ public class MapActivity extends AppCompatActivity implements
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Inflating the map fragment is most of the cost of opening this screen.
+        StartupTracer.Section section = StartupTracer.getInstance().begin("Inflate map layout");
         setContentView(R.layout.activity_map);
+        section.end();
 
         // Here's where we set up our toolbar. This subsequently calls onCreateOptionsMenu().
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -209,13 +329,14 @@ public class MapActivity extends AppCompatActivity implements
                 if (mMap != null) {
                     mMap.animateCamera(CameraUpdateFactory.zoomOut());
                 }
-                gameManager.farmXP();
+                gameManager.farmXPAsync();
             }
         });
 
         setupLocationManager();
 
-        startPokemoonLoop();
+        // Scanning happens in ScanService so it keeps going while we're in the background.
+        startService(new Intent(this, ScanService.class));
     }
 
     /**
@@ -223,187 +344,248 @@ public class MapActivity extends AppCompatActivity implements
      */
     private void setupGameManager() {
         gameManager = GameManager.getInstance(this);
-        gameManager.setOnLoginCompletedListener(new GameManager.LoginListener() {
-            @Override
-            public void onLoginCompleted(GameManager.LoginResult loginResult) {
-                // TODO: Do something when login is completed.
-                Utils.debug(this, "Login completed on MapActivity.");
-            }
-        });
+        // GameManager only holds on to us weakly, so this can't keep us around after we're gone.
+        gameManager.setOnLoginCompletedListener(this);
     }
 
     /**
-     * Gets our location manager instance and registers this object as a listener.
+     * Gets our location manager instance. We register as a listener while started.
      */
     private void setupLocationManager() {
         locationManager = LocationManager.getInstance(this);
-        locationManager.register(this);
     }
 
-    public void startPokemoonLoop() {
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (gameManager != null && (location != null)) {
-                    long startTime = System.currentTimeMillis();
-                    try {
-                        // Updates our game location to match our real location.
-                        gameManager.setPlayerLocation(location);
-
-                        // Update our pokestops and add a marker on our map at its location.
-                        // TODO: Add a map marker for pokestops.
-                        // gameManager.updatePokestops();
-
-                        // Cycles through our pokestops and loots them if the option is available.
-                        for (PokestopLootResult lootResult : gameManager.lootPokestops()) {
-                            switch (lootResult.getResult()) {
-                                case SUCCESS:
-                                    showSnackBar("Pokestop was successfully looted. Gained "
-                                            + lootResult.getExperience() + " XP");
-                                    Log.i(TAG, "Pokestop was successfully looted. Gained"
-                                            + lootResult.getExperience() + " XP and "
-                                            + lootResult.getItemsAwarded().size() + " items.");
-                                    Utils.vibrate(Constants.POKESTOP_VIBRATION_PATTERN, vibrator);
-                                    break;
-                                case INVENTORY_FULL:
-                                    String invMsg = "Inventory too full to loot Pokestop";
-                                    showSnackBar(invMsg);
-                                    Log.i(TAG, invMsg);
-                                    break;
-                                case IN_COOLDOWN_PERIOD:
-                                    String coolMsg = "Pokestop is currently in cooldown";
-                                    showSnackBar(coolMsg);
-                                    Log.i(TAG, coolMsg);
-                                    break;
-                                default:
-                                    String errMsg = "Couldn't loot pokestop due to error " + lootResult.getResult().name();
-                                    showSnackBar(errMsg);
-                                    Log.i(TAG, errMsg);
-                            }
-                        }
+    /**
+     * Called on the UI thread with everything that happened in the game since the last frame.
+     * Loots and catches are summed up into a single snack bar so a busy tick doesn't bury the
+     * user in messages.
+     *
+     * @param events The batch of events, oldest first.
+     */
+    @Override
+    public void onGameEvents(List<GameEvent> events) {
+        int looted = 0;
+        int lootXp = 0;
+        boolean inventoryFull = false;
+        boolean caught = false;
+        List<String> messages = new ArrayList<>();
+
+        for (GameEvent event : events) {
+            switch (event.getType()) {
+                case NEARBY_UPDATED:
+                    GameEvent.Nearby nearby = (GameEvent.Nearby) event;
+                    showNearbyPokemon(nearby.getNearbyPokemon());
+                    showNearbyEstimates(nearby.getEstimates());
+                    break;
+                case LOOT_RESULT:
+                    PokestopLootResult lootResult = ((GameEvent.LootResult) event).getLootResult();
+                    switch (lootResult.getResult()) {
+                        case SUCCESS:
+                            looted++;
+                            lootXp += lootResult.getExperience();
+                            LOG.i("Pokestop was successfully looted. Gained {} XP and {} items.",
+                                    lootResult.getExperience(), lootResult.getItemsAwarded().size());
+                            break;
+                        case INVENTORY_FULL:
+                            inventoryFull = true;
+                            break;
+                        case IN_COOLDOWN_PERIOD:
+                            LOG.d("Pokestop is currently in cooldown");
+                            break;
+                        default:
+                            String errMsg = "Couldn't loot pokestop due to error " + lootResult.getResult().name();
+                            messages.add(errMsg);
+                            LOG.i(errMsg);
+                    }
+                    break;
+                case CATCH_RESULT:
+                    GameManager.Catch catchResult = ((GameEvent.CatchResult) event).getCatch();
+                    String pokemon = PokeDictionary.getDisplayName(
+                            catchResult.getCatchablePokemon().getPokemonId().getNumber(),
+                            Locale.ENGLISH);
+                    String message;
+                    switch (catchResult.getCatchResult().getStatus()) {
+                        case CATCH_SUCCESS:
+                            message = pokemon + " successfully captured";
+                            caught = true;
+                            break;
+                        case CATCH_FLEE:
+                            message = pokemon + " fled";
+                            break;
+                        case CATCH_MISSED:
+                            message = pokemon + " missed";
+                            break;
+                        default:
+                            message = "Unable to catch " + pokemon;
+                    }
+                    messages.add(message);
+                    LOG.i(message);
+                    break;
+                case ERROR:
+                    messages.add(((GameEvent.Error) event).getMessage());
+                    break;
+                default:
+                    break;
+            }
+        }
 
-                        final List<NearbyPokemon> nearbyPokemon = gameManager.getNearbyPokemon();
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                for (int i = 0; i < nearbyContainer.getChildCount(); i++) {
-                                    View child = nearbyContainer.getChildAt(i);
-                                    if (child.getId() != R.id.no_nearby_text_view && child.getParent() == nearbyContainer) {
-                                        nearbyContainer.removeViewAt(i--);
-                                    }
-                                }
+        if (looted == 1) {
+            messages.add(0, "Pokestop was successfully looted. Gained " + lootXp + " XP");
+        } else if (looted > 1) {
+            messages.add(0, looted + " pokestops were successfully looted. Gained " + lootXp + " XP");
+        }
+        if (inventoryFull) {
+            String invMsg = "Bag full. Recycling surplus items to keep looting";
+            messages.add(invMsg);
+            LOG.i(invMsg);
+        }
 
-                                if (nearbyPokemon.size() > 0) {
-                                    // There are nearby Pokemon!
-                                    // Set our TextView visibility to gone.
-                                    nearbyTextView.setVisibility(View.GONE);
-                                    for (NearbyPokemon pokemon : nearbyPokemon) {
-                                        Log.i(TAG, pokemon.getPokemonId().name() + " is nearby.");
-
-                                        ViewGroup nearbyPokemonLayout = (ViewGroup) getLayoutInflater()
-                                                .inflate(R.layout.nearby_pokemon, null);
-
-                                        ImageView pokemonImage = (ImageView) nearbyPokemonLayout
-                                                .getChildAt(1);
-                                        ImageView pokemonBackground = (ImageView) nearbyPokemonLayout
-                                                .getChildAt(0);
-
-                                        int id = getResources().getIdentifier(pokemon.getPokemonId().name().toLowerCase(),
-                                                "drawable",
-                                                getPackageName());
-                                        pokemonImage.setImageResource(id);
-
-                                        int backgroundColor;
-                                        switch (PokemonMetaRegistry.getMeta(pokemon.getPokemonId()).getPokemonClass()) {
-                                            case VERY_COMMON:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.veryCommonColor);
-                                                break;
-                                            case COMMON:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.commonColor);
-                                                break;
-                                            case UNCOMMON:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.uncommonColor);
-                                                break;
-                                            case RARE:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.rareColor);
-                                                break;
-                                            case VERY_RARE:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.veryRareColor);
-                                                break;
-                                            case EPIC:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.epicColor);
-                                                break;
-                                            case LEGENDARY:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.legendaryColor);
-                                                break;
-                                            case MYTHIC:
-                                                backgroundColor = Utils.getColor(MapActivity.this, R.color.mythicColor);
-                                                break;
-                                            default:
-                                                backgroundColor = Color.WHITE;
-                                        }
-
-                                        pokemonBackground.setColorFilter(backgroundColor);
-
-                                        nearbyContainer.addView(nearbyPokemonLayout);
-                                    }
-                                } else {
-                                    nearbyTextView.setVisibility(View.VISIBLE);
-                                }
-                            }
-                        });
+        // One buzz per batch, no matter how much happened.
+        if (caught) {
+            Utils.vibrate(Constants.POKEMON_VIBRATION_PATTERN, vibrator);
+        } else if (looted > 0) {
+            Utils.vibrate(Constants.POKESTOP_VIBRATION_PATTERN, vibrator);
+        }
 
-                        // Update our pokemon and add a marker on the map at its location.
-                        // TODO: Add a map marker for catchable pokemon.
-                        //gameManager.updateCatchablePokemon();
-
-                        GameManager.Catch catchResult = gameManager.catchPokemon();
-                        if (catchResult != null) {
-                            String pokemon = PokeDictionary.getDisplayName(
-                                    catchResult.getCatchablePokemon().getPokemonId().getNumber(),
-                                    Locale.ENGLISH);
-                            String message;
-                            switch (catchResult.getCatchResult().getStatus()) {
-                                case CATCH_SUCCESS:
-                                    message = pokemon + " successfully captured";
-                                    Utils.vibrate(Constants.POKEMON_VIBRATION_PATTERN, vibrator);
-                                    break;
-                                case CATCH_FLEE:
-                                    message = pokemon + " fled";
-                                    break;
-                                case CATCH_MISSED:
-                                    message = pokemon + " missed";
-                                    break;
-                                default:
-                                    message = "Unable to catch " + pokemon;
-                            }
-                            showSnackBar(message);
-                            Log.i(TAG, message);
-                        }
-
-                        gameManager.updateGyms();
-
-                    } catch (LoginFailedException e) {
-                        showSnackBar("Login failed. Credentials changed");
-                    } catch (RemoteServerException e) {
-                        showSnackBar("Login failed. Servers may be down");
-                    } catch (NoSuchItemException e) {
-                        showSnackBar("Not enough pokeballs to catch pokemon");
-                    } catch (AsyncPokemonGoException e) {
-                        String username = preferences.getString(getString(R.string.username_preference_key), null);
-                        String password = preferences.getString(getString(R.string.password_preference_key), null);
-                        if (username != null || password != null) {
-                            gameManager.loginPTC(username, password);
-                        }
-                        e.printStackTrace();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    double scanTimeSeconds = (double) (System.currentTimeMillis() - startTime) / 1000;
-                    Log.i(TAG, "World scanning completed in " + scanTimeSeconds + " seconds.");
+        if (!messages.isEmpty()) {
+            showThrottledSnackBar(TextUtils.join(". ", messages));
+        }
+
+        refreshCoverage();
+    }
+
+    /**
+     * Has the map refetch coverage tiles if any have changed. Unchanged tiles come straight out
+     * of the provider's cache, so this is cheap.
+     */
+    private void refreshCoverage() {
+        if (coverageOverlay != null && coverageTileProvider.takeChanged()) {
+            coverageOverlay.clearTileCache();
+        }
+    }
+
+    /**
+     * Replaces the nearby pokemon shown in our bottom sheet. Does nothing if the same pokemon
+     * are already shown, which is most ticks.
+     *
+     * @param nearbyPokemon The pokemon to show.
+     */
+    private void showNearbyPokemon(List<NearbyPokemon> nearbyPokemon) {
+        List<PokemonIdOuterClass.PokemonId> ids = new ArrayList<>(nearbyPokemon.size());
+        for (NearbyPokemon pokemon : nearbyPokemon) {
+            ids.add(pokemon.getPokemonId());
+        }
+        if (ids.equals(shownNearbyPokemon)) {
+            return;
+        }
+        shownNearbyPokemon = ids;
+
+        for (int i = 0; i < nearbyContainer.getChildCount(); i++) {
+            View child = nearbyContainer.getChildAt(i);
+            if (child.getId() != R.id.no_nearby_text_view && child.getParent() == nearbyContainer) {
+                nearbyContainer.removeViewAt(i--);
+            }
+        }
+
+        if (nearbyPokemon.size() > 0) {
+            // There are nearby Pokemon!
+            // Set our TextView visibility to gone.
+            nearbyTextView.setVisibility(View.GONE);
+            for (NearbyPokemon pokemon : nearbyPokemon) {
+                LOG.d("{} is nearby.", pokemon.getPokemonId());
+
+                ViewGroup nearbyPokemonLayout = (ViewGroup) getLayoutInflater()
+                        .inflate(R.layout.nearby_pokemon, null);
+
+                ImageView pokemonImage = (ImageView) nearbyPokemonLayout
+                        .getChildAt(1);
+                ImageView pokemonBackground = (ImageView) nearbyPokemonLayout
+                        .getChildAt(0);
+
+                int id = getResources().getIdentifier(pokemon.getPokemonId().name().toLowerCase(),
+                        "drawable",
+                        getPackageName());
+                pokemonImage.setImageResource(id);
+
+                int backgroundColor;
+                switch (PokemonMetaRegistry.getMeta(pokemon.getPokemonId()).getPokemonClass()) {
+                    case VERY_COMMON:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.veryCommonColor);
+                        break;
+                    case COMMON:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.commonColor);
+                        break;
+                    case UNCOMMON:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.uncommonColor);
+                        break;
+                    case RARE:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.rareColor);
+                        break;
+                    case VERY_RARE:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.veryRareColor);
+                        break;
+                    case EPIC:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.epicColor);
+                        break;
+                    case LEGENDARY:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.legendaryColor);
+                        break;
+                    case MYTHIC:
+                        backgroundColor = Utils.getColor(MapActivity.this, R.color.mythicColor);
+                        break;
+                    default:
+                        backgroundColor = Color.WHITE;
                 }
+
+                pokemonBackground.setColorFilter(backgroundColor);
+
+                nearbyContainer.addView(nearbyPokemonLayout);
             }
-        }, 0, GAME_REFRESH_RATE);
+        } else {
+            nearbyTextView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Draws a circle where we think each nearby pokemon is, sized by how far off we might be.
+     * Circles are moved rather than redrawn, and ones for pokemon that have gone are removed.
+     *
+     * @param estimates The latest estimates.
+     */
+    private void showNearbyEstimates(List<NearbyTracker.Estimate> estimates) {
+        if (mMap == null) {
+            return;
+        }
+        Set<Long> shown = new HashSet<>();
+        for (NearbyTracker.Estimate estimate : estimates) {
+            if (estimate.getConfidence() < MIN_ESTIMATE_CONFIDENCE) {
+                continue;
+            }
+            shown.add(estimate.getEncounterId());
+            LatLng center = new LatLng(estimate.getLatitude(), estimate.getLongitude());
+            Circle circle = estimateCircles.get(estimate.getEncounterId());
+            if (circle == null) {
+                int color = Utils.getColor(this, R.color.colorAccent);
+                circle = mMap.addCircle(new CircleOptions()
+                        .center(center)
+                        .radius(estimate.getErrorRadius())
+                        .strokeWidth(2)
+                        .strokeColor(color)
+                        .fillColor(Utils.getColorWithAlpha(color, 0.3f)));
+                estimateCircles.put(estimate.getEncounterId(), circle);
+            } else {
+                circle.setCenter(center);
+                circle.setRadius(estimate.getErrorRadius());
+            }
+        }
+        for (Iterator<Map.Entry<Long, Circle>> it = estimateCircles.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<Long, Circle> entry = it.next();
+            if (!shown.contains(entry.getKey())) {
+                entry.getValue().remove();
+                it.remove();
+            }
+        }
     }
 
     /**
@@ -416,6 +598,12 @@ public class MapActivity extends AppCompatActivity implements
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_map, menu);
+        menu.findItem(R.id.action_spawn_feed).setChecked(
+                preferences.getBoolean(getString(R.string.spawn_feed_preference_key), false));
+        menu.findItem(R.id.action_host_team_scan).setChecked(
+                preferences.getBoolean(getString(R.string.team_scan_host_preference_key), false));
+        menu.findItem(R.id.action_join_team_scan).setChecked(!preferences.getString(
+                getString(R.string.team_scan_join_preference_key), "").isEmpty());
         return true;
     }
 
@@ -435,9 +623,38 @@ public class MapActivity extends AppCompatActivity implements
 
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_spawn_feed) {
+            // ScanService hears about this and starts or stops the feed.
+            item.setChecked(!item.isChecked());
+            preferences.edit()
+                    .putBoolean(getString(R.string.spawn_feed_preference_key), item.isChecked())
+                    .apply();
+            return true;
+        } else if (id == R.id.action_host_team_scan) {
+            if (item.isChecked()) {
+                setTeamScan(false, "");
+            } else {
+                hostTeamScan();
+            }
+            return true;
+        } else if (id == R.id.action_join_team_scan) {
+            if (item.isChecked()) {
+                setTeamScan(false, "");
+            } else {
+                joinTeamScan();
+            }
+            return true;
+        } else if (id == R.id.action_plan_route) {
+            planRoute();
+            return true;
+        } else if (id == R.id.action_export_history) {
+            exportScanHistory();
+            return true;
         } else if (id == R.id.action_sign_out) {
             // Clear our login data and all preferences.
             preferences.edit().clear().commit();
+            // Stop scanning with an account we're no longer signed in to.
+            stopService(new Intent(this, ScanService.class));
             // Start the main Login activity.
             Intent loginIntent = new Intent(this, LoginActivity.class);
             startActivity(loginIntent);
@@ -454,7 +671,10 @@ public class MapActivity extends AppCompatActivity implements
      */
     @Override
     public void onStart() {
-        locationManager.onStart();
+        locationManager.register(this);
+        gameManager.getEventBus().register(this);
+        // Binding tells ScanService someone is looking, so it does the work only we need.
+        bindService(new Intent(this, ScanService.class), scanServiceConnection, BIND_AUTO_CREATE);
         super.onStart();
     }
 
@@ -463,10 +683,22 @@ public class MapActivity extends AppCompatActivity implements
      */
     @Override
     public void onStop() {
-        locationManager.onStop();
+        locationManager.unregister(this);
+        gameManager.getEventBus().unregister(this);
+        unbindService(scanServiceConnection);
+        mapViewGroup.removeCallbacks(showPendingSnackBar);
+        pendingSnackBar = null;
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (coverageTileProvider != null) {
+            coverageTileProvider.release();
+        }
+        super.onDestroy();
+    }
+
     /* Overridden methods from OnMapReadyCallback */
 
     /**
@@ -490,6 +722,17 @@ public class MapActivity extends AppCompatActivity implements
         mMap.getUiSettings().setScrollGesturesEnabled(false);
         mMap.getUiSettings().setZoomGesturesEnabled(false);
         mMap.getUiSettings().setCompassEnabled(false);
+
+        // Shade everywhere we've scanned, under everything else.
+        coverageTileProvider = new CoverageTileProvider(gameManager.getCoverageGrid(),
+                gameManager.getClock(), Utils.getColor(this, R.color.colorPrimaryDark));
+        coverageOverlay = mMap.addTileOverlay(new TileOverlayOptions()
+                .tileProvider(coverageTileProvider)
+                .fadeIn(false)
+                .zIndex(-1));
+
+        // After a saved login, the map is the first thing the user can use.
+        StartupTracer.getInstance().markInteractive();
     }
 
     /**
@@ -532,6 +775,184 @@ public class MapActivity extends AppCompatActivity implements
                 .fillColor(Utils.getColorWithAlpha(Utils.getColor(this, R.color.colorPrimary), 0.3f)));
     }
 
+    /**
+     * Points the camera at where we last scanned while we wait for our first location, since
+     * that's where GameManager's warm-up scan is looking. The first fix takes over as usual.
+     */
+    private void showLastScannedPosition() {
+        LatLng lastPosition = gameManager.getLastScannedPosition();
+        if (mMap != null && firstLocationFlag && lastPosition != null) {
+            mMap.moveCamera(CameraUpdateFactory.newCameraPosition(
+                    new CameraPosition.Builder(mMap.getCameraPosition())
+                            .target(lastPosition)
+                            .zoom(currentZoom)
+                            .build()));
+        }
+    }
+
+    /**
+     * Plans a walking loop through the pokestops we've found so far and draws it on the map.
+     */
+    public void planRoute() {
+        gameManager.planRouteAsync(RoutePlanner.TravelMode.WALKING,
+                new GameCallback<RoutePlanner.Route>() {
+                    @Override
+                    public void onSuccess(final RoutePlanner.Route route) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                showRoute(route);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                showSnackBar("Unable to plan a route");
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Writes the scan history to a CSV file and offers to share it, so it can be looked at off
+     * the device.
+     */
+    public void exportScanHistory() {
+        if (scanService == null) {
+            showSnackBar(getString(R.string.no_scan_history_text));
+            return;
+        }
+        scanService.exportScanHistoryAsync(new File(getCacheDir(), EXPORT_DIRECTORY),
+                new GameCallback<File>() {
+                    @Override
+                    public void onSuccess(final File file) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (file == null) {
+                                    showSnackBar(getString(R.string.no_scan_history_text));
+                                } else {
+                                    shareExport(file);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        LOG.w(e, "Couldn't export the scan history");
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                showSnackBar(getString(R.string.export_failed_text));
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Hands an exported file to whatever app the player picks.
+     *
+     * @param file The file, somewhere under EXPORT_DIRECTORY in our cache.
+     */
+    private void shareExport(File file) {
+        Uri uri = FileProvider.getUriForFile(this, FILE_PROVIDER_AUTHORITY, file);
+        Intent share = new Intent(Intent.ACTION_SEND)
+                .setType("text/csv")
+                .putExtra(Intent.EXTRA_STREAM, uri)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(share, getString(R.string.export_history_chooser)));
+    }
+
+    /**
+     * Replaces the route drawn on the map with the given one.
+     *
+     * @param route The route to draw.
+     */
+    public void showRoute(RoutePlanner.Route route) {
+        if (mMap == null) return;
+        if (route == null || route.getPoints().isEmpty()) {
+            showSnackBar("Not enough pokestops found to plan a route");
+            return;
+        }
+
+        if (routePolyline != null) {
+            routePolyline.remove();
+        }
+        routePolyline = mMap.addPolyline(new PolylineOptions()
+                .addAll(route.getPoints())
+                .width(6)
+                .color(Utils.getColor(this, R.color.colorAccent)));
+
+        showSnackBar(String.format(Locale.ENGLISH, "Route planned: %d pokestops, %.0f loots per hour",
+                route.getPoints().size() - 1, route.getLootsPerHour()));
+    }
+
+    /**
+     * Hosts a team scan of the area around us, and tells the player the address teammates should
+     * join at.
+     */
+    private void hostTeamScan() {
+        InetAddress address = null;
+        try {
+            address = LanServer.findLanAddress();
+        } catch (SocketException e) {
+            LOG.w(e, "Couldn't list the network interfaces");
+        }
+        if (address == null) {
+            showSnackBar(getString(R.string.no_lan_text));
+            return;
+        }
+        setTeamScan(true, "");
+        showSnackBar(getString(R.string.hosting_team_scan_text, address.getHostAddress()));
+    }
+
+    /**
+     * Asks for the address of a teammate hosting a team scan, and joins it.
+     */
+    private void joinTeamScan() {
+        final EditText hostEditText = new EditText(this);
+        hostEditText.setHint(R.string.join_team_scan_hint);
+        hostEditText.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        hostEditText.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_join_team_scan)
+                .setView(hostEditText)
+                .setPositiveButton(R.string.join_team_scan_button,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                String host = hostEditText.getText().toString().trim();
+                                if (!host.isEmpty()) {
+                                    setTeamScan(false, host);
+                                }
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Saves how we take part in a team scan. ScanService hears about it and starts or stops
+     * scanning as part of the team to match.
+     *
+     * @param host Whether we host one.
+     * @param join The address of the teammate hosting the one we join, or empty for none.
+     */
+    private void setTeamScan(boolean host, String join) {
+        preferences.edit()
+                .putBoolean(getString(R.string.team_scan_host_preference_key), host)
+                .putString(getString(R.string.team_scan_join_preference_key), join)
+                .apply();
+        supportInvalidateOptionsMenu();
+    }
+
     /**
      * Handy method that shows a snack bar.
      *
@@ -541,6 +962,26 @@ public class MapActivity extends AppCompatActivity implements
         Snackbar.make(mapViewGroup, msg, Snackbar.LENGTH_LONG).show();
     }
 
+    /**
+     * Shows a snack bar, but no more than one every SNACK_BAR_INTERVAL. Messages that arrive too
+     * soon replace each other and only the newest is shown once the interval is up. Must be
+     * called on the UI thread.
+     *
+     * @param msg The message that is displayed in the snack bar.
+     */
+    private void showThrottledSnackBar(String msg) {
+        long wait = lastSnackBarTime + SNACK_BAR_INTERVAL - SystemClock.uptimeMillis();
+        if (wait <= 0 && pendingSnackBar == null) {
+            lastSnackBarTime = SystemClock.uptimeMillis();
+            showSnackBar(msg);
+        } else {
+            if (pendingSnackBar == null) {
+                mapViewGroup.postDelayed(showPendingSnackBar, Math.max(wait, 0));
+            }
+            pendingSnackBar = msg;
+        }
+    }
+
     /**
      * This method is called every time we receive a location update from our location manager.
      *
@@ -565,7 +1006,9 @@ public class MapActivity extends AppCompatActivity implements
             updateCameraLocation();
         }
 
-        // Utils.debug(this, "Location updated! " + position.latitude + ", " + position.longitude);
+        if (LOG.isLoggable(Logger.VERBOSE)) {
+            LOG.v("Location updated! {}, {}", position.latitude, position.longitude);
+        }
     }
 
     /**
@@ -574,7 +1017,17 @@ public class MapActivity extends AppCompatActivity implements
      * @param loginResult The login result.
      */
     @Override
-    public void onLoginCompleted(GameManager.LoginResult loginResult) {
-        showSnackBar(loginResult.getMessage());
+    public void onLoginCompleted(final GameManager.LoginResult loginResult) {
+        LOG.d("Login completed on MapActivity.");
+        // Logins finish on a game executor thread.
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                showSnackBar(loginResult.getMessage());
+                if (loginResult.getResult() == GameManager.Result.SUCCESS) {
+                    showLastScannedPosition();
+                }
+            }
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import android.content.Context;
+import android.support.multidex.MultiDexApplication;
+
+import com.genesys.pokemaps.helpers.StartupTracer;
+import com.google.android.gms.maps.MapsInitializer;
+import com.google.firebase.analytics.FirebaseAnalytics;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 9:10 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Sets the app up. Only what the first screen needs happens here; analytics and the maps
+ * warm-up wait until the main thread goes idle. Crash reporting is set up by Firebase's own init
+ * provider before we get here, and stays there: messaging needs Firebase ready as soon as the
+ * process starts, even when it starts for a push rather than for us.
+ */
+public class PokemapsApplication extends MultiDexApplication {
+
+    @Override
+    protected void attachBaseContext(Context base) {
+        StartupTracer.Section section = StartupTracer.getInstance().begin("MultiDex");
+        super.attachBaseContext(base);
+        section.end();
+    }
+
+    @Override
+    public void onCreate() {
+        StartupTracer tracer = StartupTracer.getInstance();
+        StartupTracer.Section section = tracer.begin("Application.onCreate");
+        super.onCreate();
+
+        final Context context = this;
+        tracer.defer("Analytics", new Runnable() {
+            @Override
+            public void run() {
+                FirebaseAnalytics.getInstance(context);
+            }
+        });
+        tracer.defer("Maps warm-up", new Runnable() {
+            @Override
+            public void run() {
+                // Loads the maps code and resources now, so MapActivity's map shows up sooner.
+                MapsInitializer.initialize(context);
+            }
+        });
+        section.end();
+    }
+}
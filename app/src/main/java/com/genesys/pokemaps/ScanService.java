@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+
+import com.genesys.pokemaps.helpers.Clock;
+import com.genesys.pokemaps.helpers.GameCallback;
+import com.genesys.pokemaps.helpers.GameEvent;
+import com.genesys.pokemaps.helpers.GameExecutor;
+import com.genesys.pokemaps.helpers.GameManager;
+import com.genesys.pokemaps.helpers.LanServer;
+import com.genesys.pokemaps.helpers.LocationManager;
+import com.genesys.pokemaps.helpers.Logger;
+import com.genesys.pokemaps.helpers.ScanHistory;
+import com.genesys.pokemaps.helpers.ScanLeaseClient;
+import com.genesys.pokemaps.helpers.ScanLedger;
+import com.genesys.pokemaps.helpers.SpawnFeedServer;
+import com.pokegoapi.exceptions.AsyncPokemonGoException;
+import com.pokegoapi.exceptions.LoginFailedException;
+import com.pokegoapi.exceptions.NoSuchItemException;
+import com.pokegoapi.exceptions.RemoteServerException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 1:40 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Scans, loots and catches in the background, screen on or off. MapActivity only binds to this
+ * service to show what's going on; while nothing is bound we skip everything that only exists to
+ * be drawn.
+ * <p>
+ * During a team scan the loop stops following our real location and scans the cells a
+ * ScanLedger leases us instead, whether we host the ledger or join one on another device.
+ */
+public class ScanService extends Service implements LocationManager.Listener,
+        SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = "ScanService";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * Intent action that stops the service. Used by the notification's stop button.
+     */
+    public static final String ACTION_STOP = "com.genesys.pokemaps.action.STOP_SCANNING";
+
+    /**
+     * The ID of our ongoing notification.
+     */
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * The rate at which game components update in milliseconds.
+     */
+    private static final long GAME_REFRESH_RATE = 3000;
+
+    /**
+     * The file every tick's outcome is recorded to, in our files directory.
+     */
+    private static final String HISTORY_FILE = "scan_history.bin";
+
+    /**
+     * What exportScanHistoryAsync() calls the CSV it writes.
+     */
+    private static final String HISTORY_EXPORT_FILE = "scan_history.csv";
+
+    /**
+     * How far a team scan we host reaches from where we start it, in degrees each way. About
+     * 450 meters, a dozen ledger cells across, which a couple of devices cover well inside the
+     * ledger's freshness window.
+     */
+    private static final double TEAM_SCAN_REACH = 0.004;
+
+    /**
+     * Our Pokemon GO game manager. This object handles all the heavy stuff for us.
+     */
+    private GameManager gameManager;
+
+    /**
+     * Our location manager. It gets our location for us and keeps it coming while we scan.
+     */
+    private LocationManager locationManager;
+
+    /**
+     * Runs the scan loop. A single thread, so ticks never overlap.
+     */
+    private Thread scanThread;
+
+    /**
+     * Our current location. Written by location updates, read by the scan thread.
+     */
+    private volatile Location location;
+
+    /**
+     * Notified when the first location comes in, so the first tick doesn't wait out the refresh
+     * rate.
+     */
+    private final Object firstFix = new Object();
+
+    /**
+     * Whether any client is bound to us. Android calls onBind() for the first client and
+     * onUnbind() once the last one leaves, so a flag is all we can (and need to) track.
+     */
+    private volatile boolean bound;
+
+    /**
+     * Keeps the CPU awake while the screen is off so scanning doesn't stall.
+     */
+    private PowerManager.WakeLock wakeLock;
+
+    /**
+     * Our preferences object, for logging back in if our session expires.
+     */
+    private SharedPreferences preferences;
+
+    /**
+     * Records every tick for later analysis. Null if the file couldn't be opened.
+     */
+    private ScanHistory history;
+
+    /**
+     * Writes exports, so the file work stays off the main thread and out of the scan loop.
+     */
+    private final GameExecutor exportExecutor = new GameExecutor(TAG + "-export", 1);
+
+    /**
+     * What the ledger knows us by. Only needs to be unique among the team.
+     */
+    private final String device = UUID.randomUUID().toString();
+
+    /**
+     * The ledger of the team scan we're hosting, or null. Only touched on the main thread.
+     */
+    private ScanLedger ledger;
+
+    /**
+     * Our connection to a team scan hosted on another device, or null. Only touched on the main
+     * thread.
+     */
+    private ScanLeaseClient.SocketTransport teamTransport;
+
+    /**
+     * How we get our share of a team scan, or null if we aren't in one. Written on the main
+     * thread, read by the scan thread.
+     */
+    private volatile ScanLeaseClient teamScan;
+
+    private final IBinder binder = new ScanBinder();
+
+    /* Overridden parent methods */
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        preferences = getSharedPreferences(getString(R.string.preference_file_key), Context.MODE_PRIVATE);
+
+        gameManager = GameManager.getInstance(this);
+
+        locationManager = LocationManager.getInstance(this);
+        locationManager.register(this);
+        locationManager.onStart();
+
+        try {
+            history = new ScanHistory(new File(getFilesDir(), HISTORY_FILE),
+                    ScanHistory.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            LOG.e(e, "Couldn't open the scan history");
+        }
+
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.acquire();
+
+        // Waits on the game clock between ticks, like everything else that's timed in the game.
+        final Clock clock = gameManager.getClock();
+        scanThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        boolean located = location != null;
+                        scan();
+                        synchronized (firstFix) {
+                            // Without a location that tick did nothing, so start the next one
+                            // as soon as there is one.
+                            if (located || location == null) {
+                                clock.await(firstFix, GAME_REFRESH_RATE);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // We're being shut down.
+                }
+            }
+        }, TAG);
+        scanThread.start();
+
+        // Teammates on the same network can follow what we find instead of scanning it again.
+        // MapActivity's menu flips the preference; we start and stop the feed to match.
+        preferences.registerOnSharedPreferenceChangeListener(this);
+        updateSpawnFeed();
+        updateTeamScan();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+        if (getString(R.string.spawn_feed_preference_key).equals(key)) {
+            updateSpawnFeed();
+        } else if (getString(R.string.team_scan_host_preference_key).equals(key)
+                || getString(R.string.team_scan_join_preference_key).equals(key)) {
+            updateTeamScan();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification());
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        bound = true;
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        bound = true;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        bound = false;
+        // Ask for onRebind() so we hear about clients that come back.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        scanThread.interrupt();
+        preferences.unregisterOnSharedPreferenceChangeListener(this);
+        gameManager.getSpawnFeed().stop();
+        stopTeamScan();
+        // Throws are only saved every few minutes while we scan; keep the ones since.
+        gameManager.getCatchEstimator().save();
+        locationManager.unregister(this);
+        locationManager.onStop();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                LOG.e(e, "Couldn't close the scan history");
+            }
+        }
+        exportExecutor.shutdown();
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        super.onDestroy();
+    }
+
+    /* Instance methods */
+
+    /**
+     * @return Whether anyone is bound to us and showing what we find.
+     */
+    public boolean isRendering() {
+        return bound;
+    }
+
+    /**
+     * @return Every tick's outcome, for exporting. Null if the history couldn't be opened.
+     */
+    public ScanHistory getScanHistory() {
+        return history;
+    }
+
+    /**
+     * Writes every tick we're holding to a CSV file on a background thread, for sharing.
+     *
+     * @param directory Where to put the file. Created if it doesn't exist.
+     * @param callback  Receives the file, or null if there's no history to export. Called on
+     *                  the export thread.
+     * @return A Future that completes when the file is written.
+     */
+    public Future<File> exportScanHistoryAsync(final File directory, GameCallback<File> callback) {
+        final ScanHistory history = this.history;
+        return exportExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                if (history == null) {
+                    return null;
+                }
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Couldn't create " + directory);
+                }
+                File file = new File(directory, HISTORY_EXPORT_FILE);
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), "UTF-8"));
+                try {
+                    history.exportCsv(out);
+                } finally {
+                    out.close();
+                }
+                return file;
+            }
+        }, callback);
+    }
+
+    /**
+     * Starts the spawn feed on our Wi-Fi address if the player has opted in, and stops it if
+     * they haven't.
+     */
+    private void updateSpawnFeed() {
+        SpawnFeedServer spawnFeed = gameManager.getSpawnFeed();
+        if (!preferences.getBoolean(getString(R.string.spawn_feed_preference_key), false)) {
+            spawnFeed.stop();
+            return;
+        }
+        try {
+            InetAddress address = LanServer.findLanAddress();
+            if (address == null) {
+                LOG.w("Not on a local network, so the spawn feed stays off");
+                return;
+            }
+            spawnFeed.start(address, SpawnFeedServer.DEFAULT_PORT);
+        } catch (IOException e) {
+            LOG.e(e, "Couldn't start the spawn feed");
+        }
+    }
+
+    /**
+     * Hosts or joins a team scan, or leaves the one we're in, to match what the player picked in
+     * MapActivity's menu.
+     */
+    private void updateTeamScan() {
+        stopTeamScan();
+        String host = preferences.getString(getString(R.string.team_scan_join_preference_key), "");
+        if (preferences.getBoolean(getString(R.string.team_scan_host_preference_key), false)) {
+            hostTeamScan();
+        } else if (!host.isEmpty()) {
+            // Connects from the scan thread on its first request.
+            teamTransport = new ScanLeaseClient.SocketTransport(host, ScanLedger.DEFAULT_PORT);
+            teamScan = new ScanLeaseClient(device, teamTransport, gameManager.getClock());
+            LOG.i("Joining the team scan hosted by {}", host);
+        }
+    }
+
+    /**
+     * Starts a ledger for the area around us on our Wi-Fi address. What teammates find goes
+     * straight into our entity store, and so onto our map and our spawn feed.
+     */
+    private void hostTeamScan() {
+        Location location = this.location;
+        if (location == null) {
+            // onLocationChanged() tries again once we know where the area is.
+            return;
+        }
+        try {
+            InetAddress address = LanServer.findLanAddress();
+            if (address == null) {
+                LOG.w("Not on a local network, so we can't host a team scan");
+                return;
+            }
+            ScanLedger ledger = new ScanLedger(
+                    location.getLatitude() - TEAM_SCAN_REACH,
+                    location.getLongitude() - TEAM_SCAN_REACH,
+                    location.getLatitude() + TEAM_SCAN_REACH,
+                    location.getLongitude() + TEAM_SCAN_REACH,
+                    gameManager.getClock(), new ScanLedger.Listener() {
+                        @Override
+                        public void onSightings(List<ScanLedger.Sighting> sightings) {
+                            gameManager.addSightings(sightings);
+                        }
+                    });
+            ledger.start(address, ScanLedger.DEFAULT_PORT);
+            this.ledger = ledger;
+            // We scan our share through the same ledger, just without the network in between.
+            teamScan = new ScanLeaseClient(device, new ScanLeaseClient.LoopbackTransport(ledger),
+                    gameManager.getClock());
+            LOG.i("Hosting a team scan of {} cells on {}", ledger.getCellCount(),
+                    address.getHostAddress());
+        } catch (IOException e) {
+            LOG.e(e, "Couldn't host the team scan");
+        }
+    }
+
+    /**
+     * Leaves the team scan we're in, if any. The scan loop goes back to following us from its
+     * next tick.
+     */
+    private void stopTeamScan() {
+        teamScan = null;
+        if (ledger != null) {
+            ledger.stop();
+            ledger = null;
+        }
+        if (teamTransport != null) {
+            LanServer.closeQuietly(teamTransport);
+            teamTransport = null;
+        }
+    }
+
+    /**
+     * Builds our ongoing notification. Tapping it opens the map; its action stops scanning.
+     */
+    private Notification buildNotification() {
+        PendingIntent openIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MapActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0,
+                new Intent(this, ScanService.class).setAction(ACTION_STOP),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.scan_notification_text))
+                .setContentIntent(openIntent)
+                .addAction(0, getString(R.string.scan_notification_stop), stopIntent)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setShowWhen(false)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * One tick of the scan loop. Runs on the scan thread.
+     */
+    private void scan() {
+        Location location = this.location;
+        if (location == null) return;
+
+        ScanLeaseClient teamScan = this.teamScan;
+        if (teamScan != null) {
+            scanTeamCell(teamScan);
+            return;
+        }
+
+        boolean rendering = isRendering();
+        ScanHistory.Tick tick = new ScanHistory.Tick(location.getLatitude(), location.getLongitude());
+        tick.setRendering(rendering);
+        try {
+            // Updates our game location to match our real location.
+            gameManager.setPlayerLocation(location);
+            tick.finishStage(ScanHistory.Stage.LOCATION);
+
+            // Cycles through our pokestops and loots them if the option is available.
+            tick.setLoot(gameManager.lootPokestops());
+            tick.finishStage(ScanHistory.Stage.LOOT);
+
+            // Nearby pokemon are only ever drawn, so don't ask for them if no one's looking.
+            if (rendering) {
+                tick.setNearby(gameManager.getNearbyPokemon().size());
+            }
+            tick.finishStage(ScanHistory.Stage.NEARBY);
+
+            GameManager.Catch pokemonCatch = gameManager.catchPokemon();
+            tick.setCatchable(gameManager.getCatchableSeen());
+            if (pokemonCatch != null) {
+                tick.setCatch(pokemonCatch.getCatchResult());
+            }
+            tick.finishStage(ScanHistory.Stage.CATCH);
+
+            tick.setKnown(gameManager.getEntityStore().count(GameEvent.EntityType.POKESTOP),
+                    gameManager.updateGyms().size());
+            tick.finishStage(ScanHistory.Stage.GYMS);
+
+        } catch (LoginFailedException e) {
+            tick.setFailed();
+            postError("Login failed. Credentials changed", e);
+        } catch (RemoteServerException e) {
+            tick.setFailed();
+            postError("Login failed. Servers may be down", e);
+        } catch (NoSuchItemException e) {
+            tick.setFailed();
+            postError("Not enough pokeballs to catch pokemon", e);
+        } catch (AsyncPokemonGoException e) {
+            tick.setFailed();
+            logBackIn(e);
+        } catch (InterruptedException e) {
+            // We're being shut down.
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            // An uncaught exception would cancel every future tick, so log it and carry on.
+            tick.setFailed();
+            LOG.e(e, "Scan failed");
+        }
+        if (history != null) {
+            history.append(tick);
+        }
+    }
+
+    /**
+     * One tick of a team scan: scans the next cell the ledger has leased us rather than where we
+     * are. Nothing is looted or caught, and nothing goes in the scan history. Runs on the scan
+     * thread.
+     */
+    private void scanTeamCell(ScanLeaseClient client) {
+        try {
+            if (gameManager.scanLeasedCell(client) == null) {
+                LOG.d("Nothing for us to scan in the team's area right now");
+            }
+        } catch (IOException e) {
+            LOG.w(e, "Couldn't reach the team scan's ledger");
+        } catch (LoginFailedException e) {
+            postError("Login failed. Credentials changed", e);
+        } catch (RemoteServerException e) {
+            postError("Login failed. Servers may be down", e);
+        } catch (AsyncPokemonGoException e) {
+            logBackIn(e);
+        } catch (InterruptedException e) {
+            // We're being shut down.
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.e(e, "Team scan failed");
+        }
+    }
+
+    /**
+     * Logs back in after a request failed, usually because our session expired.
+     */
+    private void logBackIn(AsyncPokemonGoException e) {
+        String username = preferences.getString(getString(R.string.username_preference_key), null);
+        String password = preferences.getString(getString(R.string.password_preference_key), null);
+        if (username != null || password != null) {
+            gameManager.loginPTC(username, password);
+        }
+        LOG.w(e, "Request failed, logging back in");
+    }
+
+    /**
+     * Posts an error to the game event bus so it's shown if anyone's looking.
+     *
+     * @param message The message to show the user.
+     * @param e       The exception behind it.
+     */
+    private void postError(String message, Exception e) {
+        gameManager.getEventBus().post(new GameEvent.Error(message, e));
+    }
+
+    /* Overridden methods from LocationManager.Listener */
+
+    @Override
+    public void onLocationChanged(Location location) {
+        if (location != null) {
+            boolean first = this.location == null;
+            this.location = location;
+            if (first) {
+                synchronized (firstFix) {
+                    firstFix.notifyAll();
+                }
+                // A team scan we're hosting was waiting to know where its area is.
+                if (ledger == null && preferences.getBoolean(
+                        getString(R.string.team_scan_host_preference_key), false)) {
+                    hostTeamScan();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handed to bound clients so they can talk to the service directly.
+     */
+    public class ScanBinder extends Binder {
+
+        public ScanService getService() {
+            return ScanService.this;
+        }
+    }
+}
@@ -22,7 +22,6 @@ import android.graphics.Color;
 import android.os.Build;
 import android.os.Vibrator;
 import android.support.v7.app.AlertDialog;
-import android.util.Log;
 
 import com.pokegoapi.api.pokemon.Pokemon;
 import com.pokegoapi.util.PokeDictionary;
@@ -37,39 +36,6 @@ import java.util.Locale;
 
 public class Utils {
 
-    /**
-     * Prints a log to the console for debugging purposes.
-     *
-     * @param priority Priority level of message. (see Log class for more info).
-     * @param context Always use 'this' for this parameter.
-     * @param message The message to stream to console.
-     */
-    public static void log(int priority, Object context, String message) {
-        Log.println(priority, context.getClass().getSimpleName(), message);
-    }
-
-    /**
-     * Prints a log to the console for debugging purposes.
-     *
-     * @param context Always use 'this' for this parameter.
-     * @param message The message to stream to console.
-     */
-    public static void log(Object context, String message) {
-        log(Log.INFO, context, message);
-    }
-
-    /**
-     * Prints a log to the console only if debugging is enabled in com.grid.pokemaps.Constants.
-     *
-     * @param context Always use 'this' for this parameter.
-     * @param message The message to stream to console.
-     */
-    public static void debug(Object context, String message) {
-        if (Constants.DEBUG) {
-            log(context, message);
-        }
-    }
-
     /**
      * Creates and displays a bare-bones alert dialog based on the parameters.
      *
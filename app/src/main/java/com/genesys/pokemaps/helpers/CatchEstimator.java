@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.inventory.Pokeball;
+import com.pokegoapi.api.pokemon.PokemonClass;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+import POGOProtos.Inventory.Item.ItemIdOuterClass.ItemId;
+import POGOProtos.Networking.Responses.CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 12:20 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Learns which ball and berry to throw from how our throws actually turn out. Every throw is
+ * counted per species and per rarity class, for each ball with and without a berry, as a catch,
+ * an escape or a flee. A species' chances start out as its rarity class's and move towards its
+ * own numbers as they come in; a rarity class starts from a rough guess. Before each throw we
+ * pick the combination that gets us the catch for the fewest items on average while still
+ * catching it often enough; fewer items per catch also means fewer throws, so catches per minute
+ * go up with it. Each pick draws the chances at random from how sure we are of them rather than
+ * going by the average, so combinations we know little about still get tried now and then and
+ * ones that look bad on a couple of unlucky throws get another chance. What we've learned is
+ * saved to disk and picks up where it left off next session.
+ */
+public class CatchEstimator {
+
+    private static final String TAG = "CatchEstimator";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * How many throws we plan for when a pokemon may have as many as it takes.
+     */
+    public static final int MAX_THROWS = 10;
+
+    /**
+     * "PGCE", at the start of the file.
+     */
+    private static final int MAGIC = 0x50474345;
+
+    private static final int VERSION = 1;
+
+    /**
+     * How many throws' worth of weight the rough guess has in a rarity class's estimate.
+     */
+    private static final double PRIOR_WEIGHT = 4;
+
+    /**
+     * How many throws' worth of weight a rarity class's estimate has in a species' estimate.
+     */
+    private static final double SPECIES_WEIGHT = 8;
+
+    /**
+     * The rough guess at how often a pokemon flees after a throw that didn't catch it.
+     */
+    private static final double FLEE_PRIOR = 0.1;
+
+    /**
+     * How much a razz berry multiplies the catch rate by.
+     */
+    private static final double BERRY_BOOST = 1.5;
+
+    /**
+     * What a razz berry is worth, in poke balls.
+     */
+    private static final double BERRY_COST = 1;
+
+    /* The outcomes we count for each ball and berry combination. */
+    private static final int CATCHES = 0;
+    private static final int ESCAPES = 1;
+    private static final int FLEES = 2;
+    private static final int OUTCOMES = 3;
+
+    private static final Ball[] BALLS = Ball.values();
+
+    private static final PokemonClass[] RARITIES = PokemonClass.values();
+
+    /**
+     * One per ball, with and without a berry: ball ordinal * 2, plus 1 with a berry.
+     */
+    private static final int COMBINATIONS = BALLS.length * 2;
+
+    /**
+     * Where we keep what we've learned, or null to not keep it.
+     */
+    private final File file;
+
+    private final Random random = new Random();
+
+    private boolean loaded;
+
+    /**
+     * Outcome counts per rarity class ordinal, then combination.
+     */
+    private final int[][][] byRarity = new int[RARITIES.length][COMBINATIONS][OUTCOMES];
+
+    /**
+     * Outcome counts per species, then combination. Only species we've thrown at.
+     */
+    private final Map<PokemonId, int[][]> bySpecies = new EnumMap<>(PokemonId.class);
+
+    private long throwCount;
+
+    private long catchCount;
+
+    private long itemCount;
+
+    /**
+     * Whether there's anything to save.
+     */
+    private boolean dirty;
+
+    /**
+     * Held while the file is written, so two saves don't share the temporary file.
+     */
+    private final Object fileLock = new Object();
+
+    /**
+     * Creates a new estimator. Nothing is read until it's first needed.
+     *
+     * @param file Where to keep what we learn across sessions, or null to not keep it.
+     */
+    public CatchEstimator(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Picks what to throw next.
+     *
+     * @param id         The pokemon's species.
+     * @param throwsLeft How many more throws it may get, or CatchPolicy.UNLIMITED.
+     * @param balls      The balls we have.
+     * @param berry      Whether we may feed it a berry.
+     * @param target     How likely we want the catch to be, from 0 to 1.
+     * @return What to throw, or null if we have no balls.
+     */
+    public synchronized Choice choose(PokemonId id, int throwsLeft, Set<Ball> balls,
+                                      boolean berry, double target) {
+        load();
+        int throwsPlanned = throwsLeft == CatchPolicy.UNLIMITED || throwsLeft > MAX_THROWS
+                ? MAX_THROWS : throwsLeft;
+        if (throwsPlanned <= 0) {
+            return null;
+        }
+        PokemonClass rarity = CatchPolicy.rarityOf(id);
+        int[][] rarityCounts = byRarity[(rarity == null ? PokemonClass.NONE : rarity).ordinal()];
+        int[][] speciesCounts = bySpecies.get(id);
+        double flee = fleeRate(rarityCounts, speciesCounts);
+
+        Choice best = null;
+        for (Ball ball : BALLS) {
+            if (!balls.contains(ball)) {
+                continue;
+            }
+            for (int withBerry = 0; withBerry < (berry ? 2 : 1); withBerry++) {
+                int combination = ball.ordinal() * 2 + withBerry;
+                double p = sampleCatchRate(rarity, ball, withBerry == 1, rarityCounts[combination],
+                        speciesCounts == null ? null : speciesCounts[combination]);
+
+                // Throw until it's caught, it flees or we run out of throws.
+                double q = (1 - p) * (1 - flee);
+                double expectedThrows = (1 - Math.pow(q, throwsPlanned)) / (1 - q);
+                double probability = p * expectedThrows;
+                double items = expectedThrows * (ball.cost + withBerry * BERRY_COST);
+                Choice choice = new Choice(ball, withBerry == 1, probability, items / probability);
+                if (best == null || choice.isBetterThan(best, target)) {
+                    best = choice;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Learns from a throw.
+     *
+     * @param id     The pokemon's species.
+     * @param choice What we threw.
+     * @param status How it went.
+     */
+    public synchronized void record(PokemonId id, Choice choice, CatchStatus status) {
+        int outcome;
+        switch (status) {
+            case CATCH_SUCCESS:
+                outcome = CATCHES;
+                break;
+            case CATCH_ESCAPE:
+            case CATCH_MISSED:
+                outcome = ESCAPES;
+                break;
+            case CATCH_FLEE:
+                outcome = FLEES;
+                break;
+            default:
+                // An error tells us nothing about our chances.
+                return;
+        }
+        load();
+        int combination = choice.ball.ordinal() * 2 + (choice.berry ? 1 : 0);
+        PokemonClass rarity = CatchPolicy.rarityOf(id);
+        byRarity[(rarity == null ? PokemonClass.NONE : rarity).ordinal()][combination][outcome]++;
+        int[][] speciesCounts = bySpecies.get(id);
+        if (speciesCounts == null) {
+            speciesCounts = new int[COMBINATIONS][OUTCOMES];
+            bySpecies.put(id, speciesCounts);
+        }
+        speciesCounts[combination][outcome]++;
+
+        throwCount++;
+        itemCount += choice.berry ? 2 : 1;
+        if (outcome == CATCHES) {
+            catchCount++;
+        }
+        dirty = true;
+    }
+
+    /**
+     * @return How many pokemon we've caught per ball and berry used, over every session.
+     */
+    public synchronized double getCatchesPerItem() {
+        load();
+        return itemCount == 0 ? 0 : (double) catchCount / itemCount;
+    }
+
+    /**
+     * @return How many throws we've learned from, over every session.
+     */
+    public synchronized long getThrowCount() {
+        load();
+        return throwCount;
+    }
+
+    /**
+     * Writes what we've learned to disk, if anything changed since the last save. The old file
+     * is only replaced once the new one is complete. Throws can be recorded meanwhile; only
+     * taking the copy to write waits for them.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        synchronized (fileLock) {
+            byte[] data;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                data = serialize();
+                dirty = false;
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Couldn't replace " + file);
+                }
+            } catch (IOException e) {
+                LOG.w(e, "Couldn't save catch statistics");
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Everything save() writes, as it goes in the file.
+     */
+    private byte[] serialize() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(COMBINATIONS);
+            out.writeInt(RARITIES.length);
+            for (PokemonClass rarity : RARITIES) {
+                out.writeUTF(rarity.name());
+                writeCounts(out, byRarity[rarity.ordinal()]);
+            }
+            out.writeInt(bySpecies.size());
+            for (Map.Entry<PokemonId, int[][]> entry : bySpecies.entrySet()) {
+                out.writeUTF(entry.getKey().name());
+                writeCounts(out, entry.getValue());
+            }
+            out.writeLong(throwCount);
+            out.writeLong(catchCount);
+            out.writeLong(itemCount);
+        } catch (IOException e) {
+            // Writing to memory can't fail.
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads what previous sessions learned, the first time we need it.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (file == null) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readInt() != COMBINATIONS) {
+                    LOG.w("Ignoring catch statistics from an older version.");
+                    return;
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    PokemonClass rarity = parse(PokemonClass.class, in.readUTF());
+                    int[][] counts = readCounts(in);
+                    if (rarity != null) {
+                        byRarity[rarity.ordinal()] = counts;
+                    }
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    PokemonId id = parse(PokemonId.class, in.readUTF());
+                    int[][] counts = readCounts(in);
+                    if (id != null) {
+                        bySpecies.put(id, counts);
+                    }
+                }
+                throwCount = in.readLong();
+                catchCount = in.readLong();
+                itemCount = in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // First session.
+        } catch (IOException e) {
+            LOG.w(e, "Couldn't read catch statistics, starting over");
+            for (int[][] counts : byRarity) {
+                for (int[] outcomes : counts) {
+                    outcomes[CATCHES] = outcomes[ESCAPES] = outcomes[FLEES] = 0;
+                }
+            }
+            bySpecies.clear();
+            throwCount = catchCount = itemCount = 0;
+        }
+    }
+
+    /**
+     * Draws how likely one throw of a combination is to catch from what we know: a beta
+     * distribution around the species' numbers, which lean on its rarity class's average until
+     * there are enough of them.
+     */
+    private double sampleCatchRate(PokemonClass rarity, Ball ball, boolean berry,
+                                   int[] rarityCounts, int[] speciesCounts) {
+        double guess = Math.min(0.95, baseRate(rarity) * ball.boost * (berry ? BERRY_BOOST : 1));
+        double catches = rarityCounts[CATCHES] + PRIOR_WEIGHT * guess;
+        double misses = rarityCounts[ESCAPES] + rarityCounts[FLEES] + PRIOR_WEIGHT * (1 - guess);
+        if (speciesCounts != null) {
+            double mean = catches / (catches + misses);
+            catches = speciesCounts[CATCHES] + SPECIES_WEIGHT * mean;
+            misses = speciesCounts[ESCAPES] + speciesCounts[FLEES] + SPECIES_WEIGHT * (1 - mean);
+        }
+        double a = sampleGamma(catches);
+        double p = a / (a + sampleGamma(misses));
+        return Math.max(0.01, Math.min(0.99, p));
+    }
+
+    /**
+     * Draws from a gamma distribution with a scale of 1, by Marsaglia and Tsang's method.
+     */
+    private double sampleGamma(double shape) {
+        if (shape < 1) {
+            return sampleGamma(shape + 1) * Math.pow(random.nextDouble(), 1 / shape);
+        }
+        double d = shape - 1.0 / 3;
+        double c = 1 / Math.sqrt(9 * d);
+        while (true) {
+            double x;
+            double v;
+            do {
+                x = random.nextGaussian();
+                v = 1 + c * x;
+            } while (v <= 0);
+            v = v * v * v;
+            double u = random.nextDouble();
+            if (u < 1 - 0.0331 * x * x * x * x
+                    || Math.log(u) < 0.5 * x * x + d * (1 - v + Math.log(v))) {
+                return d * v;
+            }
+        }
+    }
+
+    /**
+     * How likely a species is to flee after a throw that doesn't catch it. Balls and berries
+     * make no difference.
+     */
+    private static double fleeRate(int[][] rarityCounts, int[][] speciesCounts) {
+        int flees = 0;
+        int misses = 0;
+        for (int[] counts : rarityCounts) {
+            flees += counts[FLEES];
+            misses += counts[ESCAPES] + counts[FLEES];
+        }
+        double rate = (flees + PRIOR_WEIGHT * FLEE_PRIOR) / (misses + PRIOR_WEIGHT);
+        if (speciesCounts != null) {
+            flees = 0;
+            misses = 0;
+            for (int[] counts : speciesCounts) {
+                flees += counts[FLEES];
+                misses += counts[ESCAPES] + counts[FLEES];
+            }
+            rate = (flees + SPECIES_WEIGHT * rate) / (misses + SPECIES_WEIGHT);
+        }
+        return rate;
+    }
+
+    /**
+     * Our rough guess at how likely a poke ball is to catch a pokemon of a rarity class.
+     */
+    private static double baseRate(PokemonClass rarity) {
+        if (rarity == null) {
+            return 0.3;
+        }
+        switch (rarity) {
+            case VERY_COMMON:
+                return 0.45;
+            case COMMON:
+                return 0.35;
+            case UNCOMMON:
+                return 0.25;
+            case RARE:
+                return 0.15;
+            case VERY_RARE:
+                return 0.1;
+            case EPIC:
+                return 0.06;
+            case LEGENDARY:
+            case MYTHIC:
+                return 0.03;
+            default:
+                return 0.3;
+        }
+    }
+
+    private static void writeCounts(DataOutputStream out, int[][] counts) throws IOException {
+        for (int[] outcomes : counts) {
+            for (int count : outcomes) {
+                out.writeInt(count);
+            }
+        }
+    }
+
+    private static int[][] readCounts(DataInputStream in) throws IOException {
+        int[][] counts = new int[COMBINATIONS][OUTCOMES];
+        for (int[] outcomes : counts) {
+            for (int i = 0; i < OUTCOMES; i++) {
+                outcomes[i] = in.readInt();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return The constant with a name, or null if this version doesn't have it.
+     */
+    private static <T extends Enum<T>> T parse(Class<T> type, String name) {
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The balls we choose between. Master balls are never thrown.
+     */
+    public enum Ball {
+
+        POKE(Pokeball.POKEBALL, ItemId.ITEM_POKE_BALL, 1, 1),
+        GREAT(Pokeball.GREATBALL, ItemId.ITEM_GREAT_BALL, 1.5, 2),
+        ULTRA(Pokeball.ULTRABALL, ItemId.ITEM_ULTRA_BALL, 2, 3);
+
+        private final Pokeball pokeball;
+
+        private final ItemId item;
+
+        /**
+         * How much the ball multiplies the catch rate by.
+         */
+        private final double boost;
+
+        /**
+         * What the ball is worth, in poke balls.
+         */
+        private final double cost;
+
+        Ball(Pokeball pokeball, ItemId item, double boost, double cost) {
+            this.pokeball = pokeball;
+            this.item = item;
+            this.boost = boost;
+            this.cost = cost;
+        }
+
+        public Pokeball getPokeball() {
+            return pokeball;
+        }
+
+        public ItemId getItem() {
+            return item;
+        }
+    }
+
+    /**
+     * What to throw next, and what we expect from it.
+     */
+    public static class Choice {
+
+        private final Ball ball;
+
+        private final boolean berry;
+
+        private final double probability;
+
+        private final double itemsPerCatch;
+
+        Choice(Ball ball, boolean berry, double probability, double itemsPerCatch) {
+            this.ball = ball;
+            this.berry = berry;
+            this.probability = probability;
+            this.itemsPerCatch = itemsPerCatch;
+        }
+
+        /**
+         * Anything that meets the target beats anything that doesn't. Among those that do, the
+         * one that costs fewer items per catch wins; if none do, the likeliest.
+         */
+        boolean isBetterThan(Choice other, double target) {
+            boolean meets = probability >= target;
+            if (meets != other.probability >= target) {
+                return meets;
+            }
+            return meets ? itemsPerCatch < other.itemsPerCatch : probability > other.probability;
+        }
+
+        public Ball getBall() {
+            return ball;
+        }
+
+        /**
+         * @return Whether to feed it a razz berry first.
+         */
+        public boolean withBerry() {
+            return berry;
+        }
+
+        /**
+         * @return How likely we think we are to catch it if we keep throwing this.
+         */
+        public double getProbability() {
+            return probability;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.pokemon.PokemonClass;
+import com.pokegoapi.api.pokemon.PokemonMeta;
+import com.pokegoapi.api.pokemon.PokemonMetaRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 3:05 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Decides which pokemon we try to catch and how many balls and berries each one is worth. A
+ * policy is an ordered list of rules matching on species, rarity, whether the species is new to
+ * our pokedex and CP; the first rule that matches wins. Rules are compiled into a table indexed
+ * by species when the policy is built, so a decision is a couple of array lookups. Policies are
+ * immutable; to change the rules, build a new one and hand it to GameManager.setCatchPolicy().
+ */
+public class CatchPolicy {
+
+    /**
+     * Use as many balls or berries as it takes.
+     */
+    public static final int UNLIMITED = -1;
+
+    /**
+     * What getPriority() returns for pokemon no rule wants us to catch.
+     */
+    public static final int NEVER = -1;
+
+    /**
+     * Compiled decisions. Indexed by species ordinal, then 1 if the species is new to our
+     * pokedex and 0 if not. Each cell holds the CP bands that apply, first match wins.
+     */
+    private final Band[][][] table;
+
+    /**
+     * The highest priority any band in the matching table cell catches with, or NEVER.
+     */
+    private final int[][] priorities;
+
+    private CatchPolicy(List<Rule> rules) {
+        PokemonId[] species = PokemonId.values();
+        table = new Band[species.length][2][];
+        priorities = new int[species.length][2];
+        for (PokemonId id : species) {
+            PokemonClass rarity = rarityOf(id);
+            for (int isNew = 0; isNew < 2; isNew++) {
+                List<Band> bands = new ArrayList<>();
+                for (Rule rule : rules) {
+                    if (rule.matches(id, rarity, isNew == 1)) {
+                        bands.add(new Band(rule.minCp, rule.maxCp, rule.decision));
+                        if (rule.minCp == 0 && rule.maxCp == Integer.MAX_VALUE) {
+                            // Nothing after a rule that takes every CP can ever match.
+                            break;
+                        }
+                    }
+                }
+                int priority = NEVER;
+                for (Band band : bands) {
+                    if (band.decision.shouldCatch()) {
+                        priority = Math.max(priority, band.decision.getPriority());
+                    }
+                }
+                table[id.ordinal()][isNew] = bands.toArray(new Band[bands.size()]);
+                priorities[id.ordinal()][isNew] = priority;
+            }
+        }
+    }
+
+    /**
+     * The policy we've always used: anything new to the pokedex gets everything we've got,
+     * otherwise rarer pokemon get more berries.
+     */
+    public static CatchPolicy defaults() {
+        return new Builder()
+                .add(new Rule().pokedexNew(true).catchWith(UNLIMITED, UNLIMITED, 100))
+                .add(new Rule().rarity(PokemonClass.VERY_COMMON).catchWith(UNLIMITED, 2, 1))
+                .add(new Rule().rarity(PokemonClass.COMMON).catchWith(UNLIMITED, 5, 2))
+                .add(new Rule().rarity(PokemonClass.UNCOMMON).catchWith(UNLIMITED, 7, 3))
+                .add(new Rule().rarity(PokemonClass.RARE).catchWith(UNLIMITED, 9, 4))
+                .add(new Rule().catchWith(UNLIMITED, UNLIMITED, 5))
+                .build();
+    }
+
+    /**
+     * Decides what to do with an encountered pokemon.
+     *
+     * @param id         The pokemon's species.
+     * @param pokedexNew Whether the species is missing from our pokedex.
+     * @param cp         The pokemon's CP, from its encounter.
+     * @return The decision. Never null; pokemon no rule matches are skipped.
+     */
+    public Decision decide(PokemonId id, boolean pokedexNew, int cp) {
+        for (Band band : table[id.ordinal()][pokedexNew ? 1 : 0]) {
+            if (cp >= band.minCp && cp <= band.maxCp) {
+                return band.decision;
+            }
+        }
+        return Decision.SKIP;
+    }
+
+    /**
+     * How much we want a pokemon before we know its CP. Used to pick what to encounter first.
+     *
+     * @param id         The pokemon's species.
+     * @param pokedexNew Whether the species is missing from our pokedex.
+     * @return The best priority it could be caught with, higher first, or NEVER if no rule
+     * would have us catch it at any CP.
+     */
+    public int getPriority(PokemonId id, boolean pokedexNew) {
+        return priorities[id.ordinal()][pokedexNew ? 1 : 0];
+    }
+
+    static PokemonClass rarityOf(PokemonId id) {
+        PokemonMeta meta;
+        try {
+            meta = PokemonMetaRegistry.getMeta(id);
+        } catch (RuntimeException e) {
+            // Placeholder ids like MISSINGNO have no meta.
+            return null;
+        }
+        return meta == null ? null : meta.getPokemonClass();
+    }
+
+    /**
+     * What to do with a pokemon.
+     */
+    public static class Decision {
+
+        /**
+         * Don't catch it.
+         */
+        public static final Decision SKIP = new Decision(false, 0, 0, NEVER);
+
+        private final boolean shouldCatch;
+
+        private final int maxPokeballs;
+
+        private final int maxRazzberries;
+
+        private final int priority;
+
+        Decision(boolean shouldCatch, int maxPokeballs, int maxRazzberries, int priority) {
+            this.shouldCatch = shouldCatch;
+            this.maxPokeballs = maxPokeballs;
+            this.maxRazzberries = maxRazzberries;
+            this.priority = priority;
+        }
+
+        public boolean shouldCatch() {
+            return shouldCatch;
+        }
+
+        /**
+         * @return The most balls to throw, or UNLIMITED.
+         */
+        public int getMaxPokeballs() {
+            return maxPokeballs;
+        }
+
+        /**
+         * @return The most razz berries to feed, or UNLIMITED.
+         */
+        public int getMaxRazzberries() {
+            return maxRazzberries;
+        }
+
+        /**
+         * @return How much we want it compared to other pokemon. Higher goes first.
+         */
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * One rule of a policy. Every condition left unset matches anything.
+     */
+    public static class Rule {
+
+        private Set<PokemonId> species;
+
+        private Set<PokemonClass> rarities;
+
+        private Boolean pokedexNew;
+
+        private int minCp = 0;
+
+        private int maxCp = Integer.MAX_VALUE;
+
+        private Decision decision = Decision.SKIP;
+
+        public Rule species(PokemonId... species) {
+            this.species = EnumSet.noneOf(PokemonId.class);
+            Collections.addAll(this.species, species);
+            return this;
+        }
+
+        public Rule rarity(PokemonClass... rarities) {
+            this.rarities = EnumSet.noneOf(PokemonClass.class);
+            Collections.addAll(this.rarities, rarities);
+            return this;
+        }
+
+        public Rule pokedexNew(boolean pokedexNew) {
+            this.pokedexNew = pokedexNew;
+            return this;
+        }
+
+        /**
+         * Only match pokemon with a CP between min and max, inclusive.
+         */
+        public Rule cp(int min, int max) {
+            this.minCp = min;
+            this.maxCp = max;
+            return this;
+        }
+
+        /**
+         * Catch matching pokemon.
+         *
+         * @param maxPokeballs   The most balls to throw, or UNLIMITED.
+         * @param maxRazzberries The most razz berries to feed, or UNLIMITED.
+         * @param priority       How much we want them compared to other pokemon; higher first.
+         */
+        public Rule catchWith(int maxPokeballs, int maxRazzberries, int priority) {
+            decision = new Decision(true, maxPokeballs, maxRazzberries, Math.max(0, priority));
+            return this;
+        }
+
+        /**
+         * Leave matching pokemon alone. This is what a rule does by default.
+         */
+        public Rule skip() {
+            decision = Decision.SKIP;
+            return this;
+        }
+
+        boolean matches(PokemonId id, PokemonClass rarity, boolean isNew) {
+            return (species == null || species.contains(id))
+                    && (rarities == null || (rarity != null && rarities.contains(rarity)))
+                    && (pokedexNew == null || pokedexNew == isNew);
+        }
+    }
+
+    /**
+     * Collects rules, in order, and compiles them into a policy.
+     */
+    public static class Builder {
+
+        private final List<Rule> rules = new ArrayList<>();
+
+        public Builder add(Rule rule) {
+            rules.add(rule);
+            return this;
+        }
+
+        public CatchPolicy build() {
+            return new CatchPolicy(rules);
+        }
+    }
+
+    /**
+     * A rule's decision, narrowed to one species and pokedex state.
+     */
+    private static class Band {
+
+        private final int minCp;
+
+        private final int maxCp;
+
+        private final Decision decision;
+
+        Band(int minCp, int maxCp, Decision decision) {
+            this.minCp = minCp;
+            this.maxCp = maxCp;
+            this.decision = decision;
+        }
+    }
+}
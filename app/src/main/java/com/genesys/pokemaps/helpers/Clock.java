@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 11:05 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Where the game logic gets the time from, and how it waits. Cooldowns, despawns, throw delays,
+ * request pacing and the scan loop all go through one of these instead of System and Thread, so
+ * a SimulatedClock can run hours of farming in a few seconds. Timing that measures our own code,
+ * like the startup tracer and scan history stage timings, stays on the real clock.
+ */
+public abstract class Clock {
+
+    /**
+     * The real thing.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            if (millis > 0) {
+                Thread.sleep(millis);
+            }
+        }
+
+        @Override
+        public void await(Object monitor, long millis) throws InterruptedException {
+            monitor.wait(Math.max(1, millis));
+        }
+    };
+
+    /**
+     * @return The time, in epoch milliseconds. Comparable with the server's timestamps.
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @return A monotonic time in nanoseconds, for measuring intervals.
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Waits for a while. Does nothing if millis isn't positive.
+     *
+     * @param millis How long to wait, in milliseconds.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public abstract void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Waits on a monitor for at most a while, like Object.wait(long). The caller must hold the
+     * monitor and should check its condition again afterwards; this may return early.
+     *
+     * @param monitor The monitor to wait on.
+     * @param millis  The longest to wait, in milliseconds.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public abstract void await(Object monitor, long millis) throws InterruptedException;
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 6:05 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Remembers where we've scanned and when. The world is cut into cells a few dozen meters across,
+ * and each scan stamps every cell within reach of it. However many scans we record, the grid
+ * only grows with the area covered, and a listener hears about a cell only when it changes in a
+ * way that would show up on the map.
+ */
+public class CoverageGrid {
+
+    /**
+     * The size of a cell in degrees of latitude and longitude. About 30 meters north to south.
+     */
+    public static final double CELL_DEGREES = 0.00025;
+
+    /**
+     * How far a scan reaches, in meters.
+     */
+    private static final double SCAN_RADIUS = 70;
+
+    /**
+     * Ages are shown in steps of this many milliseconds; rescanning a cell within the same step
+     * changes nothing on the map.
+     */
+    public static final long FRESHNESS_STEP = 5 * 60 * 1000;
+
+    /**
+     * When each cell we've covered was last scanned, in epoch milliseconds. Guarded by this.
+     */
+    private final Map<Long, Long> cells = new HashMap<>();
+
+    /**
+     * How many scans we've recorded. Guarded by this.
+     */
+    private int scans;
+
+    private volatile Listener listener;
+
+    /**
+     * Stamps every cell within reach of a scan.
+     *
+     * @param latitude  Where the scan was centred.
+     * @param longitude Where the scan was centred.
+     * @param time      When the scan happened, in epoch milliseconds.
+     */
+    public void record(double latitude, double longitude, long time) {
+        double latRadius = SCAN_RADIUS / GeoUtils.METERS_PER_DEGREE;
+        double lngRadius = latRadius / Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        int minRow = row(latitude - latRadius);
+        int maxRow = row(latitude + latRadius);
+        int minCol = column(longitude - lngRadius);
+        int maxCol = column(longitude + lngRadius);
+
+        int changedMinRow = Integer.MAX_VALUE, changedMaxRow = Integer.MIN_VALUE;
+        int changedMinCol = Integer.MAX_VALUE, changedMaxCol = Integer.MIN_VALUE;
+        long step = time / FRESHNESS_STEP;
+        synchronized (this) {
+            scans++;
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    double cellLat = (row + 0.5) * CELL_DEGREES;
+                    double cellLng = (col + 0.5) * CELL_DEGREES;
+                    if (GeoUtils.distance(latitude, longitude, cellLat, cellLng) > SCAN_RADIUS) {
+                        continue;
+                    }
+                    Long previous = cells.put(key(row, col), time);
+                    if (previous == null || previous / FRESHNESS_STEP != step) {
+                        changedMinRow = Math.min(changedMinRow, row);
+                        changedMaxRow = Math.max(changedMaxRow, row);
+                        changedMinCol = Math.min(changedMinCol, col);
+                        changedMaxCol = Math.max(changedMaxCol, col);
+                    }
+                }
+            }
+        }
+
+        Listener listener = this.listener;
+        if (listener != null && changedMinRow <= changedMaxRow) {
+            listener.onCellsChanged(changedMinRow, changedMaxRow, changedMinCol, changedMaxCol);
+        }
+    }
+
+    /**
+     * Hands every covered cell in a range of rows and columns to the visitor. Walks whichever is
+     * smaller, the range or the whole grid, so huge zoomed-out ranges stay cheap. The grid is
+     * locked while visiting, so keep the visitor quick.
+     */
+    public synchronized void visit(int minRow, int maxRow, int minCol, int maxCol, Visitor visitor) {
+        long range = (long) (maxRow - minRow + 1) * (maxCol - minCol + 1);
+        if (range <= cells.size()) {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    Long time = cells.get(key(row, col));
+                    if (time != null) {
+                        visitor.visit(row, col, time);
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Long, Long> cell : cells.entrySet()) {
+                int row = (int) (cell.getKey() >> 32);
+                int col = (int) (long) cell.getKey();
+                if (row >= minRow && row <= maxRow && col >= minCol && col <= maxCol) {
+                    visitor.visit(row, col, cell.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The row of cells a latitude falls in.
+     */
+    public static int row(double latitude) {
+        return (int) Math.floor(latitude / CELL_DEGREES);
+    }
+
+    /**
+     * @return The column of cells a longitude falls in.
+     */
+    public static int column(double longitude) {
+        return (int) Math.floor(longitude / CELL_DEGREES);
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * @return How many cells we've covered.
+     */
+    public synchronized int size() {
+        return cells.size();
+    }
+
+    /**
+     * @return How many scans we've recorded.
+     */
+    public synchronized int getScanCount() {
+        return scans;
+    }
+
+    /**
+     * Sets who to tell when cells change. Called on whatever thread recorded the scan.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hears about changes to the grid.
+     */
+    public interface Listener {
+
+        /**
+         * Some cells in this range of rows and columns (inclusive) were covered for the first
+         * time or moved to a fresher step.
+         */
+        void onCellsChanged(int minRow, int maxRow, int minCol, int maxCol);
+    }
+
+    /**
+     * Receives covered cells from visit().
+     */
+    public interface Visitor {
+
+        void visit(int row, int col, long lastScanned);
+    }
+}
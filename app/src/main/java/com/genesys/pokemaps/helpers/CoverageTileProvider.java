@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 6:30 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Draws a CoverageGrid as map tiles: the fresher the scan, the stronger the colour. The map asks
+ * for tiles on its own background threads, so rendering never touches the UI thread. Rendered
+ * tiles are cached per zoom level and thrown out only when a cell inside them changes, or when
+ * the clock moves on to the next freshness step.
+ */
+public class CoverageTileProvider implements TileProvider, CoverageGrid.Listener {
+
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Below this zoom cells are smaller than a pixel, so we don't draw anything.
+     */
+    private static final int MIN_ZOOM = 12;
+
+    /**
+     * How many tiles we keep per zoom level.
+     */
+    private static final int TILES_PER_ZOOM = 64;
+
+    /**
+     * How many freshness steps it takes for a cell to fade to its faintest.
+     */
+    private static final int FADE_STEPS = 12;
+
+    /**
+     * The most opaque a freshly scanned cell gets, from 0 to 1.
+     */
+    private static final float MAX_ALPHA = 0.5f;
+
+    /**
+     * The least opaque an old cell gets, from 0 to 1.
+     */
+    private static final float MIN_ALPHA = 0.1f;
+
+    private final CoverageGrid grid;
+
+    /**
+     * The clock the grid's scan times come from, so cells fade at the right pace.
+     */
+    private final Clock clock;
+
+    private final int color;
+
+    /**
+     * Rendered tiles by zoom level, then by tile x and y. Guarded by this.
+     */
+    private final SparseArray<LruCache<Long, CachedTile>> caches = new SparseArray<>();
+
+    /**
+     * Set when a tile the map may be showing has gone stale.
+     */
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+
+    /**
+     * The freshness step we last told the map about.
+     */
+    private volatile long shownStep;
+
+    /**
+     * Creates a new provider and starts listening to the grid.
+     *
+     * @param grid  The grid to draw.
+     * @param clock The clock the grid's scan times come from.
+     * @param color The colour to draw covered cells in. Its alpha is ignored.
+     */
+    public CoverageTileProvider(CoverageGrid grid, Clock clock, int color) {
+        this.grid = grid;
+        this.clock = clock;
+        this.color = color;
+        grid.setListener(this);
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        if (zoom < MIN_ZOOM) {
+            return NO_TILE;
+        }
+        long step = clock.currentTimeMillis() / CoverageGrid.FRESHNESS_STEP;
+        long key = ((long) x << 32) | (y & 0xffffffffL);
+        LruCache<Long, CachedTile> cache;
+        synchronized (this) {
+            cache = caches.get(zoom);
+            if (cache == null) {
+                cache = new LruCache<>(TILES_PER_ZOOM);
+                caches.put(zoom, cache);
+            }
+        }
+        CachedTile cached = cache.get(key);
+        if (cached != null && cached.step == step) {
+            return cached.tile;
+        }
+        Tile tile = render(x, y, zoom, step);
+        cache.put(key, new CachedTile(tile, step));
+        return tile;
+    }
+
+    /**
+     * Draws one tile.
+     */
+    private Tile render(int x, int y, int zoom, final long step) {
+        final double scale = TILE_SIZE * (double) (1 << zoom);
+        final double originX = (double) x * TILE_SIZE;
+        final double originY = (double) y * TILE_SIZE;
+        double west = tileLongitude(x, zoom);
+        double east = tileLongitude(x + 1, zoom);
+        double north = tileLatitude(y, zoom);
+        double south = tileLatitude(y + 1, zoom);
+
+        final Bitmap[] bitmap = new Bitmap[1];
+        final Canvas[] canvas = new Canvas[1];
+        final Paint paint = new Paint();
+        grid.visit(CoverageGrid.row(south), CoverageGrid.row(north),
+                CoverageGrid.column(west), CoverageGrid.column(east),
+                new CoverageGrid.Visitor() {
+                    @Override
+                    public void visit(int row, int col, long lastScanned) {
+                        if (bitmap[0] == null) {
+                            bitmap[0] = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE,
+                                    Bitmap.Config.ARGB_8888);
+                            canvas[0] = new Canvas(bitmap[0]);
+                        }
+                        long age = Math.max(0, step - lastScanned / CoverageGrid.FRESHNESS_STEP);
+                        float fade = Math.min(1f, (float) age / FADE_STEPS);
+                        float alpha = MAX_ALPHA - (MAX_ALPHA - MIN_ALPHA) * fade;
+                        paint.setColor(Color.argb(Math.round(alpha * 255),
+                                Color.red(color), Color.green(color), Color.blue(color)));
+
+                        double cellSouth = row * CoverageGrid.CELL_DEGREES;
+                        double cellWest = col * CoverageGrid.CELL_DEGREES;
+                        float left = (float) (mercatorX(cellWest) * scale - originX);
+                        float right = (float) (mercatorX(cellWest + CoverageGrid.CELL_DEGREES)
+                                * scale - originX);
+                        float top = (float) (mercatorY(cellSouth + CoverageGrid.CELL_DEGREES)
+                                * scale - originY);
+                        float bottom = (float) (mercatorY(cellSouth) * scale - originY);
+                        canvas[0].drawRect(left, top, right, bottom, paint);
+                    }
+                });
+
+        if (bitmap[0] == null) {
+            return NO_TILE;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap[0].compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap[0].recycle();
+        return new Tile(TILE_SIZE, TILE_SIZE, out.toByteArray());
+    }
+
+    /**
+     * Drops the cached tiles covering the changed cells, at every zoom level.
+     */
+    @Override
+    public void onCellsChanged(int minRow, int maxRow, int minCol, int maxCol) {
+        double south = minRow * CoverageGrid.CELL_DEGREES;
+        double north = (maxRow + 1) * CoverageGrid.CELL_DEGREES;
+        double west = minCol * CoverageGrid.CELL_DEGREES;
+        double east = (maxCol + 1) * CoverageGrid.CELL_DEGREES;
+        synchronized (this) {
+            for (int i = 0; i < caches.size(); i++) {
+                int zoom = caches.keyAt(i);
+                LruCache<Long, CachedTile> cache = caches.valueAt(i);
+                double tiles = 1 << zoom;
+                int minX = (int) Math.floor(mercatorX(west) * tiles);
+                int maxX = (int) Math.floor(mercatorX(east) * tiles);
+                int minY = (int) Math.floor(mercatorY(north) * tiles);
+                int maxY = (int) Math.floor(mercatorY(south) * tiles);
+                for (int x = minX; x <= maxX; x++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        cache.remove(((long) x << 32) | (y & 0xffffffffL));
+                    }
+                }
+            }
+        }
+        changed.set(true);
+    }
+
+    /**
+     * Tells the caller whether the map should refetch its tiles, either because cells changed or
+     * because everything got a step older, and resets the flag.
+     *
+     * @return Whether to call TileOverlay.clearTileCache().
+     */
+    public boolean takeChanged() {
+        long step = clock.currentTimeMillis() / CoverageGrid.FRESHNESS_STEP;
+        boolean aged = step != shownStep;
+        shownStep = step;
+        return changed.getAndSet(false) || aged;
+    }
+
+    /**
+     * Stops listening to the grid.
+     */
+    public void release() {
+        grid.setListener(null);
+    }
+
+    /**
+     * @return How far across the world map a longitude is, from 0 to 1.
+     */
+    private static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * @return How far down the world map a latitude is, from 0 at the top to 1 at the bottom.
+     */
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static double tileLongitude(int x, int zoom) {
+        return (double) x / (1 << zoom) * 360 - 180;
+    }
+
+    private static double tileLatitude(int y, int zoom) {
+        double n = Math.PI - 2 * Math.PI * y / (1 << zoom);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /**
+     * A rendered tile and the freshness step it was drawn in.
+     */
+    private static class CachedTile {
+
+        private final Tile tile;
+
+        private final long step;
+
+        CachedTile(Tile tile, long step) {
+            this.tile = tile;
+            this.step = step;
+        }
+    }
+}
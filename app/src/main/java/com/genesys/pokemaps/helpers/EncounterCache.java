@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.map.pokemon.CatchablePokemon;
+import com.pokegoapi.api.map.pokemon.encounter.EncounterResult;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 2:30 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Encounters catchable pokemon ahead of time, as soon as they show up on the map, so catching
+ * one only takes the throw. Results are kept per encounter id until the pokemon despawns, and a
+ * pokemon whose encounter failed or that we've already thrown at is never encountered again.
+ */
+public class EncounterCache {
+
+    private static final String TAG = "EncounterCache";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * The most encounters we'll have running at once.
+     */
+    private static final int MAX_CONCURRENT_ENCOUNTERS = 2;
+
+    /**
+     * How many of the best candidates in a snapshot we encounter ahead of time.
+     */
+    private static final int PREFETCH_COUNT = 3;
+
+    /**
+     * The shortest time between an encounter finishing and our first throw, in milliseconds. A
+     * human takes at least this long, and throwing sooner gets noticed.
+     */
+    private static final long MIN_THROW_DELAY = 2000;
+
+    /**
+     * How long we keep a pokemon around if the server didn't say when it despawns.
+     */
+    private static final long DEFAULT_LIFETIME = 15 * 60 * 1000;
+
+    /**
+     * The rank of a pokemon that wasn't in the latest snapshot.
+     */
+    private static final int UNRANKED = Integer.MAX_VALUE;
+
+    /**
+     * Everything we know about, keyed by encounter id.
+     */
+    private final Map<Long, Entry> entries = new HashMap<>();
+
+    /**
+     * Runs the encounter requests.
+     */
+    private final GameExecutor executor = new GameExecutor(TAG, MAX_CONCURRENT_ENCOUNTERS);
+
+    /**
+     * Paces the encounter requests.
+     */
+    private final RequestGovernor governor;
+
+    private final Clock clock;
+
+    /**
+     * Creates a new encounter cache.
+     *
+     * @param governor Paces the encounter requests.
+     * @param clock    Tells us when pokemon despawn and when we may throw.
+     */
+    public EncounterCache(RequestGovernor governor, Clock clock) {
+        this.governor = governor;
+        this.clock = clock;
+    }
+
+    /**
+     * Forgets despawned pokemon and starts encounters for the best few candidates we haven't
+     * encountered yet.
+     *
+     * @param candidates The catchable pokemon in the latest snapshot, best first.
+     */
+    public synchronized void prefetch(List<CatchablePokemon> candidates) {
+        long now = clock.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+            }
+        }
+
+        // Anything missing from this snapshot is out of reach until it shows up again.
+        for (Entry entry : entries.values()) {
+            entry.rank = UNRANKED;
+        }
+
+        int started = 0;
+        for (int rank = 0; rank < candidates.size(); rank++) {
+            final CatchablePokemon pokemon = candidates.get(rank);
+            Entry entry = entries.get(pokemon.getEncounterId());
+            if (entry != null) {
+                entry.rank = rank;
+                continue;
+            }
+            if (started == PREFETCH_COUNT) {
+                continue;
+            }
+            entry = new Entry(pokemon, rank, now);
+            entry.future = executor.submit(new Callable<EncounterResult>() {
+                @Override
+                public EncounterResult call() throws Exception {
+                    governor.acquire(RequestGovernor.RequestClass.ENCOUNTER);
+                    return pokemon.encounterPokemon();
+                }
+            }, null);
+            entries.put(pokemon.getEncounterId(), entry);
+            started++;
+        }
+    }
+
+    /**
+     * Gets the best ranked pokemon that's been successfully encountered and not thrown at yet.
+     * If none is ready but one is still being encountered, waits for it.
+     *
+     * @param timeout How long to wait for an encounter in flight, in milliseconds.
+     * @return The entry to throw at, or null if there's nothing to catch.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public Entry next(long timeout) throws InterruptedException {
+        Entry waitFor;
+        synchronized (this) {
+            Entry ready = null;
+            waitFor = null;
+            for (Entry entry : entries.values()) {
+                if (entry.state == State.PENDING && entry.future.isDone()) {
+                    complete(entry);
+                }
+                if (entry.rank == UNRANKED) {
+                    continue;
+                }
+                if (entry.state == State.READY && (ready == null || entry.rank < ready.rank)) {
+                    ready = entry;
+                } else if (entry.state == State.PENDING
+                        && (waitFor == null || entry.rank < waitFor.rank)) {
+                    waitFor = entry;
+                }
+            }
+            if (ready != null) {
+                ready.state = State.THROWN;
+                return ready;
+            }
+        }
+
+        if (waitFor == null) {
+            return null;
+        }
+        try {
+            waitFor.future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            // Handled by complete() below, or picked up next tick.
+        }
+        synchronized (this) {
+            if (waitFor.state == State.PENDING && waitFor.future.isDone()) {
+                complete(waitFor);
+            }
+            if (waitFor.state == State.READY) {
+                waitFor.state = State.THROWN;
+                return waitFor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves a finished encounter to READY or FAILED.
+     */
+    private void complete(Entry entry) {
+        try {
+            EncounterResult result = entry.future.get();
+            if (result != null && result.wasSuccessful()) {
+                entry.result = result;
+                entry.readyAt = clock.currentTimeMillis() + MIN_THROW_DELAY;
+                entry.state = State.READY;
+                return;
+            }
+            LOG.i("Encounter with {} failed: {}", entry.pokemon.getPokemonId(),
+                    result == null ? "no result" : result.getStatus());
+        } catch (ExecutionException | InterruptedException | CancellationException e) {
+            LOG.w(e, "Encounter with {} failed", entry.pokemon.getPokemonId());
+        }
+        entry.state = State.FAILED;
+    }
+
+    /**
+     * @return How many pokemon the cache is tracking.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private enum State {
+        /**
+         * The encounter request is running.
+         */
+        PENDING,
+        /**
+         * Encountered and waiting to be thrown at.
+         */
+        READY,
+        /**
+         * The encounter failed. Skipped until despawn.
+         */
+        FAILED,
+        /**
+         * Already handed out for a catch. Skipped until despawn.
+         */
+        THROWN
+    }
+
+    /**
+     * A pokemon we've encountered, or tried to.
+     */
+    public static class Entry {
+
+        private final CatchablePokemon pokemon;
+
+        private final long expiresAt;
+
+        private Future<EncounterResult> future;
+
+        private EncounterResult result;
+
+        private State state = State.PENDING;
+
+        /**
+         * The pokemon's position in the latest snapshot. Lower is better.
+         */
+        private int rank;
+
+        /**
+         * The earliest time we may throw, in epoch milliseconds.
+         */
+        private long readyAt;
+
+        Entry(CatchablePokemon pokemon, int rank, long now) {
+            this.pokemon = pokemon;
+            this.rank = rank;
+            long expiration = pokemon.getExpirationTimestampMs();
+            expiresAt = expiration > now ? expiration : now + DEFAULT_LIFETIME;
+        }
+
+        public CatchablePokemon getPokemon() {
+            return pokemon;
+        }
+
+        public EncounterResult getResult() {
+            return result;
+        }
+
+        /**
+         * @param now The current time, in epoch milliseconds.
+         * @return How many milliseconds to wait before throwing, or 0 if we can throw now.
+         */
+        public long getThrowDelay(long now) {
+            return Math.max(0, readyAt - now);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 9:40 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Everything we've discovered on the map, kept as bare numbers. The library's Pokestop and
+ * CatchablePokemon objects each hold whole protobuf messages and a reference to our session;
+ * all we need to remember about them is where they are, what they are and when they go away.
+ * Entities live in parallel primitive arrays, packed with no gaps, and an open-addressing table
+ * maps ids to their slot, so the store costs around 60 bytes per entity and a long session adds
+ * no garbage for the collector beyond the occasional array growth.
+ * <p>
+ * Slots move when entities are removed, so only hold on to one inside a synchronized block on
+ * the store.
+ */
+public class EntityStore {
+
+    /**
+     * Stored as the expiry of entities that never expire.
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * Stored as the species of entities that aren't pokemon.
+     */
+    public static final int NO_SPECIES = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final GameEvent.EntityType[] TYPES = GameEvent.EntityType.values();
+
+    /* Entities, packed into slots 0 to size - 1. */
+    private long[] ids;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int[] species;
+    private long[] expiries;
+    private byte[] types;
+    private byte[] flags;
+
+    private int size;
+
+    /**
+     * The id table. Linear probing; a key's entry in slots is its slot plus one, or 0 if the
+     * table entry is empty. Never more than half full.
+     */
+    private long[] keys;
+    private int[] slots;
+
+    public EntityStore() {
+        ids = new long[INITIAL_CAPACITY];
+        latitudes = new double[INITIAL_CAPACITY];
+        longitudes = new double[INITIAL_CAPACITY];
+        species = new int[INITIAL_CAPACITY];
+        expiries = new long[INITIAL_CAPACITY];
+        types = new byte[INITIAL_CAPACITY];
+        flags = new byte[INITIAL_CAPACITY];
+        keys = new long[INITIAL_CAPACITY * 2];
+        slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Turns a fort id ("0123456789abcdef0123456789abcdef.16") into a long id. Fort ids are 128-bit,
+     * so this is a 64-bit FNV-1a hash; two forts sharing one is vanishingly unlikely.
+     */
+    public static long fortId(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds an entity, or updates it if we already have one with this id.
+     *
+     * @param type      What it is.
+     * @param id        Its id. Encounter ids for pokemon, fortId() for forts.
+     * @param latitude  Where it is.
+     * @param longitude Where it is.
+     * @param species   Its pokedex number, or NO_SPECIES.
+     * @param expiresAt When it goes away, in epoch milliseconds, or NEVER.
+     * @param flags     Whatever bits the caller wants to keep with it.
+     * @return Whether it's new.
+     */
+    public synchronized boolean put(GameEvent.EntityType type, long id, double latitude,
+                                    double longitude, int species, long expiresAt, int flags) {
+        int index = find(id);
+        boolean added = slots[index] == 0;
+        int slot;
+        if (added) {
+            if (size == ids.length) {
+                grow();
+                index = find(id);
+            }
+            slot = size++;
+            keys[index] = id;
+            slots[index] = slot + 1;
+            ids[slot] = id;
+        } else {
+            slot = slots[index] - 1;
+        }
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        this.species[slot] = species;
+        expiries[slot] = expiresAt;
+        types[slot] = (byte) type.ordinal();
+        this.flags[slot] = (byte) flags;
+        return added;
+    }
+
+    /**
+     * Removes an entity.
+     *
+     * @param id Its id.
+     * @return Whether we had it.
+     */
+    public synchronized boolean remove(long id) {
+        int index = find(id);
+        if (slots[index] == 0) {
+            return false;
+        }
+        removeSlot(slots[index] - 1, index);
+        return true;
+    }
+
+    /**
+     * Removes every entity that has expired, telling the visitor about each one first.
+     *
+     * @param now     The current time, in epoch milliseconds.
+     * @param visitor Told about each entity just before it's removed. May be null.
+     * @return How many entities were removed.
+     */
+    public synchronized int removeExpired(long now, Visitor visitor) {
+        int removed = 0;
+        for (int slot = size - 1; slot >= 0; slot--) {
+            if (expiries[slot] <= now) {
+                if (visitor != null) {
+                    visitor.visit(this, slot);
+                }
+                removeSlot(slot, find(ids[slot]));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Hands every entity of a type to the visitor. The store is locked while visiting, so keep
+     * the visitor quick and don't add or remove entities from it.
+     *
+     * @param type    The type to visit, or null for every type.
+     * @param visitor The visitor.
+     */
+    public synchronized void visit(GameEvent.EntityType type, Visitor visitor) {
+        for (int slot = 0; slot < size; slot++) {
+            if (type == null || types[slot] == type.ordinal()) {
+                visitor.visit(this, slot);
+            }
+        }
+    }
+
+    public synchronized boolean contains(long id) {
+        return slots[find(id)] != 0;
+    }
+
+    /**
+     * @return How many entities we're holding.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return How many entities of a type we're holding.
+     */
+    public synchronized int count(GameEvent.EntityType type) {
+        int count = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (types[slot] == type.ordinal()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* Slot getters. Only valid while holding the store's lock, e.g. inside a visitor. */
+
+    public long getId(int slot) {
+        return ids[slot];
+    }
+
+    public GameEvent.EntityType getType(int slot) {
+        return TYPES[types[slot]];
+    }
+
+    public double getLatitude(int slot) {
+        return latitudes[slot];
+    }
+
+    public double getLongitude(int slot) {
+        return longitudes[slot];
+    }
+
+    public int getSpecies(int slot) {
+        return species[slot];
+    }
+
+    public long getExpiry(int slot) {
+        return expiries[slot];
+    }
+
+    public int getFlags(int slot) {
+        return flags[slot];
+    }
+
+    /**
+     * @return Where an id is in the table, or the empty entry where it would go.
+     */
+    private int find(long id) {
+        int mask = keys.length - 1;
+        int index = mix(id) & mask;
+        while (slots[index] != 0 && keys[index] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Spreads an id's bits so sequential ids don't cluster in the table.
+     */
+    private static int mix(long id) {
+        id *= 0x9e3779b97f4a7c15L;
+        return (int) (id ^ (id >>> 32));
+    }
+
+    /**
+     * Removes the entity in a slot, whose table entry is at index. The last entity moves into the
+     * hole so the arrays stay packed.
+     */
+    private void removeSlot(int slot, int index) {
+        deleteEntry(index);
+        int last = --size;
+        if (slot != last) {
+            ids[slot] = ids[last];
+            latitudes[slot] = latitudes[last];
+            longitudes[slot] = longitudes[last];
+            species[slot] = species[last];
+            expiries[slot] = expiries[last];
+            types[slot] = types[last];
+            flags[slot] = flags[last];
+            slots[find(ids[slot])] = slot + 1;
+        }
+    }
+
+    /**
+     * Empties a table entry, shifting later entries of the same probe run back so lookups never
+     * stop early at the hole.
+     */
+    private void deleteEntry(int index) {
+        int mask = keys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (slots[next] != 0) {
+            int home = mix(keys[next]) & mask;
+            // Move it back if its home isn't in the cyclic range (hole, next].
+            boolean movable = hole <= next ? home <= hole || home > next : home <= hole && home > next;
+            if (movable) {
+                keys[hole] = keys[next];
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = 0;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        species = Arrays.copyOf(species, capacity);
+        expiries = Arrays.copyOf(expiries, capacity);
+        types = Arrays.copyOf(types, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+
+        keys = new long[capacity * 2];
+        slots = new int[capacity * 2];
+        for (int slot = 0; slot < size; slot++) {
+            int index = find(ids[slot]);
+            keys[index] = ids[slot];
+            slots[index] = slot + 1;
+        }
+    }
+
+    /**
+     * Receives entities from visit() and removeExpired().
+     */
+    public interface Visitor {
+
+        /**
+         * @param store The store, for reading the entity's fields.
+         * @param slot  The entity's slot.
+         */
+        void visit(EntityStore store, int slot);
+    }
+}
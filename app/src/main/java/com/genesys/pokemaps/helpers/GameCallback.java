@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 9:02 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Receives the outcome of an asynchronous GameManager operation. Both methods are called on the
+ * GameExecutor worker thread that ran the operation, so anything touching views has to hop back
+ * to the UI thread itself (runOnUiThread or similar).
+ *
+ * @param <T> The type of result the operation produces.
+ */
+public interface GameCallback<T> {
+
+    /**
+     * Called once the operation has completed without throwing.
+     *
+     * @param result The operation's result. May be null if the operation had nothing to return.
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called if the operation threw, or if it was rejected because the executor is saturated or
+     * shut down.
+     *
+     * @param e The exception that stopped the operation.
+     */
+    void onFailure(Exception e);
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.map.fort.PokestopLootResult;
+import com.pokegoapi.api.map.pokemon.NearbyPokemon;
+
+import java.util.List;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 12:15 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Something that happened in the game that the UI may want to show. GameManager posts these to
+ * its GameEventBus from whatever thread it's working on; listeners get them in batches on the
+ * main thread.
+ */
+public abstract class GameEvent {
+
+    /**
+     * The kinds of event. Handy for switching over a batch without a pile of instanceof checks.
+     */
+    public enum Type {
+        ENTITY_ADDED,
+        ENTITY_REMOVED,
+        NEARBY_UPDATED,
+        CATCH_RESULT,
+        LOOT_RESULT,
+        ERROR
+    }
+
+    /**
+     * The kinds of thing that can appear on or disappear from the map.
+     */
+    public enum EntityType {
+        POKESTOP,
+        POKEMON,
+        GYM
+    }
+
+    private final Type type;
+
+    GameEvent(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * A pokestop, pokemon or gym that was discovered or has gone away.
+     */
+    public static class Entity extends GameEvent {
+
+        private final EntityType entityType;
+
+        private final String id;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        Entity(boolean added, EntityType entityType, String id, double latitude, double longitude) {
+            super(added ? Type.ENTITY_ADDED : Type.ENTITY_REMOVED);
+            this.entityType = entityType;
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public EntityType getEntityType() {
+            return entityType;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    /**
+     * The latest list of nearby pokemon, and where we think they are. Only the newest one in a
+     * batch matters, so the bus collapses these.
+     */
+    public static class Nearby extends GameEvent {
+
+        private final List<NearbyPokemon> nearbyPokemon;
+
+        private final List<NearbyTracker.Estimate> estimates;
+
+        Nearby(List<NearbyPokemon> nearbyPokemon, List<NearbyTracker.Estimate> estimates) {
+            super(Type.NEARBY_UPDATED);
+            this.nearbyPokemon = nearbyPokemon;
+            this.estimates = estimates;
+        }
+
+        public List<NearbyPokemon> getNearbyPokemon() {
+            return nearbyPokemon;
+        }
+
+        /**
+         * @return The estimated positions of the nearby pokemon we've seen from enough spots.
+         */
+        public List<NearbyTracker.Estimate> getEstimates() {
+            return estimates;
+        }
+    }
+
+    /**
+     * The outcome of trying to catch a pokemon.
+     */
+    public static class CatchResult extends GameEvent {
+
+        private final GameManager.Catch pokemonCatch;
+
+        CatchResult(GameManager.Catch pokemonCatch) {
+            super(Type.CATCH_RESULT);
+            this.pokemonCatch = pokemonCatch;
+        }
+
+        public GameManager.Catch getCatch() {
+            return pokemonCatch;
+        }
+    }
+
+    /**
+     * The outcome of looting a pokestop.
+     */
+    public static class LootResult extends GameEvent {
+
+        private final PokestopLootResult lootResult;
+
+        LootResult(PokestopLootResult lootResult) {
+            super(Type.LOOT_RESULT);
+            this.lootResult = lootResult;
+        }
+
+        public PokestopLootResult getLootResult() {
+            return lootResult;
+        }
+    }
+
+    /**
+     * Something went wrong that the user should hear about.
+     */
+    public static class Error extends GameEvent {
+
+        private final String message;
+
+        private final Exception exception;
+
+        public Error(String message, Exception exception) {
+            super(Type.ERROR);
+            this.message = message;
+            this.exception = exception;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 12:30 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Carries GameEvents from the scan threads to the UI. Events posted between two frames are
+ * gathered up and handed to listeners as one batch on the main thread, right before the next
+ * frame is drawn, so a busy tick costs the UI thread one callback instead of dozens.
+ */
+public class GameEventBus {
+
+    /**
+     * How long to wait before delivering on devices without Choreographer, in milliseconds.
+     * Roughly one frame.
+     */
+    private static final long FRAME_DELAY = 16;
+
+    /**
+     * Our listeners. Only touched on the main thread, but copy-on-write so a listener can
+     * unregister itself while handling a batch.
+     */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Events waiting for the next frame. Guarded by this.
+     */
+    private List<GameEvent> pending = new ArrayList<>();
+
+    /**
+     * Whether a delivery is already scheduled. Guarded by this.
+     */
+    private boolean scheduled;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Delivers on the main thread; used below Jelly Bean.
+     */
+    private final Runnable deliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Delivers right before the next frame; used on Jelly Bean and up.
+     */
+    private Object frameCallback;
+
+    /**
+     * Queues an event for delivery with the next frame. Safe to call from any thread. Events
+     * posted while nobody is listening are dropped, so a background scan costs the UI thread
+     * nothing.
+     *
+     * @param event The event to deliver.
+     */
+    public void post(GameEvent event) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (event.getType() == GameEvent.Type.NEARBY_UPDATED) {
+                // Only the newest nearby list is worth drawing.
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    if (pending.get(i).getType() == GameEvent.Type.NEARBY_UPDATED) {
+                        pending.remove(i);
+                    }
+                }
+            }
+            pending.add(event);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFrame();
+            }
+        });
+    }
+
+    /**
+     * Asks to be called back on the next frame. Must run on the main thread, since that's the
+     * thread whose Choreographer we want.
+     */
+    private void scheduleFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            handler.postDelayed(deliverRunnable, FRAME_DELAY);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (frameCallback == null) {
+            frameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    deliver();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+
+    /**
+     * Hands everything that's pending to our listeners.
+     */
+    private void deliver() {
+        List<GameEvent> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            scheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch = Collections.unmodifiableList(batch);
+        for (Listener listener : listeners) {
+            listener.onGameEvents(batch);
+        }
+    }
+
+    /**
+     * Adds a listener. Events posted before this call are not replayed.
+     *
+     * @param listener The listener to be added.
+     */
+    public void register(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to be removed.
+     */
+    public void unregister(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Whether anyone is listening. Handy for skipping work nobody will see.
+     */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Implemented by anything that wants to hear about game events.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread with every event posted since the last frame, oldest first.
+         *
+         * @param events The batch of events. Don't hold on to or modify it.
+         */
+        void onGameEvents(List<GameEvent> events);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 9:10 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * A small, bounded thread pool that runs all of GameManager's network work. Every blocking
+ * Pokemon GO call goes through here instead of through hand-made threads, so the number of
+ * threads hitting the servers at once is capped and nothing leaks past shutdown().
+ */
+public class GameExecutor {
+
+    /**
+     * The default number of worker threads. Pokemon GO requests are network bound, so a handful
+     * of threads is plenty; more would only get us rate limited.
+     */
+    private static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * How many tasks may be waiting for a worker before new submissions are rejected.
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * How long idle workers stay alive before being reclaimed, in seconds.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The pool doing the actual work.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a new executor with the default pool size whose threads are named after the given
+     * prefix.
+     *
+     * @param name Prefix used for worker thread names. Handy when reading stack traces.
+     */
+    public GameExecutor(String name) {
+        this(name, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Creates a new executor whose threads are named after the given prefix.
+     *
+     * @param name     Prefix used for worker thread names. Handy when reading stack traces.
+     * @param poolSize The maximum number of tasks that run at once.
+     */
+    public GameExecutor(final String name, int poolSize) {
+        executor = new ThreadPoolExecutor(poolSize, poolSize,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                        // Never keep the process alive just for a pending request.
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task on a worker thread and reports its outcome to the callback.
+     *
+     * @param task     The blocking work to run.
+     * @param callback Notified with the result or failure. May be null.
+     * @param <T>      The type of result the task produces.
+     * @return A Future for the task. If the task was rejected, the Future has already failed
+     * with a RejectedExecutionException as its cause, and the callback has been told.
+     */
+    public <T> Future<T> submit(Callable<T> task, GameCallback<T> callback) {
+        CallbackTask<T> future = new CallbackTask<>(task, callback);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            // Fail the future so callers waiting on it don't hang; done() tells the callback.
+            future.reject(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the task on a worker thread without reporting a result.
+     *
+     * @param task The work to run.
+     * @return A Future that completes when the task does.
+     */
+    public Future<?> submit(Runnable task) {
+        return submit(Executors.<Void>callable(task, null), null);
+    }
+
+    /**
+     * @return The number of tasks waiting for a free worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting work and interrupts anything still running. Tasks that were still waiting
+     * for a worker are cancelled, so nobody waits on them forever. Safe to call more than once.
+     */
+    public void shutdown() {
+        for (Runnable task : executor.shutdownNow()) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    /**
+     * @return Whether shutdown() has been called.
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * A task that reports its outcome to a callback when it finishes, and can be failed from
+     * outside when the pool won't take it.
+     */
+    private static class CallbackTask<T> extends FutureTask<T> {
+
+        private final GameCallback<T> callback;
+
+        CallbackTask(Callable<T> task, GameCallback<T> callback) {
+            super(task);
+            this.callback = callback;
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                callback.onSuccess(get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    callback.onFailure((Exception) cause);
+                } else {
+                    callback.onFailure(new RuntimeException(cause));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -20,20 +20,20 @@ package com.genesys.pokemaps.helpers;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
-import android.util.Log;
 
+import com.genesys.pokemaps.BuildConfig;
 import com.genesys.pokemaps.R;
-import com.genesys.pokemaps.Utils;
 import com.google.android.gms.maps.model.LatLng;
 import com.pokegoapi.api.PokemonGo;
-import com.pokegoapi.api.gym.Gym;
+import com.pokegoapi.api.inventory.Item;
+import com.pokegoapi.api.inventory.ItemBag;
+import com.pokegoapi.api.inventory.Pokedex;
 import com.pokegoapi.api.map.fort.Pokestop;
 import com.pokegoapi.api.map.fort.PokestopLootResult;
 import com.pokegoapi.api.map.pokemon.CatchResult;
 import com.pokegoapi.api.map.pokemon.CatchablePokemon;
 import com.pokegoapi.api.map.pokemon.EvolutionResult;
 import com.pokegoapi.api.map.pokemon.NearbyPokemon;
-import com.pokegoapi.api.map.pokemon.encounter.EncounterResult;
 import com.pokegoapi.api.pokemon.Pokemon;
 import com.pokegoapi.api.pokemon.PokemonMetaRegistry;
 import com.pokegoapi.api.settings.CatchOptions;
@@ -42,13 +42,26 @@ import com.pokegoapi.exceptions.LoginFailedException;
 import com.pokegoapi.exceptions.NoSuchItemException;
 import com.pokegoapi.exceptions.RemoteServerException;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import POGOProtos.Enums.PokemonIdOuterClass;
 import POGOProtos.Inventory.Item.ItemIdOuterClass;
 import POGOProtos.Networking.Responses.CatchPokemonResponseOuterClass;
+import POGOProtos.Networking.Responses.FortSearchResponseOuterClass.FortSearchResponse;
 import POGOProtos.Networking.Responses.ReleasePokemonResponseOuterClass;
 import okhttp3.OkHttpClient;
 
@@ -61,61 +74,217 @@ import okhttp3.OkHttpClient;
 public class GameManager {
 
     private static final String TAG = "GameManager";
+    private static final Logger LOG = Logger.get(TAG);
+    /**
+     * The most pokestops we'll loot at the same time.
+     */
+    private static final int MAX_CONCURRENT_LOOTS = 3;
+    /**
+     * How long a catch will wait for a prefetched encounter to come back, in milliseconds.
+     */
+    private static final long ENCOUNTER_TIMEOUT = 5000;
+    /**
+     * How likely we want a catch to be before we pick the cheapest balls that get us there.
+     */
+    private static final double CATCH_TARGET = 0.8;
+    /**
+     * The same, for pokemon missing from our pokedex.
+     */
+    private static final double POKEDEX_NEW_CATCH_TARGET = 0.95;
+    /**
+     * The most balls we throw at one pokemon when the policy doesn't limit them.
+     */
+    private static final int UNLIMITED_THROWS = 30;
+    /**
+     * Where the catch estimator keeps what it has learned, in our files directory.
+     */
+    private static final String CATCH_STATS_FILE = "catch_stats.bin";
+    /**
+     * How often what the catch estimator has learned is written to disk, in milliseconds.
+     * ScanService saves the rest when it stops.
+     */
+    private static final long CATCH_STATS_SAVE_INTERVAL = 5 * 60 * 1000;
+    /**
+     * Where we last scanned, kept in our preferences as the bits of each double, for the
+     * warm-up scan next login.
+     */
+    private static final String LAST_LATITUDE_KEY = "last_scan_latitude";
+    private static final String LAST_LONGITUDE_KEY = "last_scan_longitude";
+    /**
+     * How far we move before the last scanned position is saved again, in meters.
+     */
+    private static final double POSITION_SAVE_DISTANCE = 50;
+    /**
+     * How far the first real fix can be from the warm-up scan before what the warm-up found
+     * nearby stops being ours, in meters. About the nearby pokemon radius.
+     */
+    private static final double WARM_UP_TOLERANCE = 200;
     /**
      * The current instance.
      */
     private static GameManager instance;
+    /**
+     * Where all the game logic gets the time from.
+     */
+    private final Clock clock;
     /**
      * The login handler.
      */
     private OkHttpClient client;
     /**
-     * Our Pokemon GO object. This is what will be doing most of the work.
+     * Runs every blocking Pokemon GO call made through the async methods below, including login.
      */
-    private PokemonGo go;
+    private final GameExecutor executor;
+    /**
+     * Our Pokemon GO object. This is what will be doing most of the work. Volatile because it's
+     * swapped out by login on an executor thread and read by every other thread.
+     */
+    private volatile PokemonGo go;
     /**
      * Our preferences. Self-explanatory.
      */
     private SharedPreferences preferences;
     /**
-     * Our LoginListener instance. If this field is not null, loginListener.onLoginCompleted() will
-     * be called upon login completion.
+     * Our LoginListener instance. If it's set and still around, loginListener.onLoginCompleted()
+     * will be called upon login completion. Held weakly because listeners are usually Activities
+     * and we live as long as the app does.
+     */
+    private volatile WeakReference<LoginListener> loginListener = new WeakReference<>(null);
+    /**
+     * Every pokestop and catchable pokemon we've discovered, as bare ids, positions and expiry
+     * times. The library's objects are let go of as soon as we've copied those out.
+     */
+    private final EntityStore entityStore;
+    /**
+     * Every gym we've discovered, with team, prestige and defenders.
+     */
+    private final GymCache gymCache;
+    /**
+     * Works out where nearby pokemon are from their distances over several ticks.
+     */
+    private final NearbyTracker nearbyTracker;
+    /**
+     * Where and when we've scanned.
+     */
+    private final CoverageGrid coverageGrid;
+    /**
+     * Tracks pokestop cooldowns and does the actual looting.
      */
-    private LoginListener loginListener;
+    private final LootEngine lootEngine;
     /**
-     * List of discovered pokestops.
+     * Encounters catch candidates ahead of time and remembers the results.
      */
-    private List<Pokestop> pokestops;
+    private final EncounterCache encounterCache;
     /**
-     * List of discovered catchable pokemon.
+     * Tells the UI about discoveries, catches, loots and errors.
      */
-    private List<CatchablePokemon> catchablePokemon;
+    private final GameEventBus eventBus;
     /**
-     * Our options for catching pokemon intelligently.
+     * True while farmXP() or cleanUpPokebank() is running, so two runs never transfer from the
+     * same bank.
      */
-    private CatchOptions options;
+    private final AtomicBoolean farming = new AtomicBoolean(false);
     /**
-     * List of discovered gyms.
+     * Decides what we catch and what we spend on it. Volatile so it can be swapped while the
+     * scan loop is running; each catch reads it once.
      */
-    private List<Gym> gyms;
+    private volatile CatchPolicy catchPolicy = CatchPolicy.defaults();
+    /**
+     * Records or replays all our traffic in debug builds, null otherwise.
+     */
+    private final TrafficInterceptor trafficInterceptor;
+    /**
+     * Paces every request we make, across the scan loop, farming and cleanups.
+     */
+    private final RequestGovernor governor;
+    /**
+     * Recycles surplus items so the bag never stops us looting.
+     */
+    private final InventoryManager inventoryManager;
+    /**
+     * Our pokebank, sorted by species and CP, with candy counts.
+     */
+    private final PokebankIndex pokebankIndex = new PokebankIndex();
+    /**
+     * Transfers pokemon in bulk.
+     */
+    private final TransferPipeline transferPipeline;
+    /**
+     * How many catchable pokemon the last catchPokemon() call saw.
+     */
+    private volatile int catchableSeen;
+    /**
+     * Picks the balls and berries we throw, from how previous throws went.
+     */
+    private final CatchEstimator catchEstimator;
+    /**
+     * When we last had the catch statistics saved, in epoch milliseconds.
+     */
+    private final AtomicLong catchStatsSavedAt = new AtomicLong();
+    /**
+     * Guards the switch from the warm-up position to real fixes, so a warm-up can never move us
+     * back after a real fix has come in.
+     */
+    private final Object positionLock = new Object();
+    /**
+     * Whether we've had a real position since logging in. Guarded by positionLock.
+     */
+    private boolean positioned;
+    /**
+     * Where the warm-up scan ran, or null if it didn't. Guarded by positionLock.
+     */
+    private LatLng warmUpPosition;
+    /**
+     * The last scanned position we saved, or null if we haven't saved one this session.
+     * Guarded by positionLock.
+     */
+    private LatLng savedPosition;
+    /**
+     * Streams our discoveries to the rest of the team, once started.
+     */
+    private final SpawnFeedServer spawnFeed;
 
     /**
      * Creates a new GameManager object and sets up the various Pokemon GO components.
+     *
+     * @param clock Where all the game logic gets the time from.
      */
-    private GameManager(Context context) {
+    private GameManager(Context context, Clock clock) {
+        this.clock = clock;
+        governor = new RequestGovernor(clock);
+        inventoryManager = new InventoryManager(governor);
+        transferPipeline = new TransferPipeline(pokebankIndex, governor, clock);
+
         // Build our login manager and set a login timeout of 10 seconds.
-        client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .build();
+        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS);
+        if (BuildConfig.DEBUG) {
+            // Everything the library sends goes through this client, so this sees all of it.
+            trafficInterceptor = new TrafficInterceptor();
+            trafficInterceptor.configure(context.getFilesDir());
+            clientBuilder.addInterceptor(trafficInterceptor);
+        } else {
+            trafficInterceptor = null;
+        }
+        client = clientBuilder.build();
 
         // Get our preferences from the Activity context.
         preferences = context.getSharedPreferences(context.getString(R.string.preference_file_key),
                 Context.MODE_PRIVATE);
 
         // Initialize our arrays.
-        pokestops = new ArrayList<>();
-        catchablePokemon = new ArrayList<>();
-        gyms = new ArrayList<>();
+        entityStore = new EntityStore();
+        gymCache = new GymCache(governor);
+        nearbyTracker = new NearbyTracker(clock);
+        coverageGrid = new CoverageGrid();
+
+        executor = new GameExecutor(TAG);
+        lootEngine = new LootEngine(MAX_CONCURRENT_LOOTS, governor, clock);
+        eventBus = new GameEventBus();
+        encounterCache = new EncounterCache(governor, clock);
+        spawnFeed = new SpawnFeedServer(entityStore, clock);
+        lootEngine.setCooldownListener(spawnFeed);
+        catchEstimator = new CatchEstimator(new File(context.getFilesDir(), CATCH_STATS_FILE));
     }
 
     /**
@@ -125,10 +294,28 @@ public class GameManager {
      *
      * @return GameManager instance.
      */
-    public static GameManager getInstance(Context context) {
+    public static synchronized GameManager getInstance(Context context) {
         if (instance == null) {
-            instance = new GameManager(context);
+            // We live as long as the app, so never hang on to an Activity.
+            instance = new GameManager(context.getApplicationContext(), Clock.SYSTEM);
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the instance on a clock other than the real one, so everything timed in the game,
+     * from the scan loop to request pacing, runs on it. Has to come before the first
+     * getInstance(), which returns this instance from then on.
+     *
+     * @param clock Where all the game logic gets the time from.
+     * @return GameManager instance.
+     * @throws IllegalStateException If the instance has already been created.
+     */
+    public static synchronized GameManager init(Context context, Clock clock) {
+        if (instance != null) {
+            throw new IllegalStateException("GameManager already exists");
         }
+        instance = new GameManager(context.getApplicationContext(), clock);
         return instance;
     }
 
@@ -139,16 +326,25 @@ public class GameManager {
      * @param password PTC password.
      */
     public void loginPTC(final String username, final String password) {
-        new Thread(new Runnable() {
+        executor.submit(new Runnable() {
             @Override
             public void run() {
                 LoginResult result = new LoginResult();
                 try {
-                    go = new PokemonGo(new PtcCredentialProvider(client, username, password), client);
+                    governor.setAccount(username);
+                    governor.acquire(RequestGovernor.RequestClass.LOGIN);
+                    PokemonGo go = new PokemonGo(
+                            new PtcCredentialProvider(client, username, password), client);
+                    synchronized (positionLock) {
+                        GameManager.this.go = go;
+                        positioned = false;
+                        warmUpPosition = null;
+                    }
                     if (go.getAuthInfo().isInitialized()) {
                         // Success!
                         result.message("Login successful")
                                 .result(Result.SUCCESS);
+                        warmUpAsync(go);
 
                         // If username and password haven't already been recorded into the
                         // preferences, record them now.
@@ -160,10 +356,6 @@ public class GameManager {
                             editor.apply();
                         }
 
-                        // Notify our login listener of completion if it exists.
-                        if (loginListener != null) {
-                            loginListener.onLoginCompleted(result);
-                        }
                     }
                 } catch (LoginFailedException e) {
                     // Invalid credentials
@@ -173,9 +365,20 @@ public class GameManager {
                     // Server busy... probably
                     result.message("Servers are busy. Please try again later")
                             .result(Result.SERVER_BUSY);
+                } catch (InterruptedException e) {
+                    // We're being shut down; no one's waiting for the result.
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                // Notify our login listener of completion if it exists. Failures are reported too,
+                // otherwise the login screen would spin forever on a bad password.
+                LoginListener listener = loginListener.get();
+                if (listener != null && result.getResult() != null) {
+                    listener.onLoginCompleted(result);
                 }
             }
-        }).start();
+        });
     }
 
     /* Instance methods */
@@ -186,10 +389,16 @@ public class GameManager {
      * @param location The location to update to.
      */
     public void setPlayerLocation(final Location location) {
+        final PokemonGo go = this.go;
         if (go != null) {
-            go.setLocation(location.getLatitude(),
-                    location.getLongitude(),
-                    location.getAltitude());
+            synchronized (positionLock) {
+                go.setLocation(location.getLatitude(),
+                        location.getLongitude(),
+                        location.getAltitude());
+                onPositioned(location.getLatitude(), location.getLongitude());
+            }
+            coverageGrid.record(location.getLatitude(), location.getLongitude(),
+                    clock.currentTimeMillis());
         }
     }
 
@@ -199,54 +408,250 @@ public class GameManager {
      * @param location The location to update to.
      */
     public void setPlayerLocation(final LatLng location) {
+        final PokemonGo go = this.go;
         if (go != null) {
-            go.setLocation(location.latitude,
-                    location.longitude,
-                    0.336792f);
+            synchronized (positionLock) {
+                go.setLocation(location.latitude,
+                        location.longitude,
+                        0.336792f);
+                onPositioned(location.latitude, location.longitude);
+            }
+            coverageGrid.record(location.latitude, location.longitude, clock.currentTimeMillis());
         }
     }
 
     /**
-     * Adds nearby discovered pokestops to our array if they aren't already contained in it.
+     * Called with every real position, holding positionLock. Saves it for the next warm-up
+     * once we've moved far enough, and squares the first one with the warm-up scan.
+     */
+    private void onPositioned(double latitude, double longitude) {
+        if (!positioned) {
+            positioned = true;
+            if (warmUpPosition != null) {
+                double off = GeoUtils.distance(warmUpPosition.latitude, warmUpPosition.longitude,
+                        latitude, longitude);
+                if (LOG.isLoggable(Logger.DEBUG)) {
+                    LOG.d("First fix is {} m from the warm-up scan.", (int) off);
+                }
+                // The pokestops, gyms and spawns the warm-up found are real wherever we are,
+                // but the nearby list is measured from the warm-up position. Clear it until the
+                // first tick here fetches ours.
+                if (off > WARM_UP_TOLERANCE) {
+                    eventBus.post(new GameEvent.Nearby(new ArrayList<NearbyPokemon>(),
+                            nearbyTracker.getEstimates()));
+                }
+            }
+        }
+        if (savedPosition == null || GeoUtils.distance(savedPosition.latitude,
+                savedPosition.longitude, latitude, longitude) > POSITION_SAVE_DISTANCE) {
+            savedPosition = new LatLng(latitude, longitude);
+            preferences.edit()
+                    .putLong(LAST_LATITUDE_KEY, Double.doubleToRawLongBits(latitude))
+                    .putLong(LAST_LONGITUDE_KEY, Double.doubleToRawLongBits(longitude))
+                    .apply();
+        }
+    }
+
+    /**
+     * @return Where we last scanned, in this session or an earlier one, or null if we never
+     * have.
+     */
+    public LatLng getLastScannedPosition() {
+        if (!preferences.contains(LAST_LATITUDE_KEY)) {
+            return null;
+        }
+        return new LatLng(
+                Double.longBitsToDouble(preferences.getLong(LAST_LATITUDE_KEY, 0)),
+                Double.longBitsToDouble(preferences.getLong(LAST_LONGITUDE_KEY, 0)));
+    }
+
+    /**
+     * Scans where we last scanned, right after logging in, while the first fix is still on its
+     * way. Players mostly open the app about where they closed it, so that's usually what the
+     * first tick would have found anyway, and the map has something to show seconds sooner. Only
+     * discovers; nothing is looted or caught until we know where we really are. If a real fix
+     * comes in first, there's nothing to warm up and this does nothing.
+     *
+     * @param go The session we just logged into.
+     */
+    private void warmUpAsync(final PokemonGo go) {
+        final LatLng position = getLastScannedPosition();
+        if (position == null) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (positionLock) {
+                    if (positioned || go != GameManager.this.go) {
+                        return;
+                    }
+                    go.setLocation(position.latitude, position.longitude, 0);
+                    warmUpPosition = position;
+                }
+                long started = clock.nanoTime();
+                try {
+                    // Nearby first, it's what's on screen. The rest come out of the same map
+                    // objects, which the library caches.
+                    governor.acquire(RequestGovernor.RequestClass.MAP);
+                    List<NearbyPokemon> nearby = go.getMap().getNearbyPokemon();
+                    synchronized (positionLock) {
+                        // The distances are from the warm-up position. If a real fix beat them
+                        // here, they're not ours any more; the first tick fetches those.
+                        if (!positioned) {
+                            nearbyTracker.update(position.latitude, position.longitude, nearby);
+                            eventBus.post(new GameEvent.Nearby(nearby,
+                                    nearbyTracker.getEstimates()));
+                        }
+                    }
+                    updateCatchablePokemon();
+                    updatePokestops();
+                    updateGyms();
+                    if (LOG.isLoggable(Logger.INFO)) {
+                        LOG.i("Warm-up scan at {}, {} took {} ms.", position.latitude,
+                                position.longitude, (clock.nanoTime() - started) / 1000000);
+                    }
+                } catch (LoginFailedException | RemoteServerException e) {
+                    // The scan loop will run into the same thing and deal with it.
+                    LOG.w(e, "Warm-up scan failed");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds nearby discovered pokestops to our entity store if they aren't already in it.
      *
-     * @return Our list of updated pokestops.
+     * @return How many pokestops we hadn't seen before.
      * @throws LoginFailedException  If login username and password are incorrect.
      * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
      */
-    public List<Pokestop> updatePokestops() throws
+    public int updatePokestops() throws
             LoginFailedException,
-            RemoteServerException {
+            RemoteServerException,
+            InterruptedException {
+        int discovered = 0;
         if (go != null) {
-            for (Pokestop pokestop : go.getMap().getMapObjects().getPokestops()) {
-                if (pokestops != null && !pokestops.contains(pokestop)) {
-                    Log.i(TAG, "New Pokestop found at " + pokestop.getLatitude()
-                            + ", " + pokestop.getLongitude());
-                    pokestops.add(pokestop);
+            governor.acquire(RequestGovernor.RequestClass.MAP);
+            Collection<Pokestop> nearby = go.getMap().getMapObjects().getPokestops();
+            for (Pokestop pokestop : nearby) {
+                // The map hands out new Pokestop objects every time, so go by id.
+                if (entityStore.put(GameEvent.EntityType.POKESTOP,
+                        EntityStore.fortId(pokestop.getId()), pokestop.getLatitude(),
+                        pokestop.getLongitude(), EntityStore.NO_SPECIES, EntityStore.NEVER, 0)) {
+                    if (LOG.isLoggable(Logger.INFO)) {
+                        LOG.i("New pokestop found at {}, {}", pokestop.getLatitude(),
+                                pokestop.getLongitude());
+                    }
+                    discovered++;
+                    eventBus.post(new GameEvent.Entity(true, GameEvent.EntityType.POKESTOP,
+                            pokestop.getId(), pokestop.getLatitude(), pokestop.getLongitude()));
                 }
             }
+            // Keep the loot engine's cooldowns in step with the server.
+            lootEngine.update(nearby);
         }
-        return pokestops;
+        return discovered;
     }
 
     /**
-     * Loots the nearby pokestops.
+     * @return Every pokestop and catchable pokemon we've discovered.
+     */
+    public EntityStore getEntityStore() {
+        return entityStore;
+    }
+
+    /**
+     * Loots the nearby pokestops. Only stops that are in range and out of cooldown are
+     * requested, the ones we're about to walk away from first, several at a time. The bag is
+     * cleared out before it fills up, and again whenever a stop says it's full anyway.
      *
      * @return The result of the Pokestop loot.
      * @throws LoginFailedException  If login username and password are incorrect.
      * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
      */
     public List<PokestopLootResult> lootPokestops() throws
             LoginFailedException,
-            RemoteServerException {
-        List<PokestopLootResult> lootResults = new ArrayList<>();
+            RemoteServerException,
+            InterruptedException {
+        final PokemonGo go = this.go;
         if (go != null) {
-            for (Pokestop pokestop : go.getMap().getMapObjects().getPokestops()) {
-                if (pokestop.inRange() && pokestop.canLoot()) {
-                    lootResults.add(pokestop.loot());
+            updatePokestops();
+            relieveInventory(go, false);
+            List<PokestopLootResult> lootResults = lootEngine.loot(go.getLatitude(), go.getLongitude());
+            boolean bagFull = false;
+            for (PokestopLootResult lootResult : lootResults) {
+                bagFull |= lootResult.getResult() == FortSearchResponse.Result.INVENTORY_FULL;
+                eventBus.post(new GameEvent.LootResult(lootResult));
+            }
+            if (bagFull) {
+                // Our counts were off. Get the real ones and make room, then those stops can be
+                // tried again next tick instead of sitting out their backoff.
+                governor.acquire(RequestGovernor.RequestClass.INVENTORY);
+                go.getInventories().updateInventories(true);
+                if (relieveInventory(go, true) > 0) {
+                    lootEngine.retryBagFull();
                 }
             }
+            return lootResults;
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Recycles surplus items if the bag is getting full.
+     *
+     * @param force Recycle whatever is over its cap, however full the bag is.
+     * @return How many items were recycled.
+     */
+    private int relieveInventory(PokemonGo go, boolean force) throws
+            LoginFailedException,
+            RemoteServerException,
+            InterruptedException {
+        int capacity = go.getPlayerProfile().getPlayerData().getMaxItemStorage();
+        return inventoryManager.relieve(go.getInventories().getItemBag(),
+                capacity > 0 ? capacity : InventoryManager.DEFAULT_CAPACITY, force);
+    }
+
+    /**
+     * @return The feed that streams our discoveries to other devices. Not started until someone
+     * asks.
+     */
+    public SpawnFeedServer getSpawnFeed() {
+        return spawnFeed;
+    }
+
+    /**
+     * @return Our inventory manager, for its caps and recycling counts.
+     */
+    public InventoryManager getInventoryManager() {
+        return inventoryManager;
+    }
+
+    /**
+     * Plans a loop through every pokestop we've discovered so far that gets the most loots per
+     * hour.
+     *
+     * @param mode How the route will be travelled.
+     * @return The planned route, or null if we aren't logged in yet.
+     */
+    public RoutePlanner.Route planRoute(RoutePlanner.TravelMode mode) {
+        final PokemonGo go = this.go;
+        if (go != null) {
+            final List<LatLng> stops = new ArrayList<>();
+            entityStore.visit(GameEvent.EntityType.POKESTOP, new EntityStore.Visitor() {
+                @Override
+                public void visit(EntityStore store, int slot) {
+                    stops.add(new LatLng(store.getLatitude(slot), store.getLongitude(slot)));
+                }
+            });
+            return new RoutePlanner(mode).plan(new LatLng(go.getLatitude(), go.getLongitude()), stops);
         }
-        return lootResults;
+        return null;
     }
 
     /**
@@ -255,37 +660,156 @@ public class GameManager {
      * @return List of all nearby pokemon.
      * @throws LoginFailedException  If login username and password are incorrect.
      * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
      */
     public List<NearbyPokemon> getNearbyPokemon() throws
             LoginFailedException,
-            RemoteServerException {
+            RemoteServerException,
+            InterruptedException {
         List<NearbyPokemon> nearbyPokemon = new ArrayList<>();
+        final PokemonGo go = this.go;
         if (go != null) {
+            governor.acquire(RequestGovernor.RequestClass.MAP);
             nearbyPokemon = go.getMap().getNearbyPokemon();
+            // The distances are from where the map was fetched, which is where the game thinks
+            // we are.
+            nearbyTracker.update(go.getLatitude(), go.getLongitude(), nearbyPokemon);
+            eventBus.post(new GameEvent.Nearby(nearbyPokemon, nearbyTracker.getEstimates()));
         }
         return nearbyPokemon;
     }
 
     /**
-     * Adds nearby discovered pokemon to our array if they aren't already contained in it.
+     * Scans the next cell a ScanLedger has leased us, to split an area with other devices: moves
+     * to the middle of the cell, discovers what's there and reports its pokemon to the ledger.
+     * Nothing is looted or caught. This moves us around the area, so ScanService calls it instead
+     * of following our real location while we're part of a team scan.
+     *
+     * @param client Our lease client.
+     * @return The cell we scanned, or null if there was nothing to do or we aren't logged in.
+     * @throws IOException           If the ledger can't be reached.
+     * @throws LoginFailedException  If login username and password are incorrect.
+     * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
+     */
+    public Long scanLeasedCell(ScanLeaseClient client) throws
+            IOException,
+            LoginFailedException,
+            RemoteServerException,
+            InterruptedException {
+        final PokemonGo go = this.go;
+        if (go == null) {
+            return null;
+        }
+        final Long cell = client.next(go.getLatitude(), go.getLongitude());
+        if (cell == null) {
+            return null;
+        }
+        setPlayerLocation(new LatLng(ScanLedger.centerLatitude(cell),
+                ScanLedger.centerLongitude(cell)));
+        updateCatchablePokemon();
+        updatePokestops();
+
+        // Only what's in the cell; the scan reaches a little into its neighbours, and those are
+        // theirs to report.
+        final List<ScanLedger.Sighting> sightings = new ArrayList<>();
+        entityStore.visit(GameEvent.EntityType.POKEMON, new EntityStore.Visitor() {
+            @Override
+            public void visit(EntityStore store, int slot) {
+                if (ScanLedger.cellAt(store.getLatitude(slot), store.getLongitude(slot)) == cell) {
+                    sightings.add(new ScanLedger.Sighting(store.getId(slot),
+                            store.getSpecies(slot), store.getLatitude(slot),
+                            store.getLongitude(slot), store.getExpiry(slot)));
+                }
+            }
+        });
+        client.complete(cell, sightings);
+        return cell;
+    }
+
+    /**
+     * @return The grid of places we've scanned.
+     */
+    public CoverageGrid getCoverageGrid() {
+        return coverageGrid;
+    }
+
+    /**
+     * @return Our nearby pokemon tracker.
+     */
+    public NearbyTracker getNearbyTracker() {
+        return nearbyTracker;
+    }
+
+    /**
+     * Adds nearby discovered pokemon to our entity store if they aren't already in it, and
+     * forgets the ones that have despawned.
      *
-     * @return Our list of updated pokemon.
+     * @return How many pokemon we hadn't seen before.
      * @throws LoginFailedException  If login username and password are incorrect.
      * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
      */
-    public List<CatchablePokemon> updateCatchablePokemon() throws
+    public int updateCatchablePokemon() throws
             LoginFailedException,
-            RemoteServerException {
+            RemoteServerException,
+            InterruptedException {
+        int discovered = 0;
         if (go != null) {
+            governor.acquire(RequestGovernor.RequestClass.MAP);
             for (CatchablePokemon pokemon : go.getMap().getCatchablePokemon()) {
-                if (catchablePokemon != null && !catchablePokemon.contains(pokemon)) {
-                    Log.i(TAG, pokemon.getPokemonId().name() + " found at " + pokemon.getLatitude()
-                            + ", " + pokemon.getLongitude());
-                    catchablePokemon.add(pokemon);
+                long expiresAt = pokemon.getExpirationTimestampMs();
+                if (addPokemon(pokemon.getEncounterId(), pokemon.getPokemonId().getNumber(),
+                        pokemon.getLatitude(), pokemon.getLongitude(),
+                        expiresAt > 0 ? expiresAt : EntityStore.NEVER)) {
+                    if (LOG.isLoggable(Logger.INFO)) {
+                        LOG.i("{} found at {}, {}", pokemon.getPokemonId(), pokemon.getLatitude(),
+                                pokemon.getLongitude());
+                    }
+                    discovered++;
                 }
             }
+            entityStore.removeExpired(clock.currentTimeMillis(), new EntityStore.Visitor() {
+                @Override
+                public void visit(EntityStore store, int slot) {
+                    spawnFeed.despawned(store.getId(slot));
+                    eventBus.post(new GameEvent.Entity(false, store.getType(slot),
+                            String.valueOf(store.getId(slot)),
+                            store.getLatitude(slot), store.getLongitude(slot)));
+                }
+            });
         }
-        return catchablePokemon;
+        return discovered;
+    }
+
+    /**
+     * Merges what teammates found in a team scan, as if we'd found it ourselves. Safe to call
+     * from any thread.
+     *
+     * @param sightings The pokemon they found.
+     */
+    public void addSightings(List<ScanLedger.Sighting> sightings) {
+        for (ScanLedger.Sighting sighting : sightings) {
+            addPokemon(sighting.getEncounterId(), sighting.getSpecies(), sighting.getLatitude(),
+                    sighting.getLongitude(), sighting.getExpiresAt());
+        }
+    }
+
+    /**
+     * Adds a pokemon to the entity store, and tells the map and the spawn feed if it's new.
+     *
+     * @return Whether it's new.
+     */
+    private boolean addPokemon(long encounterId, int species, double latitude, double longitude,
+                               long expiresAt) {
+        if (!entityStore.put(GameEvent.EntityType.POKEMON, encounterId, latitude, longitude,
+                species, expiresAt, 0)) {
+            return false;
+        }
+        spawnFeed.spawned(encounterId, species, latitude, longitude, expiresAt);
+        eventBus.post(new GameEvent.Entity(true, GameEvent.EntityType.POKEMON,
+                String.valueOf(encounterId), latitude, longitude));
+        return true;
     }
 
     /**
@@ -300,96 +824,279 @@ public class GameManager {
             LoginFailedException,
             RemoteServerException,
             NoSuchItemException, InterruptedException {
+        // Read go and the policy once; either may be replaced while we're working. The catch
+        // options are local so concurrent catches can't overwrite each other's settings.
+        final PokemonGo go = this.go;
+        final CatchPolicy policy = catchPolicy;
         if (go != null) {
-            // Set up our options for smart pokemon capture.
-            options = new CatchOptions(go)
-                    .noMasterBall(true)
-                    .useSmartSelect(true)
-                    .useBestBall(true)
-                    .useRazzberries(go.getInventories().getItemBag()
-                            .getItem(ItemIdOuterClass.ItemId.ITEM_RAZZ_BERRY).getCount() > 0)
-                    .maxPokeballs(-1);
+            Pokedex pokedex = go.getInventories().getPokedex();
 
-            for (CatchablePokemon pokemon : go.getMap().getCatchablePokemon()) {
-                EncounterResult encounterResult = pokemon.encounterPokemon();
-                if (encounterResult.wasSuccessful()) {
-                    Log.i(TAG, Utils.getPokemonName(pokemon.getPokemonIdValue()) + " encountered.");
-                    // Catch the pokemon. The first parameter is the encounter result. The second
-                    // is a list of pokeballs you wish to exclude from the capture process. In our
-                    // case, we don't want to exclude any, so we pass null. The third parameter is
-                    // the max amount of tries to catch the pokemon. We use -1 for infinite tries.
-                    // TODO: Create a setting that changes max try count and max razz berry count.
-                    // And finally, the fourth parameter is the max amount of razz berries to use
-                    // when capturing the pokemon.
-                    Thread.sleep(2000);
-
-                    int maxRazzBerries;
-
-                    // Set number of razz berries independent of pokemon rarity.
-                    switch (PokemonMetaRegistry.getMeta(pokemon.getPokemonId()).getPokemonClass()) {
-                        case VERY_COMMON:
-                            maxRazzBerries = 2;
-                            break;
-                        case COMMON:
-                            maxRazzBerries = 5;
-                            break;
-                        case UNCOMMON:
-                            maxRazzBerries = 7;
-                            break;
-                        case RARE:
-                            maxRazzBerries = 9;
-                            break;
-                        default:
-                            maxRazzBerries = -1;
-                            break;
+            // Start encounters for the pokemon we want most right away; by the time we come back
+            // for them they're usually done.
+            List<CatchablePokemon> candidates = new ArrayList<>();
+            governor.acquire(RequestGovernor.RequestClass.MAP);
+            List<CatchablePokemon> catchable = go.getMap().getCatchablePokemon();
+            catchableSeen = catchable.size();
+            for (CatchablePokemon pokemon : catchable) {
+                boolean pokedexNew = pokedex.getPokedexEntry(pokemon.getPokemonId()) == null;
+                if (policy.getPriority(pokemon.getPokemonId(), pokedexNew) != CatchPolicy.NEVER) {
+                    candidates.add(pokemon);
+                }
+            }
+            Collections.sort(candidates, new CatchPriority(policy, pokedex));
+            encounterCache.prefetch(candidates);
+
+            EncounterCache.Entry entry;
+            while ((entry = encounterCache.next(ENCOUNTER_TIMEOUT)) != null) {
+                CatchablePokemon pokemon = entry.getPokemon();
+                boolean pokedexNew = pokedex.getPokedexEntry(pokemon.getPokemonId()) == null;
+                CatchPolicy.Decision decision = policy.decide(pokemon.getPokemonId(), pokedexNew,
+                        entry.getResult().getPokemonData().getCp());
+                if (!decision.shouldCatch()) {
+                    // Its CP ruled it out. The cache won't hand it out again.
+                    continue;
+                }
+
+                LOG.i("{} encountered.", pokemon.getPokemonId());
+                // Don't throw any sooner than a person could after the encounter. Prefetched
+                // encounters have usually waited long enough already.
+                clock.sleep(entry.getThrowDelay(clock.currentTimeMillis()));
+
+                CatchResult catchResult = throwBalls(go, pokemon, decision,
+                        pokedexNew ? POKEDEX_NEW_CATCH_TARGET : CATCH_TARGET);
+                if (catchResult == null) {
+                    // The policy didn't leave it a single ball.
+                    continue;
+                }
+                if (catchResult.getStatus()
+                        == CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus.CATCH_SUCCESS) {
+                    // Off our map, but the spawn is still there for everyone else, so it stays in
+                    // the store and on the spawn feed until it expires.
+                    eventBus.post(new GameEvent.Entity(false, GameEvent.EntityType.POKEMON,
+                            String.valueOf(pokemon.getEncounterId()),
+                            pokemon.getLatitude(), pokemon.getLongitude()));
+                }
+                Catch pokemonCatch = new Catch(pokemon, catchResult);
+                eventBus.post(new GameEvent.CatchResult(pokemonCatch));
+                return pokemonCatch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Throws at an encountered pokemon one ball at a time until it's caught, it flees or the
+     * policy's budget runs out. The catch estimator picks each ball and berry, and learns from
+     * how each throw went.
+     *
+     * @param target How likely we want the catch to be.
+     * @return The last throw's result.
+     */
+    private CatchResult throwBalls(PokemonGo go, CatchablePokemon pokemon,
+                                   CatchPolicy.Decision decision, double target) throws
+            LoginFailedException,
+            RemoteServerException,
+            NoSuchItemException,
+            InterruptedException {
+        int maxBalls = decision.getMaxPokeballs() == CatchPolicy.UNLIMITED
+                ? UNLIMITED_THROWS : decision.getMaxPokeballs();
+        int maxBerries = decision.getMaxRazzberries();
+        int berriesUsed = 0;
+        CatchResult result = null;
+        try {
+            for (int thrown = 0; thrown < maxBalls; thrown++) {
+                ItemBag bag = go.getInventories().getItemBag();
+                Set<CatchEstimator.Ball> balls = EnumSet.noneOf(CatchEstimator.Ball.class);
+                for (CatchEstimator.Ball ball : CatchEstimator.Ball.values()) {
+                    Item item = bag.getItem(ball.getItem());
+                    if (item != null && item.getCount() > 0) {
+                        balls.add(ball);
                     }
+                }
+                Item berries = bag.getItem(ItemIdOuterClass.ItemId.ITEM_RAZZ_BERRY);
+                boolean berry = berries != null && berries.getCount() > 0
+                        && (maxBerries == CatchPolicy.UNLIMITED || berriesUsed < maxBerries);
 
-                    // If pokemon has not yet been caught, we'll go all out.
-                    if (go.getInventories().getPokedex().getPokedexEntry(pokemon.getPokemonId()) == null) {
-                        maxRazzBerries = -1;
+                CatchEstimator.Choice choice = catchEstimator.choose(pokemon.getPokemonId(),
+                        maxBalls - thrown, balls, berry, target);
+                if (choice == null) {
+                    if (result == null) {
+                        throw new NoSuchItemException("Out of pokeballs");
                     }
+                    break;
+                }
+                CatchOptions options = new CatchOptions(go)
+                        .noMasterBall(true)
+                        .useBestBall(false)
+                        .usePokeball(choice.getBall().getPokeball())
+                        .useRazzberries(choice.withBerry())
+                        .maxRazzberries(choice.withBerry() ? 1 : 0)
+                        .maxPokeballs(1);
 
-                    options = options.maxPokeballs(maxRazzBerries);
+                governor.acquire(RequestGovernor.RequestClass.CATCH);
+                result = pokemon.catchPokemon(options);
+                catchEstimator.record(pokemon.getPokemonId(), choice, result.getStatus());
+                if (choice.withBerry()) {
+                    berriesUsed++;
+                }
+                CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus status =
+                        result.getStatus();
+                if (status != CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus.CATCH_ESCAPE
+                        && status != CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus.CATCH_MISSED) {
+                    break;
+                }
+            }
+        } finally {
+            saveCatchStatsLater();
+        }
+        return result;
+    }
 
-                    CatchResult catchResult = pokemon.catchPokemon(options);
-                    if (catchResult.getStatus()
-                            == CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus.CATCH_SUCCESS) {
-                        catchablePokemon.remove(pokemon);
-                    }
-                    return new Catch(pokemon, catchResult);
+    /**
+     * Has the catch estimator save what it's learned on the game executor, at most once every
+     * CATCH_STATS_SAVE_INTERVAL. Saving after every encounter would put a file write on the
+     * scan thread each time.
+     */
+    private void saveCatchStatsLater() {
+        long now = clock.currentTimeMillis();
+        long savedAt = catchStatsSavedAt.get();
+        if (now - savedAt >= CATCH_STATS_SAVE_INTERVAL
+                && catchStatsSavedAt.compareAndSet(savedAt, now)) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    catchEstimator.save();
                 }
+            });
+        }
+    }
+
+    /**
+     * @return Our catch estimator, for how many catches we get per item.
+     */
+    public CatchEstimator getCatchEstimator() {
+        return catchEstimator;
+    }
+
+    /**
+     * @return How many catchable pokemon were around the last time we tried to catch one.
+     */
+    public int getCatchableSeen() {
+        return catchableSeen;
+    }
+
+    /**
+     * Orders catchable pokemon by how much the catch policy wants them, then rarest first.
+     */
+    private static class CatchPriority implements Comparator<CatchablePokemon> {
+
+        private final CatchPolicy policy;
+
+        private final Pokedex pokedex;
+
+        CatchPriority(CatchPolicy policy, Pokedex pokedex) {
+            this.policy = policy;
+            this.pokedex = pokedex;
+        }
+
+        @Override
+        public int compare(CatchablePokemon a, CatchablePokemon b) {
+            int priorityA = policy.getPriority(a.getPokemonId(),
+                    pokedex.getPokedexEntry(a.getPokemonId()) == null);
+            int priorityB = policy.getPriority(b.getPokemonId(),
+                    pokedex.getPokedexEntry(b.getPokemonId()) == null);
+            if (priorityA != priorityB) {
+                return priorityA > priorityB ? -1 : 1;
             }
+            return PokemonMetaRegistry.getMeta(b.getPokemonId()).getPokemonClass()
+                    .compareTo(PokemonMetaRegistry.getMeta(a.getPokemonId()).getPokemonClass());
         }
-        return null;
     }
 
     /**
-     * Adds nearby discovered pokemon to our array if they aren't already contained in it.
+     * Swaps in a new catch policy. Takes effect from the next catch; the scan loop keeps running.
+     *
+     * @param catchPolicy The policy to use from now on.
+     */
+    public void setCatchPolicy(CatchPolicy catchPolicy) {
+        this.catchPolicy = catchPolicy;
+    }
+
+    public CatchPolicy getCatchPolicy() {
+        return catchPolicy;
+    }
+
+    /**
+     * @return The clock all the game logic runs on.
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return The interceptor recording or replaying our traffic, or null in release builds.
+     */
+    public TrafficInterceptor getTrafficInterceptor() {
+        return trafficInterceptor;
+    }
+
+    /**
+     * @return Our request governor, for its queue and wait time metrics.
+     */
+    public RequestGovernor getRequestGovernor() {
+        return governor;
+    }
+
+    /**
+     * @return Our pokebank index. Up to date as of the last farmXP() run.
+     */
+    public PokebankIndex getPokebankIndex() {
+        return pokebankIndex;
+    }
+
+    /**
+     * Adds newly discovered gyms to our cache, and refreshes the details of a few gyms that have
+     * changed since we last looked.
      *
-     * @return Our list of updated pokemon.
+     * @return Every gym we know about.
      * @throws LoginFailedException  If login username and password are incorrect.
      * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
      */
-    public List<Gym> updateGyms() throws
+    public Collection<GymCache.GymState> updateGyms() throws
             LoginFailedException,
-            RemoteServerException {
+            RemoteServerException,
+            InterruptedException {
+        final PokemonGo go = this.go;
         if (go != null) {
-            for (Gym gym : gyms) {
-                if (gyms != null && !gyms.contains(gym)) {
-                    Log.i(TAG, "New gym found at " + gym.getLatitude() + ", " + gym.getLongitude());
-                    gyms.add(gym);
+            governor.acquire(RequestGovernor.RequestClass.MAP);
+            for (GymCache.GymState gym : gymCache.update(go.getMap().getMapObjects().getGyms())) {
+                if (LOG.isLoggable(Logger.INFO)) {
+                    LOG.i("New gym found at {}, {}", gym.getLatitude(), gym.getLongitude());
                 }
+                eventBus.post(new GameEvent.Entity(true, GameEvent.EntityType.GYM,
+                        gym.getId(), gym.getLatitude(), gym.getLongitude()));
             }
+            gymCache.refreshDetails(go);
         }
-        return gyms;
+        return gymCache.getAll();
+    }
+
+    /**
+     * @return Our gym cache.
+     */
+    public GymCache getGymCache() {
+        return gymCache;
     }
 
     /**
      * A useful little script that
      */
     public void farmXP() {
-        if (go != null) {
+        if (go != null && farming.compareAndSet(false, true)) {
             try {
+                // Picks up whatever we've caught since the last run.
+                pokebankIndex.sync(go.getInventories());
                 for (PokemonIdOuterClass.PokemonId pokemonId : new PokemonIdOuterClass.PokemonId[]{
                         PokemonIdOuterClass.PokemonId.PIDGEY,
                         PokemonIdOuterClass.PokemonId.WEEDLE,
@@ -398,61 +1105,254 @@ public class GameManager {
                         PokemonIdOuterClass.PokemonId.SPEAROW,
                         PokemonIdOuterClass.PokemonId.ZUBAT
                 }) {
-                    for (Pokemon pokemon : go.getInventories().getPokebank()
-                            .getPokemonByPokemonId(pokemonId)) {
-                        evolveOrTransfer(pokemon);
-                    }
+                    farmSpecies(pokemonId);
                 }
             } catch (LoginFailedException | RemoteServerException | InterruptedException e) {
-                e.printStackTrace();
+                LOG.w(e, "Farming XP failed");
+            } finally {
+                farming.set(false);
             }
-            Log.i(TAG, "Finished farming XP.");
+            LOG.i("Finished farming XP.");
         }
     }
 
-    private void evolveOrTransfer(Pokemon pokemon) throws
+    /**
+     * Evolves as many of a species as we can afford and transfers the rest, favourites aside.
+     * Every transfer gives a candy back, so we work out up front how many to keep for evolving
+     * and bulk transfer the others first to pay for them.
+     */
+    private void farmSpecies(PokemonIdOuterClass.PokemonId pokemonId) throws
             LoginFailedException,
             RemoteServerException,
             InterruptedException {
-        if (go != null) {
-            if (pokemon.canEvolve()) {
-                EvolutionResult result = pokemon.evolve();
-                if (result.isSuccessful()) {
-                    Log.i(TAG, Utils.getPokemonName(pokemon) + " evolved.");
-                    ReleasePokemonResponseOuterClass.ReleasePokemonResponse.Result releaseResult
-                            = result.getEvolvedPokemon().transferPokemon();
-                    if (releaseResult
-                            == ReleasePokemonResponseOuterClass.ReleasePokemonResponse.Result.SUCCESS) {
-                        Log.i(TAG, "Evolved " + Utils.getPokemonName(result.getEvolvedPokemon())
-                                + " successfully transferred.");
-                    } else {
-                        Log.i(TAG, "An error occurred while transferring evolved pokemon.");
-                    }
-                } else {
-                    Log.i(TAG, Utils.getPokemonName(pokemon) + " faced an error while evolving.");
-                }
+        List<Pokemon> farmable = pokebankIndex.getDuplicates(pokemonId, 0);
+        int count = farmable.size();
+        int cost = PokebankIndex.getCandyToEvolve(pokemonId);
+        if (count == 0) {
+            return;
+        }
+        int evolutions = 0;
+        if (cost > 0) {
+            // Evolving e of them costs e * cost and transferring the other count - e pays back
+            // one candy each.
+            int candies = pokebankIndex.getCandies(farmable.get(0).getPokemonFamily());
+            evolutions = Math.min(count, (candies + count) / (cost + 1));
+        }
+
+        // Worst first, so the best ones are the ones we evolve.
+        transferPipeline.run(farmable.subList(0, count - evolutions), false, null);
+
+        List<Pokemon> evolved = new ArrayList<>();
+        for (Pokemon pokemon : farmable.subList(count - evolutions, count)) {
+            if (pokebankIndex.getAffordableEvolutions(pokemonId) == 0) {
+                // A transfer failed and we came up short.
+                break;
+            }
+            governor.acquire(RequestGovernor.RequestClass.EVOLVE);
+            EvolutionResult result = pokemon.evolve();
+            if (result.isSuccessful()) {
+                LOG.i("{} evolved.", pokemon.getPokemonId());
+                pokebankIndex.onEvolved(pokemon, result.getEvolvedPokemon());
+                evolved.add(result.getEvolvedPokemon());
             } else {
-                ReleasePokemonResponseOuterClass.ReleasePokemonResponse.Result releaseResult
-                        = pokemon.transferPokemon();
-                if (releaseResult
-                        == ReleasePokemonResponseOuterClass.ReleasePokemonResponse.Result.SUCCESS) {
-                    Log.i(TAG, Utils.getPokemonName(pokemon) + " can't evolve. Pokemon transferred " +
-                            "instead.");
-                } else {
-                    Log.i(TAG, "An error occurred while transferring " + Utils.getPokemonName(pokemon));
-                }
+                LOG.i("{} faced an error while evolving.", pokemon.getPokemonId());
             }
         }
-        Thread.sleep(1000);
+
+        TransferPipeline.Report report = transferPipeline.run(evolved, false, null);
+        LOG.i("Evolved {} and transferred {} {}.", evolved.size(),
+                count - evolutions + report.getTransferred().size(), pokemonId);
+    }
+
+    /**
+     * Transfers every pokemon but the best few of each species. Favourites and pokemon defending
+     * gyms are never transferred.
+     *
+     * @param keep     How many of the best of each species to keep.
+     * @param dryRun   If true, nothing is transferred; the report lists what would have been.
+     * @param listener Told about each pokemon as it's handled, on a worker thread. May be null.
+     * @return What happened, or null if we're not logged in or farmXP() or another cleanup is
+     * already running.
+     * @throws InterruptedException If we're interrupted while transfers are running.
+     */
+    public TransferPipeline.Report cleanUpPokebank(int keep, boolean dryRun,
+                                                   TransferPipeline.Listener listener)
+            throws InterruptedException {
+        final PokemonGo go = this.go;
+        if (go == null || !farming.compareAndSet(false, true)) {
+            return null;
+        }
+        try {
+            pokebankIndex.sync(go.getInventories());
+            List<Pokemon> candidates = transferPipeline.select(keep);
+            TransferPipeline.Report report = transferPipeline.run(candidates, dryRun, listener);
+            LOG.i(dryRun ? "Would transfer {} of {} pokemon." : "Transferred {} of {} pokemon.",
+                    report.getTransferred().size(), candidates.size());
+            return report;
+        } finally {
+            farming.set(false);
+        }
+    }
+
+    /* Async methods */
+
+    /**
+     * Runs updatePokestops() on the game executor.
+     *
+     * @param callback Receives how many new pokestops were found. May be null.
+     * @return A Future for how many new pokestops were found.
+     */
+    public Future<Integer> updatePokestopsAsync(GameCallback<Integer> callback) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return updatePokestops();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs lootPokestops() on the game executor.
+     *
+     * @param callback Receives the loot results. May be null.
+     * @return A Future for the loot results.
+     */
+    public Future<List<PokestopLootResult>> lootPokestopsAsync(
+            GameCallback<List<PokestopLootResult>> callback) {
+        return executor.submit(new Callable<List<PokestopLootResult>>() {
+            @Override
+            public List<PokestopLootResult> call() throws Exception {
+                return lootPokestops();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs getNearbyPokemon() on the game executor.
+     *
+     * @param callback Receives the nearby pokemon. May be null.
+     * @return A Future for the nearby pokemon.
+     */
+    public Future<List<NearbyPokemon>> getNearbyPokemonAsync(
+            GameCallback<List<NearbyPokemon>> callback) {
+        return executor.submit(new Callable<List<NearbyPokemon>>() {
+            @Override
+            public List<NearbyPokemon> call() throws Exception {
+                return getNearbyPokemon();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs updateCatchablePokemon() on the game executor.
+     *
+     * @param callback Receives how many new pokemon were found. May be null.
+     * @return A Future for how many new pokemon were found.
+     */
+    public Future<Integer> updateCatchablePokemonAsync(GameCallback<Integer> callback) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return updateCatchablePokemon();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs catchPokemon() on the game executor.
+     *
+     * @param callback Receives the catch, or null if nothing was caught. May be null.
+     * @return A Future for the catch.
+     */
+    public Future<Catch> catchPokemonAsync(GameCallback<Catch> callback) {
+        return executor.submit(new Callable<Catch>() {
+            @Override
+            public Catch call() throws Exception {
+                return catchPokemon();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs updateGyms() on the game executor.
+     *
+     * @param callback Receives the updated gym list. May be null.
+     * @return A Future for the updated gym list.
+     */
+    public Future<Collection<GymCache.GymState>> updateGymsAsync(
+            GameCallback<Collection<GymCache.GymState>> callback) {
+        return executor.submit(new Callable<Collection<GymCache.GymState>>() {
+            @Override
+            public Collection<GymCache.GymState> call() throws Exception {
+                return updateGyms();
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs planRoute() on the game executor.
+     *
+     * @param mode     How the route will be travelled.
+     * @param callback Receives the planned route. May be null.
+     * @return A Future for the planned route.
+     */
+    public Future<RoutePlanner.Route> planRouteAsync(final RoutePlanner.TravelMode mode,
+                                                     GameCallback<RoutePlanner.Route> callback) {
+        return executor.submit(new Callable<RoutePlanner.Route>() {
+            @Override
+            public RoutePlanner.Route call() throws Exception {
+                return planRoute(mode);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs cleanUpPokebank() on the game executor.
+     *
+     * @param callback Receives the report, or null if a run was already in progress.
+     * @return A Future that completes when the cleanup is done.
+     */
+    public Future<TransferPipeline.Report> cleanUpPokebankAsync(final int keep, final boolean dryRun,
+                                                                final TransferPipeline.Listener listener,
+                                                                GameCallback<TransferPipeline.Report> callback) {
+        return executor.submit(new Callable<TransferPipeline.Report>() {
+            @Override
+            public TransferPipeline.Report call() throws Exception {
+                return cleanUpPokebank(keep, dryRun, listener);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs farmXP() on the game executor. If a farming run is already in progress this one
+     * returns immediately.
+     *
+     * @return A Future that completes when farming is done.
+     */
+    public Future<?> farmXPAsync() {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                farmXP();
+            }
+        });
+    }
+
+    /**
+     * @return The bus GameManager posts its events to.
+     */
+    public GameEventBus getEventBus() {
+        return eventBus;
     }
 
     /**
-     * Sets the login completed listener.
+     * Sets the login completed listener. Only a weak reference is kept, so pass something that
+     * lives on its own, like the Activity itself, rather than an anonymous class.
      *
      * @param loginListener The desired listener to set.
      */
     public void setOnLoginCompletedListener(LoginListener loginListener) {
-        this.loginListener = loginListener;
+        this.loginListener = new WeakReference<>(loginListener);
     }
 
     /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 10:05 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Plain math for distances on the map. Nothing in here allocates, so it's safe to call from
+ * tight loops on the scan thread.
+ */
+public class GeoUtils {
+
+    /**
+     * Mean radius of the Earth in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Meters per degree of latitude (and of longitude at the equator).
+     */
+    public static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    private GeoUtils() {
+    }
+
+    /**
+     * Gets the great-circle distance between two points using the haversine formula.
+     *
+     * @return Distance in meters.
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Gets how far east of the origin a longitude is, in meters. This is an equirectangular
+     * projection, which is plenty accurate over the few kilometers we ever deal with.
+     *
+     * @param originLat Latitude of the origin.
+     * @param originLng Longitude of the origin.
+     * @param lng       The longitude to project.
+     * @return Meters east of the origin (negative if west).
+     */
+    public static double toX(double originLat, double originLng, double lng) {
+        return (lng - originLng) * METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+    }
+
+    /**
+     * Gets how far north of the origin a latitude is, in meters.
+     *
+     * @param originLat Latitude of the origin.
+     * @param lat       The latitude to project.
+     * @return Meters north of the origin (negative if south).
+     */
+    public static double toY(double originLat, double lat) {
+        return (lat - originLat) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * The inverse of toX().
+     *
+     * @return The longitude x meters east of the origin.
+     */
+    public static double toLongitude(double originLat, double originLng, double x) {
+        return originLng + x / (METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat)));
+    }
+
+    /**
+     * The inverse of toY().
+     *
+     * @return The latitude y meters north of the origin.
+     */
+    public static double toLatitude(double originLat, double y) {
+        return originLat + y / METERS_PER_DEGREE;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.PokemonGo;
+import com.pokegoapi.api.gym.Gym;
+import com.pokegoapi.exceptions.LoginFailedException;
+import com.pokegoapi.exceptions.RemoteServerException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import POGOProtos.Data.PokemonDataOuterClass.PokemonData;
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+import POGOProtos.Enums.TeamColorOuterClass.TeamColor;
+import POGOProtos.Map.Fort.FortDataOuterClass.FortData;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 4:45 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Everything we know about the gyms we've seen, keyed by fort id. Team, prestige and guard come
+ * for free with every map snapshot; names and defenders take a gym details request, so we only
+ * ask again once the gym's last-modified time moves on, and only a couple of gyms per tick.
+ */
+public class GymCache {
+
+    private static final String TAG = "GymCache";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * The most gym details requests we'll make per update.
+     */
+    private static final int MAX_DETAIL_FETCHES = 2;
+
+    /**
+     * Every gym we've seen.
+     */
+    private final Map<String, GymState> gyms = new ConcurrentHashMap<>();
+
+    /**
+     * Paces the details requests.
+     */
+    private final RequestGovernor governor;
+
+    /**
+     * Creates a new gym cache.
+     *
+     * @param governor Paces the details requests.
+     */
+    public GymCache(RequestGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Folds a map snapshot's gyms into the cache.
+     *
+     * @param forts The gyms from the latest map objects.
+     * @return The gyms we hadn't seen before.
+     */
+    public List<GymState> update(Collection<FortData> forts) {
+        List<GymState> discovered = new ArrayList<>();
+        for (FortData fort : forts) {
+            GymState state = gyms.get(fort.getId());
+            if (state == null) {
+                state = new GymState(fort);
+                gyms.put(fort.getId(), state);
+                discovered.add(state);
+            } else if (state.fort.getLastModifiedTimestampMs() != fort.getLastModifiedTimestampMs()) {
+                state.fort = fort;
+            }
+        }
+        return discovered;
+    }
+
+    /**
+     * Fetches details for gyms that changed since we last looked, a few at a time.
+     *
+     * @param go Our Pokemon GO object, for the details requests.
+     * @return How many gyms were refreshed.
+     * @throws LoginFailedException  If login username and password are incorrect.
+     * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
+     */
+    public int refreshDetails(PokemonGo go) throws
+            LoginFailedException,
+            RemoteServerException,
+            InterruptedException {
+        int fetched = 0;
+        for (GymState state : gyms.values()) {
+            if (fetched == MAX_DETAIL_FETCHES) {
+                break;
+            }
+            FortData fort = state.fort;
+            if (state.detailsModified == fort.getLastModifiedTimestampMs()) {
+                continue;
+            }
+            governor.acquire(RequestGovernor.RequestClass.GYM_DETAILS);
+            Gym gym = new Gym(go, fort);
+            List<Defender> defenders = new ArrayList<>();
+            for (PokemonData pokemon : gym.getDefendingPokemon()) {
+                defenders.add(new Defender(pokemon.getPokemonId(), pokemon.getCp()));
+            }
+            state.name = gym.getName();
+            state.defenders = Collections.unmodifiableList(defenders);
+            state.detailsModified = fort.getLastModifiedTimestampMs();
+            fetched++;
+        }
+        if (fetched > 0) {
+            LOG.d("Refreshed details for {} gyms.", fetched);
+        }
+        return fetched;
+    }
+
+    /**
+     * @param id The gym's fort id.
+     * @return What we know about it, or null if we've never seen it.
+     */
+    public GymState get(String id) {
+        return gyms.get(id);
+    }
+
+    /**
+     * @return Every gym we've seen. A live view; safe to iterate from any thread.
+     */
+    public Collection<GymState> getAll() {
+        return Collections.unmodifiableCollection(gyms.values());
+    }
+
+    public int size() {
+        return gyms.size();
+    }
+
+    /**
+     * A gym as of the latest snapshot.
+     */
+    public static class GymState {
+
+        private final String id;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        /**
+         * The latest fort data. Swapped whenever the gym's last-modified time changes.
+         */
+        private volatile FortData fort;
+
+        /**
+         * The last-modified time of the fort data our details came from, or 0 if we've none.
+         */
+        private volatile long detailsModified;
+
+        private volatile String name;
+
+        private volatile List<Defender> defenders = Collections.emptyList();
+
+        GymState(FortData fort) {
+            this.id = fort.getId();
+            this.latitude = fort.getLatitude();
+            this.longitude = fort.getLongitude();
+            this.fort = fort;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public TeamColor getTeam() {
+            return fort.getOwnedByTeam();
+        }
+
+        public long getPrestige() {
+            return fort.getGymPoints();
+        }
+
+        public PokemonId getGuardPokemonId() {
+            return fort.getGuardPokemonId();
+        }
+
+        public boolean isInBattle() {
+            return fort.getIsInBattle();
+        }
+
+        public long getLastModified() {
+            return fort.getLastModifiedTimestampMs();
+        }
+
+        /**
+         * @return The gym's name, or null if we haven't fetched its details yet.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The gym's defenders as of our last details fetch. Empty until then.
+         */
+        public List<Defender> getDefenders() {
+            return defenders;
+        }
+
+        /**
+         * @return Whether our name and defenders are up to date with the latest snapshot.
+         */
+        public boolean hasFreshDetails() {
+            return detailsModified == fort.getLastModifiedTimestampMs();
+        }
+    }
+
+    /**
+     * A pokemon defending a gym.
+     */
+    public static class Defender {
+
+        private final PokemonId pokemonId;
+
+        private final int cp;
+
+        Defender(PokemonId pokemonId, int cp) {
+            this.pokemonId = pokemonId;
+            this.cp = cp;
+        }
+
+        public PokemonId getPokemonId() {
+            return pokemonId;
+        }
+
+        public int getCp() {
+            return cp;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.inventory.Item;
+import com.pokegoapi.api.inventory.ItemBag;
+import com.pokegoapi.exceptions.LoginFailedException;
+import com.pokegoapi.exceptions.RemoteServerException;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import POGOProtos.Inventory.Item.ItemIdOuterClass.ItemId;
+import POGOProtos.Networking.Responses.RecycleInventoryItemResponseOuterClass.RecycleInventoryItemResponse;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 11:50 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Keeps room in the bag so pokestops never come back empty. Every item has a cap on how many
+ * we keep; once the bag fills past the high water mark, whatever is over its cap gets recycled,
+ * least useful first, until the bag is back down to the low water mark. The caps are what we'd
+ * like to keep, not a promise: a bag too small for them all is still over the high water mark
+ * once everything is down to its cap, so we carry on recycling in the same order past the caps
+ * until there's room. Otherwise every stop would answer that the bag is full. Each item type goes in
+ * a single recycle request however many we're throwing away, so clearing the bag takes a
+ * handful of requests rather than one per item.
+ */
+public class InventoryManager {
+
+    private static final String TAG = "InventoryManager";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * What the bag holds if the server hasn't told us. Every account starts with this.
+     */
+    public static final int DEFAULT_CAPACITY = 350;
+
+    /**
+     * How full the bag gets before we recycle, as a fraction of its capacity. Leaves room for
+     * a couple of ticks of loot.
+     */
+    private static final double HIGH_WATER = 0.9;
+
+    /**
+     * How full we leave the bag after recycling, so we don't recycle again every tick.
+     */
+    private static final double LOW_WATER = 0.75;
+
+    /**
+     * The cap of items we never recycle.
+     */
+    public static final int KEEP_ALL = Integer.MAX_VALUE;
+
+    /**
+     * The order we recycle in, least useful first. Anything missing is never recycled.
+     */
+    private static final ItemId[] RECYCLE_ORDER = {
+            ItemId.ITEM_POTION,
+            ItemId.ITEM_SUPER_POTION,
+            ItemId.ITEM_REVIVE,
+            ItemId.ITEM_HYPER_POTION,
+            ItemId.ITEM_POKE_BALL,
+            ItemId.ITEM_RAZZ_BERRY,
+            ItemId.ITEM_MAX_POTION,
+            ItemId.ITEM_MAX_REVIVE,
+            ItemId.ITEM_GREAT_BALL,
+            ItemId.ITEM_ULTRA_BALL
+    };
+
+    /**
+     * How many of each item we keep at most. Guarded by this.
+     */
+    private final Map<ItemId, Integer> caps = new EnumMap<>(ItemId.class);
+
+    /**
+     * Paces the recycle requests.
+     */
+    private final RequestGovernor governor;
+
+    private long recycled;
+
+    private long batches;
+
+    /**
+     * Creates a new inventory manager with the default caps.
+     *
+     * @param governor Paces the recycle requests.
+     */
+    public InventoryManager(RequestGovernor governor) {
+        this.governor = governor;
+        caps.put(ItemId.ITEM_POTION, 0);
+        caps.put(ItemId.ITEM_SUPER_POTION, 10);
+        caps.put(ItemId.ITEM_REVIVE, 10);
+        caps.put(ItemId.ITEM_HYPER_POTION, 20);
+        caps.put(ItemId.ITEM_POKE_BALL, 50);
+        caps.put(ItemId.ITEM_RAZZ_BERRY, 40);
+        caps.put(ItemId.ITEM_MAX_POTION, 30);
+        caps.put(ItemId.ITEM_MAX_REVIVE, 20);
+        caps.put(ItemId.ITEM_GREAT_BALL, 75);
+        caps.put(ItemId.ITEM_ULTRA_BALL, 100);
+    }
+
+    /**
+     * Sets how many of an item we keep. Only the items in the recycle order are ever recycled,
+     * whatever their cap.
+     *
+     * @param item The item.
+     * @param cap  The most we keep, or KEEP_ALL.
+     */
+    public synchronized void setCap(ItemId item, int cap) {
+        caps.put(item, cap);
+    }
+
+    /**
+     * @return How many of an item we keep at most.
+     */
+    public synchronized int getCap(ItemId item) {
+        Integer cap = caps.get(item);
+        return cap == null ? KEEP_ALL : cap;
+    }
+
+    /**
+     * Recycles surplus items if the bag is past the high water mark.
+     *
+     * @param bag      Our item bag. Its counts should be fresh; recycling what we no longer
+     *                 have just fails.
+     * @param capacity How many items the bag holds.
+     * @param force    Recycle even below the high water mark, e.g. after the server told us the
+     *                 bag is full.
+     * @return How many items were recycled.
+     * @throws LoginFailedException  If login username and password are incorrect.
+     * @throws RemoteServerException If Pokemon GO's servers are down.
+     * @throws InterruptedException  If we're interrupted while waiting for a request slot.
+     */
+    public synchronized int relieve(ItemBag bag, int capacity, boolean force) throws
+            LoginFailedException,
+            RemoteServerException,
+            InterruptedException {
+        int count = bag.getItemsCount();
+        if (!force && count < capacity * HIGH_WATER) {
+            return 0;
+        }
+        // Counted once up front, and kept up to date here as we recycle.
+        Map<ItemId, Integer> counts = new EnumMap<>(ItemId.class);
+        for (ItemId id : RECYCLE_ORDER) {
+            Item item = bag.getItem(id);
+            counts.put(id, item == null ? 0 : item.getCount());
+        }
+        int lowWater = (int) (capacity * LOW_WATER);
+        // When forced, at least clear everything over its cap.
+        int excess = force ? Integer.MAX_VALUE : count - lowWater;
+        int total = 0;
+        for (ItemId id : RECYCLE_ORDER) {
+            if (excess <= 0) {
+                break;
+            }
+            int surplus = counts.get(id) - getCap(id);
+            if (surplus > 0) {
+                int amount = recycle(bag, id, Math.min(surplus, excess));
+                counts.put(id, counts.get(id) - amount);
+                total += amount;
+                excess -= amount;
+            }
+        }
+
+        if (count - total >= capacity * HIGH_WATER) {
+            LOG.w("Bag still holds {} of {} with everything at its cap; recycling past the caps.",
+                    count - total, capacity);
+            excess = count - total - lowWater;
+            for (ItemId id : RECYCLE_ORDER) {
+                if (excess <= 0) {
+                    break;
+                }
+                int left = counts.get(id);
+                if (left > 0 && getCap(id) != KEEP_ALL) {
+                    int amount = recycle(bag, id, Math.min(left, excess));
+                    total += amount;
+                    excess -= amount;
+                }
+            }
+        }
+        recycled += total;
+        return total;
+    }
+
+    /**
+     * Recycles some of an item in a single request.
+     *
+     * @return How many were recycled: all of them, or none if the server refused.
+     */
+    private int recycle(ItemBag bag, ItemId id, int amount) throws
+            LoginFailedException,
+            RemoteServerException,
+            InterruptedException {
+        governor.acquire(RequestGovernor.RequestClass.RECYCLE);
+        RecycleInventoryItemResponse.Result result = bag.removeItem(id, amount);
+        batches++;
+        if (result != RecycleInventoryItemResponse.Result.SUCCESS) {
+            LOG.w("Couldn't recycle {}: {}", id, result);
+            return 0;
+        }
+        if (LOG.isLoggable(Logger.INFO)) {
+            LOG.i("Recycled {} {}.", amount, id);
+        }
+        return amount;
+    }
+
+    /**
+     * @return How many items we've recycled so far.
+     */
+    public synchronized long getRecycled() {
+        return recycled;
+    }
+
+    /**
+     * @return How many recycle requests we've made so far.
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 4:30 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * The TCP side of what we serve to other devices: listens on one address, turns away anyone
+ * connecting from outside the local network or beyond the connection limit, and gives every
+ * other connection its own thread. What's said over a connection is up to the handler.
+ */
+public class LanServer {
+
+    private static final String TAG = "LanServer";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    private final String name;
+
+    private final int maxConnections;
+
+    private final Handler handler;
+
+    private final Set<Socket> connections = new CopyOnWriteArraySet<>();
+
+    /**
+     * Guarded by this.
+     */
+    private ServerSocket serverSocket;
+
+    private volatile boolean running;
+
+    /**
+     * Creates a server. Nothing is listened on until start().
+     *
+     * @param name           What to call the server in thread names and the log.
+     * @param maxConnections The most connections served at once.
+     * @param handler        Serves each connection.
+     */
+    public LanServer(String name, int maxConnections, Handler handler) {
+        this.name = name;
+        this.maxConnections = maxConnections;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts listening. Does nothing if we already are.
+     *
+     * @param address The address to listen on, usually findLanAddress().
+     * @param port    The port to listen on, or 0 for any free one.
+     * @throws IOException If the port can't be bound.
+     */
+    public synchronized void start(InetAddress address, int port) throws IOException {
+        if (running) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket(port, maxConnections, address);
+        serverSocket = socket;
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(socket);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        LOG.i("{} listening on port {}", name, socket.getLocalPort());
+    }
+
+    /**
+     * Stops listening and drops every connection.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            closeQuietly(serverSocket);
+            serverSocket = null;
+        }
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The port we're listening on, or -1 if we aren't.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Our address on the local network, or null if we aren't on one. Only private
+     * IPv4 addresses count, so mobile data never qualifies.
+     * @throws SocketException If the network interfaces can't be listed.
+     */
+    public static InetAddress findLanAddress() throws SocketException {
+        for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!network.isUp() || network.isLoopback()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(network.getInetAddresses())) {
+                if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                    return address;
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more we can do.
+        }
+    }
+
+    /**
+     * Hands every connection to the handler on its own thread until the socket is closed.
+     */
+    private void accept(ServerSocket serverSocket) {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    LOG.w(e, "{} stopped accepting connections", name);
+                }
+                return;
+            }
+            InetAddress peer = socket.getInetAddress();
+            if (!peer.isSiteLocalAddress() && !peer.isLoopbackAddress()) {
+                LOG.w("Turning away {}, it isn't on the local network", peer);
+                closeQuietly(socket);
+                continue;
+            }
+            if (connections.size() >= maxConnections) {
+                LOG.w("Turning away {}, {} is full", peer, name);
+                closeQuietly(socket);
+                continue;
+            }
+            connections.add(socket);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, name + " " + peer);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            handler.serve(socket);
+        } catch (IOException e) {
+            LOG.d("Lost {}", socket.getInetAddress());
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Serves one connection.
+     */
+    public interface Handler {
+
+        /**
+         * Talks to a connected device until either side is done. Runs on the connection's own
+         * thread; the socket is closed once it returns.
+         *
+         * @param socket The connection.
+         * @throws IOException If the connection fails.
+         */
+        void serve(Socket socket) throws IOException;
+    }
+}
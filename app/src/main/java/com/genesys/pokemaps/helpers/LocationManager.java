@@ -26,7 +26,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 
-import com.genesys.pokemaps.Utils;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
@@ -41,8 +40,9 @@ import com.google.android.gms.location.LocationSettingsRequest;
 import com.google.android.gms.location.LocationSettingsResult;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Hand crafted by Primed with love for the Pokemaps project.
@@ -55,6 +55,10 @@ public class LocationManager implements
         OnConnectionFailedListener,
         LocationListener {
 
+    private static final String TAG = "LocationManager";
+
+    private static final Logger LOG = Logger.get(TAG);
+
     /**
      * The interval in which the application requests a location update in milliseconds.
      */
@@ -73,10 +77,16 @@ public class LocationManager implements
     private static LocationManager instance;
 
     /**
-     * An array of Listeners. When our location is updated, we will notify each of our listeners of
-     * the changed value.
+     * Our listeners. When our location is updated, we will notify each of them of the changed
+     * value. Held weakly, so an Activity that forgets to unregister can still be collected.
+     */
+    private final List<WeakReference<Listener>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * How many components have called onStart() without a matching onStop(). We stay connected
+     * to Google Play Services while this is above zero. Guarded by this.
      */
-    private static List<Listener> listeners;
+    private int startCount;
 
     /**
      * Our hero that connects us to Google Play Services
@@ -96,7 +106,6 @@ public class LocationManager implements
     private LocationManager(Context context) {
         createGoogleApiClient(context);
         createLocationRequest();
-        listeners = new ArrayList<>();
     }
 
     /**
@@ -104,14 +113,15 @@ public class LocationManager implements
      * ony one instance of LocationManager at a time. One instance can be shared between multiple
      * threads at a time.
      *
-     * @param context Current application context.
+     * @param context Any context. Only its application context is kept, since we outlive every
+     *                Activity and Service that uses us.
      * @return LocationManager instance.
      */
-    public static LocationManager getInstance(Context context) {
+    public static synchronized LocationManager getInstance(Context context) {
         // If an instance hasn't been created yet, create it. Otherwise, we return our current
         // instance.
         if (instance == null) {
-            instance = new LocationManager(context);
+            instance = new LocationManager(context.getApplicationContext());
         }
         return instance;
     }
@@ -154,24 +164,32 @@ public class LocationManager implements
     }
 
     /**
-     * Adds the specified listener to an array of listeners.
+     * Adds the specified listener to our listeners. Only a weak reference is kept, so the
+     * listener must be reachable from elsewhere; an anonymous class held by nothing else will
+     * stop hearing from us at the next garbage collection.
      *
      * @param listener The listener to be added.
      */
-    public void register(Listener listener) {
-        if (listeners != null && !listeners.contains(listener)) {
-            listeners.add(listener);
+    public synchronized void register(Listener listener) {
+        for (WeakReference<Listener> reference : listeners) {
+            if (reference.get() == listener) {
+                return;
+            }
         }
+        listeners.add(new WeakReference<>(listener));
     }
 
     /**
-     * Removes specified listener from the array of listeners.
+     * Removes specified listener from our listeners, along with any that have been collected.
      *
      * @param listener The listener to be removed.
      */
-    public void unregister(Listener listener) {
-        if (listeners != null && listeners.contains(listener)) {
-            listeners.remove(listener);
+    public synchronized void unregister(Listener listener) {
+        for (WeakReference<Listener> reference : listeners) {
+            Listener registered = reference.get();
+            if (registered == null || registered == listener) {
+                listeners.remove(reference);
+            }
         }
     }
 
@@ -181,29 +199,40 @@ public class LocationManager implements
      * @param location Updated location.
      */
     private void notifyLocationChanged(Location location) {
-        if (listeners != null) {
-            for (Listener listener : listeners) {
+        for (WeakReference<Listener> reference : listeners) {
+            Listener listener = reference.get();
+            if (listener != null) {
                 listener.onLocationChanged(location);
+            } else {
+                listeners.remove(reference);
             }
         }
     }
 
     /**
-     * Run this method from the base Activity's onStart().
+     * Run this method from the onStart() (or onCreate()) of every component that needs location
+     * updates. We connect when the first one starts.
      */
-    public void onStart() {
+    public synchronized void onStart() {
         // Check if our Google API Client is valid, then connect.
-        if (googleApiClient != null) {
+        if (startCount++ == 0 && googleApiClient != null) {
             googleApiClient.connect();
         }
     }
 
     /**
-     * Run this method from the base Activity's onStop().
+     * Run this method from the matching onStop() (or onDestroy()). We disconnect, and stop
+     * location updates, once the last component has stopped.
      */
-    public void onStop() {
+    public synchronized void onStop() {
+        if (startCount == 0 || --startCount > 0) {
+            return;
+        }
         // If our Google APIs are initialized, disconnect.
         if (googleApiClient != null) {
+            if (googleApiClient.isConnected()) {
+                LocationServices.FusedLocationApi.removeLocationUpdates(googleApiClient, this);
+            }
             googleApiClient.disconnect();
         }
     }
@@ -218,7 +247,7 @@ public class LocationManager implements
      */
     @Override
     public void onConnected(@Nullable Bundle bundle) {
-        Utils.debug(this, "Connected to Google Play Services.");
+        LOG.d("Connected to Google Play Services.");
         // Add our location request to the builder.
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder()
                 .addLocationRequest(locationRequest);
@@ -239,8 +268,8 @@ public class LocationManager implements
                     case LocationSettingsStatusCodes.SETTINGS_CHANGE_UNAVAILABLE:
                         // Location settings are not satisfied. However, we have no way
                         // to fix the settings so we won't show the dialog.
-                        Utils.debug(this, "Unable to satisfy location settings. Automatic updates " +
-                                "will not ne enabled. Status message: " + status.getStatusMessage());
+                        LOG.w("Unable to satisfy location settings. Automatic updates will not "
+                                + "be enabled. Status message: {}", status.getStatusMessage());
                         break;
                 }
             }
@@ -255,7 +284,7 @@ public class LocationManager implements
      */
     @Override
     public void onConnectionSuspended(int i) {
-        Utils.debug(this, "Connection to Google Play Services suspended.");
+        LOG.d("Connection to Google Play Services suspended.");
     }
 
     /* Overridden methods for OnConnectionFailedListener */
@@ -268,8 +297,8 @@ public class LocationManager implements
      */
     @Override
     public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-        Utils.debug(this, "Google Play connection failed. Status message: "
-                + connectionResult.getErrorMessage());
+        LOG.w("Google Play connection failed. Status message: {}",
+                connectionResult.getErrorMessage());
     }
 
     /* Overridden methods for LocationListener */
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import android.util.Log;
+
+import com.genesys.pokemaps.BuildConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 8:15 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Our logging. Each tag gets a Logger with its own level that can be changed at runtime, and
+ * messages are templates ("{} found at {}, {}") whose arguments are only turned into a string once
+ * the level check has passed. Even then the formatting happens on a background thread: the caller
+ * only copies the template and its arguments into a preallocated ring and moves on. If the ring
+ * is full the message is dropped and counted rather than making the caller wait.
+ * <p>
+ * Release builds log warnings and errors only, so a disabled call costs one volatile read. Hot
+ * paths that would box primitives for their arguments should check isLoggable() first.
+ */
+public class Logger {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+
+    /**
+     * Higher than every level, for silencing a tag entirely.
+     */
+    public static final int OFF = Log.ASSERT + 1;
+
+    /**
+     * The level new tags start at.
+     */
+    private static volatile int defaultLevel = BuildConfig.DEBUG ? DEBUG : WARN;
+
+    /**
+     * How many messages can wait to be written before we start dropping them.
+     */
+    private static final int RING_SIZE = 256;
+
+    /**
+     * Every logger we've handed out, by tag.
+     */
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    private static final Sink sink = new Sink();
+
+    private final String tag;
+
+    private volatile int level;
+
+    private Logger(String tag, int level) {
+        this.tag = tag;
+        this.level = level;
+    }
+
+    /**
+     * @param tag The tag to log under. Usually the caller's TAG constant.
+     * @return The logger for that tag. The same one every time, so keep it in a static field.
+     */
+    public static Logger get(String tag) {
+        Logger logger = loggers.get(tag);
+        if (logger == null) {
+            synchronized (loggers) {
+                logger = loggers.get(tag);
+                if (logger == null) {
+                    logger = new Logger(tag, defaultLevel);
+                    loggers.put(tag, logger);
+                }
+            }
+        }
+        return logger;
+    }
+
+    /**
+     * Changes a tag's level from now on. Messages below it are thrown away before they're
+     * formatted.
+     *
+     * @param tag   The tag.
+     * @param level One of VERBOSE, DEBUG, INFO, WARN, ERROR or OFF.
+     */
+    public static void setLevel(String tag, int level) {
+        get(tag).level = level;
+    }
+
+    /**
+     * Changes the level of every tag, including the ones that don't have a logger yet. Meant for
+     * flipping everything to verbose while debugging.
+     *
+     * @param level One of VERBOSE, DEBUG, INFO, WARN, ERROR or OFF.
+     */
+    public static void setDefaultLevel(int level) {
+        synchronized (loggers) {
+            defaultLevel = level;
+            for (Logger logger : loggers.values()) {
+                logger.level = level;
+            }
+        }
+    }
+
+    /**
+     * @return How many messages were dropped because the ring was full.
+     */
+    public static long getDroppedCount() {
+        return sink.getDropped();
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return Whether a message at this level would be written. Check this before building
+     * arguments that cost something.
+     */
+    public boolean isLoggable(int level) {
+        return level >= this.level;
+    }
+
+    /* Verbose */
+
+    public void v(String message) {
+        if (VERBOSE >= level) sink.post(VERBOSE, tag, message, null, null, null, 0, null);
+    }
+
+    public void v(String template, Object a) {
+        if (VERBOSE >= level) sink.post(VERBOSE, tag, template, a, null, null, 1, null);
+    }
+
+    public void v(String template, Object a, Object b) {
+        if (VERBOSE >= level) sink.post(VERBOSE, tag, template, a, b, null, 2, null);
+    }
+
+    public void v(String template, Object a, Object b, Object c) {
+        if (VERBOSE >= level) sink.post(VERBOSE, tag, template, a, b, c, 3, null);
+    }
+
+    /* Debug */
+
+    public void d(String message) {
+        if (DEBUG >= level) sink.post(DEBUG, tag, message, null, null, null, 0, null);
+    }
+
+    public void d(String template, Object a) {
+        if (DEBUG >= level) sink.post(DEBUG, tag, template, a, null, null, 1, null);
+    }
+
+    public void d(String template, Object a, Object b) {
+        if (DEBUG >= level) sink.post(DEBUG, tag, template, a, b, null, 2, null);
+    }
+
+    public void d(String template, Object a, Object b, Object c) {
+        if (DEBUG >= level) sink.post(DEBUG, tag, template, a, b, c, 3, null);
+    }
+
+    /* Info */
+
+    public void i(String message) {
+        if (INFO >= level) sink.post(INFO, tag, message, null, null, null, 0, null);
+    }
+
+    public void i(String template, Object a) {
+        if (INFO >= level) sink.post(INFO, tag, template, a, null, null, 1, null);
+    }
+
+    public void i(String template, Object a, Object b) {
+        if (INFO >= level) sink.post(INFO, tag, template, a, b, null, 2, null);
+    }
+
+    public void i(String template, Object a, Object b, Object c) {
+        if (INFO >= level) sink.post(INFO, tag, template, a, b, c, 3, null);
+    }
+
+    /* Warn */
+
+    public void w(String message) {
+        if (WARN >= level) sink.post(WARN, tag, message, null, null, null, 0, null);
+    }
+
+    public void w(String template, Object a) {
+        if (WARN >= level) sink.post(WARN, tag, template, a, null, null, 1, null);
+    }
+
+    public void w(String template, Object a, Object b) {
+        if (WARN >= level) sink.post(WARN, tag, template, a, b, null, 2, null);
+    }
+
+    public void w(Throwable throwable, String message) {
+        if (WARN >= level) sink.post(WARN, tag, message, null, null, null, 0, throwable);
+    }
+
+    public void w(Throwable throwable, String template, Object a) {
+        if (WARN >= level) sink.post(WARN, tag, template, a, null, null, 1, throwable);
+    }
+
+    /* Error */
+
+    public void e(String message) {
+        if (ERROR >= level) sink.post(ERROR, tag, message, null, null, null, 0, null);
+    }
+
+    public void e(String template, Object a) {
+        if (ERROR >= level) sink.post(ERROR, tag, template, a, null, null, 1, null);
+    }
+
+    public void e(Throwable throwable, String message) {
+        if (ERROR >= level) sink.post(ERROR, tag, message, null, null, null, 0, throwable);
+    }
+
+    public void e(Throwable throwable, String template, Object a) {
+        if (ERROR >= level) sink.post(ERROR, tag, template, a, null, null, 1, throwable);
+    }
+
+    /**
+     * Fills in a template's {} placeholders in order. Extra placeholders are left as they are.
+     */
+    static String format(String template, Object a, Object b, Object c, int argCount) {
+        if (argCount == 0) {
+            return template;
+        }
+        StringBuilder message = new StringBuilder(template.length() + 16 * argCount);
+        int start = 0;
+        for (int arg = 0; arg < argCount; arg++) {
+            int placeholder = template.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(template, start, placeholder)
+                    .append(arg == 0 ? a : arg == 1 ? b : c);
+            start = placeholder + 2;
+        }
+        return message.append(template, start, template.length()).toString();
+    }
+
+    /**
+     * One message waiting to be written. The ring reuses these, so posting allocates nothing.
+     */
+    private static class Record {
+
+        private int level;
+        private String tag;
+        private String template;
+        private Object a;
+        private Object b;
+        private Object c;
+        private int argCount;
+        private Throwable throwable;
+
+        void set(int level, String tag, String template, Object a, Object b, Object c,
+                 int argCount, Throwable throwable) {
+            this.level = level;
+            this.tag = tag;
+            this.template = template;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.argCount = argCount;
+            this.throwable = throwable;
+        }
+
+        void copyTo(Record other) {
+            other.set(level, tag, template, a, b, c, argCount, throwable);
+        }
+
+        /**
+         * Lets go of the arguments so the ring doesn't keep them alive.
+         */
+        void clear() {
+            set(0, null, null, null, null, null, 0, null);
+        }
+    }
+
+    /**
+     * The ring of waiting messages and the thread that writes them to logcat.
+     */
+    private static class Sink implements Runnable {
+
+        private final Record[] ring = new Record[RING_SIZE];
+
+        /**
+         * Where the next message goes and where the oldest waiting one is. Guarded by ring.
+         */
+        private int head;
+        private int size;
+
+        private long dropped;
+
+        /**
+         * How many drops we've already reported. Only touched by the writer thread.
+         */
+        private long reportedDropped;
+
+        private Thread writer;
+
+        Sink() {
+            for (int i = 0; i < RING_SIZE; i++) {
+                ring[i] = new Record();
+            }
+        }
+
+        void post(int level, String tag, String template, Object a, Object b, Object c,
+                  int argCount, Throwable throwable) {
+            synchronized (ring) {
+                if (writer == null) {
+                    writer = new Thread(this, "Logger");
+                    writer.setDaemon(true);
+                    writer.setPriority(Thread.MIN_PRIORITY);
+                    writer.start();
+                }
+                if (size == RING_SIZE) {
+                    dropped++;
+                    return;
+                }
+                ring[(head + size) % RING_SIZE].set(level, tag, template, a, b, c, argCount,
+                        throwable);
+                size++;
+                if (size == 1) {
+                    ring.notify();
+                }
+            }
+        }
+
+        long getDropped() {
+            synchronized (ring) {
+                return dropped;
+            }
+        }
+
+        @Override
+        public void run() {
+            Record record = new Record();
+            while (true) {
+                long dropped;
+                synchronized (ring) {
+                    while (size == 0) {
+                        try {
+                            ring.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    ring[head].copyTo(record);
+                    ring[head].clear();
+                    head = (head + 1) % RING_SIZE;
+                    size--;
+                    dropped = this.dropped;
+                }
+
+                if (dropped != reportedDropped) {
+                    Log.w("Logger", (dropped - reportedDropped) + " log messages dropped.");
+                    reportedDropped = dropped;
+                }
+                String message = format(record.template, record.a, record.b, record.c,
+                        record.argCount);
+                if (record.throwable != null) {
+                    message += '\n' + Log.getStackTraceString(record.throwable);
+                }
+                Log.println(record.level, record.tag, message);
+                record.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.map.fort.Pokestop;
+import com.pokegoapi.api.map.fort.PokestopLootResult;
+import com.pokegoapi.exceptions.LoginFailedException;
+import com.pokegoapi.exceptions.RemoteServerException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 10:20 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Keeps track of every pokestop we've seen and when each one can be looted again, so a tick only
+ * has to look at stops that are actually lootable. Candidates are ordered by how soon they'll
+ * leave our range given the direction we're moving, then looted in parallel.
+ */
+public class LootEngine {
+
+    private static final String TAG = "LootEngine";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * The distance in meters from which a pokestop can be spun.
+     */
+    public static final double LOOT_RANGE = 40;
+
+    /**
+     * How long a pokestop stays in cooldown after a spin, in milliseconds.
+     */
+    public static final long LOOT_COOLDOWN = 5 * 60 * 1000;
+
+    /**
+     * How long to leave a stop alone after the bag was too full to loot it, in milliseconds.
+     */
+    private static final long INVENTORY_FULL_BACKOFF = 60 * 1000;
+
+    /**
+     * How long to wait for an individual loot before giving up on it this tick, in seconds.
+     */
+    private static final long LOOT_TIMEOUT = 15;
+
+    /**
+     * Below this speed in m/s we treat ourselves as standing still.
+     */
+    private static final double MIN_SPEED = 0.5;
+
+    /**
+     * Our known pokestops, keyed by their fort id.
+     */
+    private final Map<String, Stop> stops = new HashMap<>();
+
+    /**
+     * Runs the loot requests. Its pool size is the concurrency limit.
+     */
+    private final GameExecutor executor;
+
+    /**
+     * Paces the loot requests.
+     */
+    private final RequestGovernor governor;
+
+    /**
+     * Tells us when cooldowns are over.
+     */
+    private final Clock clock;
+
+    /**
+     * Our previous position and when we were there, used to work out which way we're heading.
+     */
+    private double lastLat;
+    private double lastLng;
+    private long lastTime;
+
+    /**
+     * Our current velocity in meters per second, east and north.
+     */
+    private double velocityX;
+    private double velocityY;
+
+    /**
+     * Bumped by every update(), so we can tell which stops the latest map objects had.
+     */
+    private int generation;
+
+    private volatile CooldownListener cooldownListener;
+
+    /**
+     * Creates a new loot engine.
+     *
+     * @param maxConcurrentLoots The most loot requests that may be in flight at once.
+     * @param governor           Paces the loot requests.
+     * @param clock              Tells us when cooldowns are over.
+     */
+    public LootEngine(int maxConcurrentLoots, RequestGovernor governor, Clock clock) {
+        executor = new GameExecutor(TAG, maxConcurrentLoots);
+        this.governor = governor;
+        this.clock = clock;
+    }
+
+    /**
+     * Adds any new pokestops and refreshes the cooldowns of ones we already know about. Stops
+     * missing from the latest map objects are too far away to loot, so we let go of their
+     * Pokestop objects (and the protobufs they hold) until they're back.
+     *
+     * @param pokestops Pokestops from the latest map objects.
+     */
+    public synchronized void update(Collection<Pokestop> pokestops) {
+        generation++;
+        for (Pokestop pokestop : pokestops) {
+            Stop stop = stops.get(pokestop.getId());
+            if (stop == null) {
+                stop = new Stop(pokestop);
+                stops.put(pokestop.getId(), stop);
+            } else {
+                // Hold on to the freshest object so loot() uses up to date fort data.
+                stop.pokestop = pokestop;
+            }
+            stop.generation = generation;
+            // Never move a cooldown backwards; our own estimate may be newer than the server's.
+            setLootableAt(stop, pokestop.getId(),
+                    Math.max(stop.lootableAt, pokestop.getCooldownCompleteTimestampMs()));
+        }
+        for (Stop stop : stops.values()) {
+            if (stop.generation != generation && !stop.inFlight) {
+                stop.pokestop = null;
+            }
+        }
+    }
+
+    /**
+     * Loots every lootable pokestop in range of the given position, the ones about to leave our
+     * range first, and waits for the results.
+     *
+     * @param latitude  Our current latitude.
+     * @param longitude Our current longitude.
+     * @return The result of each loot that completed.
+     * @throws LoginFailedException  If every loot failed because our login expired.
+     * @throws RemoteServerException If every loot failed because Pokemon GO's servers are down.
+     */
+    public List<PokestopLootResult> loot(double latitude, double longitude) throws
+            LoginFailedException,
+            RemoteServerException {
+        long now = clock.currentTimeMillis();
+        final List<Stop> candidates = findCandidates(latitude, longitude, now);
+
+        List<Future<PokestopLootResult>> futures = new ArrayList<>(candidates.size());
+        for (final Stop stop : candidates) {
+            futures.add(executor.submit(new Callable<PokestopLootResult>() {
+                @Override
+                public PokestopLootResult call() throws Exception {
+                    governor.acquire(RequestGovernor.RequestClass.LOOT);
+                    return stop.pokestop.loot();
+                }
+            }, null));
+        }
+
+        List<PokestopLootResult> results = new ArrayList<>(futures.size());
+        Exception failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            Stop stop = candidates.get(i);
+            PokestopLootResult result = null;
+            try {
+                result = futures.get(i).get(LOOT_TIMEOUT, TimeUnit.SECONDS);
+                results.add(result);
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (TimeoutException | InterruptedException | CancellationException e) {
+                futures.get(i).cancel(true);
+                failure = e;
+            }
+            finish(stop, result, clock.currentTimeMillis());
+        }
+
+        if (results.isEmpty() && failure != null) {
+            if (failure instanceof LoginFailedException) {
+                throw (LoginFailedException) failure;
+            } else if (failure instanceof RemoteServerException) {
+                throw (RemoteServerException) failure;
+            }
+            LOG.w(failure, "Looting failed");
+        }
+        return results;
+    }
+
+    /**
+     * Picks out the stops we can loot right now and sorts them so the ones leaving our range
+     * soonest come first. Also updates our velocity estimate.
+     */
+    private synchronized List<Stop> findCandidates(double latitude, double longitude, long now) {
+        if (lastTime != 0 && now > lastTime) {
+            double seconds = (now - lastTime) / 1000d;
+            velocityX = GeoUtils.toX(lastLat, lastLng, longitude) / seconds;
+            velocityY = GeoUtils.toY(lastLat, latitude) / seconds;
+        }
+        lastLat = latitude;
+        lastLng = longitude;
+        lastTime = now;
+
+        List<Stop> candidates = new ArrayList<>();
+        for (Stop stop : stops.values()) {
+            if (stop.pokestop == null || stop.inFlight || stop.lootableAt > now) {
+                continue;
+            }
+            double x = GeoUtils.toX(latitude, longitude, stop.longitude);
+            double y = GeoUtils.toY(latitude, stop.latitude);
+            double distance = Math.sqrt(x * x + y * y);
+            if (distance > LOOT_RANGE) {
+                continue;
+            }
+            stop.distance = distance;
+            stop.exitTime = exitTime(x, y);
+            stop.inFlight = true;
+            candidates.add(stop);
+        }
+
+        Collections.sort(candidates, new Comparator<Stop>() {
+            @Override
+            public int compare(Stop a, Stop b) {
+                int byExit = Double.compare(a.exitTime, b.exitTime);
+                return byExit != 0 ? byExit : Double.compare(a.distance, b.distance);
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Works out how many seconds until a stop at (x, y) meters from us falls out of range if we
+     * keep our current velocity.
+     *
+     * @return Seconds until the stop leaves our range, or infinity if we're standing still.
+     */
+    private double exitTime(double x, double y) {
+        double speedSquared = velocityX * velocityX + velocityY * velocityY;
+        if (speedSquared < MIN_SPEED * MIN_SPEED) {
+            return Double.POSITIVE_INFINITY;
+        }
+        // Solve |v * t - s| = LOOT_RANGE for the positive root.
+        double dot = velocityX * x + velocityY * y;
+        double c = x * x + y * y - LOOT_RANGE * LOOT_RANGE;
+        double discriminant = Math.max(0, dot * dot - speedSquared * c);
+        return (dot + Math.sqrt(discriminant)) / speedSquared;
+    }
+
+    /**
+     * Records when a stop can be looted again based on the outcome of looting it.
+     *
+     * @param result The loot result, or null if the request failed.
+     */
+    private synchronized void finish(Stop stop, PokestopLootResult result, long now) {
+        stop.inFlight = false;
+        if (result == null) {
+            return;
+        }
+        stop.bagFull = false;
+        switch (result.getResult()) {
+            case SUCCESS:
+            case IN_COOLDOWN_PERIOD:
+                setLootableAt(stop, stop.pokestop.getId(), Math.max(now + LOOT_COOLDOWN,
+                        stop.pokestop.getCooldownCompleteTimestampMs()));
+                break;
+            case INVENTORY_FULL:
+                stop.lootableAt = now + INVENTORY_FULL_BACKOFF;
+                stop.bagFull = true;
+                break;
+            default:
+                // Out of range and the like; try again whenever it's a candidate.
+                break;
+        }
+    }
+
+    /**
+     * Moves a stop's cooldown and tells the listener if it changed. Only cooldowns the server
+     * set are reported, not our own backoffs.
+     */
+    private void setLootableAt(Stop stop, String fortId, long lootableAt) {
+        if (stop.lootableAt == lootableAt) {
+            return;
+        }
+        stop.lootableAt = lootableAt;
+        CooldownListener listener = cooldownListener;
+        if (listener != null) {
+            listener.onCooldownChanged(fortId, stop.latitude, stop.longitude, lootableAt);
+        }
+    }
+
+    /**
+     * Sets who to tell when a stop's cooldown changes. Called with the engine locked, on
+     * whatever thread learned of it, so it should return quickly.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public void setCooldownListener(CooldownListener listener) {
+        cooldownListener = listener;
+    }
+
+    /**
+     * Makes stops that were turned away for a full bag lootable again, once we've made room.
+     */
+    public synchronized void retryBagFull() {
+        for (Stop stop : stops.values()) {
+            if (stop.bagFull) {
+                stop.bagFull = false;
+                stop.lootableAt = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of pokestops the engine knows about.
+     */
+    public synchronized int size() {
+        return stops.size();
+    }
+
+    /**
+     * Hears about pokestops going into cooldown.
+     */
+    public interface CooldownListener {
+
+        /**
+         * A stop's cooldown changed, because we looted it or the server told us.
+         *
+         * @param fortId     The stop's fort id.
+         * @param latitude   Where it is.
+         * @param longitude  Where it is.
+         * @param lootableAt When it can be looted again, in epoch milliseconds.
+         */
+        void onCooldownChanged(String fortId, double latitude, double longitude, long lootableAt);
+    }
+
+    /**
+     * What we know about a single pokestop.
+     */
+    private static class Stop {
+
+        /**
+         * The latest Pokestop object, or null if the stop wasn't in the latest map objects.
+         */
+        private Pokestop pokestop;
+
+        /**
+         * The update() that last saw this stop.
+         */
+        private int generation;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        /**
+         * When the stop comes out of cooldown, in epoch milliseconds.
+         */
+        private long lootableAt;
+
+        /**
+         * Whether a loot request for this stop is currently running.
+         */
+        private boolean inFlight;
+
+        /**
+         * Whether the last loot came back with a full bag.
+         */
+        private boolean bagFull;
+
+        /**
+         * Scratch values for sorting candidates, only valid during findCandidates().
+         */
+        private double distance;
+        private double exitTime;
+
+        Stop(Pokestop pokestop) {
+            this.pokestop = pokestop;
+            latitude = pokestop.getLatitude();
+            longitude = pokestop.getLongitude();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.map.pokemon.NearbyPokemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 5:20 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Works out where nearby pokemon actually are. Each tick tells us how far away every nearby
+ * pokemon is from where we're standing; that's a ring around us. Once we've seen the same
+ * pokemon (by encounter id) from three or more spots, the point closest to all of its rings is
+ * found with least squares. How much to trust that point depends on how well the rings agree and
+ * how spread out the spots we measured from are.
+ */
+public class NearbyTracker {
+
+    /**
+     * How far we have to move before a new distance reading is worth keeping, in meters.
+     */
+    private static final double MIN_SPACING = 15;
+
+    /**
+     * The most readings we keep per pokemon. The oldest are dropped first.
+     */
+    private static final int MAX_OBSERVATIONS = 12;
+
+    /**
+     * How long a pokemon can go missing from the nearby list before we forget it, in
+     * milliseconds. Covers a tick or two of flaky responses.
+     */
+    private static final long TRACK_TIMEOUT = 2 * 60 * 1000;
+
+    /**
+     * How far off the server's distances typically are, in meters.
+     */
+    private static final double DISTANCE_NOISE = 10;
+
+    /**
+     * How many Gauss-Newton steps we take at most.
+     */
+    private static final int MAX_ITERATIONS = 10;
+
+    /**
+     * Every pokemon we're tracking, by encounter id.
+     */
+    private final Map<Long, Track> tracks = new HashMap<>();
+
+    /**
+     * Tells us how long a pokemon has been missing.
+     */
+    private final Clock clock;
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param clock Tells us how long a pokemon has been missing.
+     */
+    public NearbyTracker(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Records a tick's nearby pokemon, measured from where we are now, and updates estimates.
+     *
+     * @param latitude  Our latitude when the list was fetched.
+     * @param longitude Our longitude when the list was fetched.
+     * @param nearby    The nearby pokemon.
+     */
+    public synchronized void update(double latitude, double longitude, List<NearbyPokemon> nearby) {
+        long now = clock.currentTimeMillis();
+        for (NearbyPokemon pokemon : nearby) {
+            Track track = tracks.get(pokemon.getEncounterId());
+            if (track == null) {
+                track = new Track(pokemon.getEncounterId(), pokemon.getPokemonId());
+                tracks.put(pokemon.getEncounterId(), track);
+            }
+            track.lastSeen = now;
+            track.observe(latitude, longitude, pokemon.getDistanceInMeters());
+            track.solve();
+        }
+
+        for (Iterator<Track> it = tracks.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > TRACK_TIMEOUT) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Our best guess at where each tracked pokemon is. Only pokemon seen from at least
+     * three spots have one.
+     */
+    public synchronized List<Estimate> getEstimates() {
+        List<Estimate> estimates = new ArrayList<>();
+        for (Track track : tracks.values()) {
+            if (track.estimate != null) {
+                estimates.add(track.estimate);
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * @param encounterId The pokemon's encounter id.
+     * @return Our best guess at where it is, or null if we don't have one yet.
+     */
+    public synchronized Estimate getEstimate(long encounterId) {
+        Track track = tracks.get(encounterId);
+        return track == null ? null : track.estimate;
+    }
+
+    public synchronized int size() {
+        return tracks.size();
+    }
+
+    /**
+     * The readings for a single pokemon.
+     */
+    private static class Track {
+
+        private final long encounterId;
+
+        private final PokemonId pokemonId;
+
+        /**
+         * Where we measured from and how far away it was. Parallel arrays, oldest first.
+         */
+        private final double[] latitudes = new double[MAX_OBSERVATIONS];
+
+        private final double[] longitudes = new double[MAX_OBSERVATIONS];
+
+        private final double[] distances = new double[MAX_OBSERVATIONS];
+
+        private int count;
+
+        private long lastSeen;
+
+        private Estimate estimate;
+
+        Track(long encounterId, PokemonId pokemonId) {
+            this.encounterId = encounterId;
+            this.pokemonId = pokemonId;
+        }
+
+        /**
+         * Adds a reading, or replaces the last one if we haven't moved since.
+         */
+        void observe(double latitude, double longitude, double distance) {
+            if (count > 0 && GeoUtils.distance(latitudes[count - 1], longitudes[count - 1],
+                    latitude, longitude) < MIN_SPACING) {
+                // Same spot; a fresher distance is still worth having.
+                distances[count - 1] = distance;
+                return;
+            }
+            if (count == MAX_OBSERVATIONS) {
+                System.arraycopy(latitudes, 1, latitudes, 0, count - 1);
+                System.arraycopy(longitudes, 1, longitudes, 0, count - 1);
+                System.arraycopy(distances, 1, distances, 0, count - 1);
+                count--;
+            }
+            latitudes[count] = latitude;
+            longitudes[count] = longitude;
+            distances[count] = distance;
+            count++;
+        }
+
+        /**
+         * Finds the point whose distances to our reading spots best match the readings.
+         */
+        void solve() {
+            if (count < 3) {
+                return;
+            }
+            // Work in meters on a flat plane around the first reading.
+            double originLat = latitudes[0];
+            double originLng = longitudes[0];
+            double[] x = new double[count];
+            double[] y = new double[count];
+            for (int i = 0; i < count; i++) {
+                x[i] = GeoUtils.toX(originLat, originLng, longitudes[i]);
+                y[i] = GeoUtils.toY(originLat, latitudes[i]);
+            }
+
+            double[] p = initialGuess(x, y);
+            double px = p[0];
+            double py = p[1];
+
+            // Gauss-Newton on sum((|p - c_i| - r_i)^2).
+            double jxx = 0, jxy = 0, jyy = 0, error = 0;
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+                jxx = 0;
+                jxy = 0;
+                jyy = 0;
+                error = 0;
+                double gx = 0, gy = 0;
+                for (int i = 0; i < count; i++) {
+                    double dx = px - x[i];
+                    double dy = py - y[i];
+                    double d = Math.max(Math.sqrt(dx * dx + dy * dy), 1e-6);
+                    double residual = d - distances[i];
+                    double ux = dx / d;
+                    double uy = dy / d;
+                    jxx += ux * ux;
+                    jxy += ux * uy;
+                    jyy += uy * uy;
+                    gx += ux * residual;
+                    gy += uy * residual;
+                    error += residual * residual;
+                }
+                double det = jxx * jyy - jxy * jxy;
+                if (det < 1e-9) {
+                    break;
+                }
+                double stepX = -(jyy * gx - jxy * gy) / det;
+                double stepY = -(jxx * gy - jxy * gx) / det;
+                px += stepX;
+                py += stepY;
+                if (stepX * stepX + stepY * stepY < 0.01) {
+                    break;
+                }
+            }
+
+            // The smaller eigenvalue of J^T J says how well the rings pin the point down. Rings
+            // measured along a straight line can't tell which side of it the pokemon is on.
+            double trace = jxx + jyy;
+            double gap = Math.sqrt(Math.max(0, (jxx - jyy) * (jxx - jyy) / 4 + jxy * jxy));
+            double geometry = Math.min(1, Math.max(0, (trace / 2 - gap) * 2 / count));
+            double rms = Math.sqrt(error / count);
+
+            double confidence = geometry
+                    * count / (count + 2d)
+                    * DISTANCE_NOISE / (DISTANCE_NOISE + rms);
+            double errorRadius = (rms + DISTANCE_NOISE) / Math.sqrt(Math.max(geometry, 0.01));
+
+            estimate = new Estimate(encounterId, pokemonId,
+                    GeoUtils.toLatitude(originLat, py),
+                    GeoUtils.toLongitude(originLat, originLng, px),
+                    errorRadius, confidence, count);
+        }
+
+        /**
+         * Solves the linearised problem (subtracting the first ring's equation from the others)
+         * for a starting point. Falls back to the middle of our reading spots if they're all on
+         * one line.
+         */
+        private double[] initialGuess(double[] x, double[] y) {
+            double axx = 0, axy = 0, ayy = 0, bx = 0, by = 0;
+            double r0 = distances[0];
+            for (int i = 1; i < count; i++) {
+                double ax = 2 * (x[i] - x[0]);
+                double ay = 2 * (y[i] - y[0]);
+                double b = r0 * r0 - distances[i] * distances[i]
+                        + x[i] * x[i] - x[0] * x[0] + y[i] * y[i] - y[0] * y[0];
+                axx += ax * ax;
+                axy += ax * ay;
+                ayy += ay * ay;
+                bx += ax * b;
+                by += ay * b;
+            }
+            double det = axx * ayy - axy * axy;
+            if (det > 1e-6 * (axx + ayy) * (axx + ayy)) {
+                return new double[]{(ayy * bx - axy * by) / det, (axx * by - axy * bx) / det};
+            }
+            double cx = 0, cy = 0;
+            for (int i = 0; i < count; i++) {
+                cx += x[i];
+                cy += y[i];
+            }
+            return new double[]{cx / count, cy / count};
+        }
+    }
+
+    /**
+     * Where we think a nearby pokemon is.
+     */
+    public static class Estimate {
+
+        private final long encounterId;
+
+        private final PokemonId pokemonId;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        private final double errorRadius;
+
+        private final double confidence;
+
+        private final int observations;
+
+        Estimate(long encounterId, PokemonId pokemonId, double latitude, double longitude,
+                 double errorRadius, double confidence, int observations) {
+            this.encounterId = encounterId;
+            this.pokemonId = pokemonId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.errorRadius = errorRadius;
+            this.confidence = confidence;
+            this.observations = observations;
+        }
+
+        public long getEncounterId() {
+            return encounterId;
+        }
+
+        public PokemonId getPokemonId() {
+            return pokemonId;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        /**
+         * @return Roughly how far off the position may be, in meters.
+         */
+        public double getErrorRadius() {
+            return errorRadius;
+        }
+
+        /**
+         * @return How much to trust the position, from 0 (not at all) to 1.
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        /**
+         * @return How many readings went into the position.
+         */
+        public int getObservations() {
+            return observations;
+        }
+    }
+}
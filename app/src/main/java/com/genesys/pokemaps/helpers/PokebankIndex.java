@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.inventory.CandyJar;
+import com.pokegoapi.api.inventory.Inventories;
+import com.pokegoapi.api.pokemon.Pokemon;
+import com.pokegoapi.api.pokemon.PokemonMeta;
+import com.pokegoapi.api.pokemon.PokemonMetaRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import POGOProtos.Enums.PokemonFamilyIdOuterClass.PokemonFamilyId;
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 3:40 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Our pokebank, grouped by species and sorted best first, plus candy counts per family. Built
+ * once from the inventory and then kept up to date as we evolve and transfer, so questions like
+ * "which of these are duplicates" or "how many can I evolve" don't walk the whole bank. Catches
+ * only show up in the inventory after the next refresh, so they're picked up by sync().
+ */
+public class PokebankIndex {
+
+    /**
+     * Best first: highest CP, then highest IV. Ties go by id so no two pokemon are ever equal.
+     */
+    private static final Comparator<Pokemon> BEST_FIRST = new Comparator<Pokemon>() {
+        @Override
+        public int compare(Pokemon a, Pokemon b) {
+            if (a.getCp() != b.getCp()) {
+                return a.getCp() > b.getCp() ? -1 : 1;
+            }
+            int iv = Double.compare(b.getIvRatio(), a.getIvRatio());
+            if (iv != 0) {
+                return iv;
+            }
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Every pokemon we own, by species, best first.
+     */
+    private final Map<PokemonId, TreeSet<Pokemon>> bySpecies = new EnumMap<>(PokemonId.class);
+
+    /**
+     * Every pokemon we own, by id.
+     */
+    private final Map<Long, Pokemon> byId = new HashMap<>();
+
+    /**
+     * How many candies we have for each family.
+     */
+    private final Map<PokemonFamilyId, Integer> candies = new EnumMap<>(PokemonFamilyId.class);
+
+    /**
+     * Brings the index in line with the inventory: adds pokemon we haven't seen, drops ones that
+     * are gone and refreshes candy counts. Only the differences touch the sorted sets.
+     *
+     * @param inventories Our freshly updated inventory.
+     */
+    public synchronized void sync(Inventories inventories) {
+        List<Pokemon> pokemons = inventories.getPokebank().getPokemons();
+        Set<Long> seen = new HashSet<>(pokemons.size() * 2);
+        for (Pokemon pokemon : pokemons) {
+            seen.add(pokemon.getId());
+            Pokemon known = byId.get(pokemon.getId());
+            if (known != pokemon) {
+                if (known != null) {
+                    // Same pokemon, new object; its CP may have changed from powering up.
+                    remove(known);
+                }
+                add(pokemon);
+            }
+        }
+        for (Pokemon pokemon : new ArrayList<>(byId.values())) {
+            if (!seen.contains(pokemon.getId())) {
+                remove(pokemon);
+            }
+        }
+
+        CandyJar candyJar = inventories.getCandyjar();
+        candies.clear();
+        for (Pokemon pokemon : byId.values()) {
+            PokemonFamilyId family = pokemon.getPokemonFamily();
+            if (family != null && !candies.containsKey(family)) {
+                candies.put(family, candyJar.getCandies(family));
+            }
+        }
+    }
+
+    /**
+     * Records an evolution: the old pokemon is gone, the evolved one is in, and the candy's spent.
+     *
+     * @param pokemon The pokemon we evolved.
+     * @param evolved What it evolved into.
+     */
+    public synchronized void onEvolved(Pokemon pokemon, Pokemon evolved) {
+        remove(pokemon);
+        add(evolved);
+        addCandies(pokemon.getPokemonFamily(), -getCandyToEvolve(pokemon.getPokemonId()));
+    }
+
+    /**
+     * Records a transfer. Transferring gives us a candy back.
+     *
+     * @param pokemon The pokemon we transferred.
+     */
+    public synchronized void onTransferred(Pokemon pokemon) {
+        if (remove(pokemon)) {
+            addCandies(pokemon.getPokemonFamily(), 1);
+        }
+    }
+
+    /**
+     * @param species The species to look up.
+     * @return A copy of every pokemon of that species we own, best first.
+     */
+    public synchronized List<Pokemon> getPokemon(PokemonId species) {
+        TreeSet<Pokemon> set = bySpecies.get(species);
+        return set == null ? new ArrayList<Pokemon>() : new ArrayList<>(set);
+    }
+
+    /**
+     * @return A copy of every species we own at least one of.
+     */
+    public synchronized Set<PokemonId> getSpecies() {
+        Set<PokemonId> species = EnumSet.noneOf(PokemonId.class);
+        species.addAll(bySpecies.keySet());
+        return species;
+    }
+
+    /**
+     * @param species The species to look up.
+     * @return The best pokemon of that species we own, or null if we have none.
+     */
+    public synchronized Pokemon getBest(PokemonId species) {
+        TreeSet<Pokemon> set = bySpecies.get(species);
+        return set == null ? null : set.first();
+    }
+
+    /**
+     * Picks out the duplicates of a species: everything but the best few, leaving alone any
+     * favourites and anything defending a gym.
+     *
+     * @param species The species to look at.
+     * @param keep    How many of the best to keep.
+     * @return The pokemon that can go, worst first.
+     */
+    public synchronized List<Pokemon> getDuplicates(PokemonId species, int keep) {
+        List<Pokemon> duplicates = new ArrayList<>();
+        TreeSet<Pokemon> set = bySpecies.get(species);
+        if (set == null) {
+            return duplicates;
+        }
+        int kept = 0;
+        for (Pokemon pokemon : set) {
+            if (kept < keep) {
+                kept++;
+            } else if (!pokemon.isFavorite() && isEmpty(pokemon.getDeployedFortId())) {
+                duplicates.add(pokemon);
+            }
+        }
+        Collections.reverse(duplicates);
+        return duplicates;
+    }
+
+    /**
+     * @param species The species to look up.
+     * @return How many of that species we can evolve with the candy we have right now. Zero if
+     * it doesn't evolve.
+     */
+    public synchronized int getAffordableEvolutions(PokemonId species) {
+        TreeSet<Pokemon> set = bySpecies.get(species);
+        int cost = getCandyToEvolve(species);
+        if (set == null || cost <= 0) {
+            return 0;
+        }
+        return Math.min(set.size(), getCandies(set.first().getPokemonFamily()) / cost);
+    }
+
+    /**
+     * @param family The family to look up.
+     * @return How many candies we have for it.
+     */
+    public synchronized int getCandies(PokemonFamilyId family) {
+        Integer count = candies.get(family);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return How many pokemon we own.
+     */
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    private void add(Pokemon pokemon) {
+        TreeSet<Pokemon> set = bySpecies.get(pokemon.getPokemonId());
+        if (set == null) {
+            set = new TreeSet<>(BEST_FIRST);
+            bySpecies.put(pokemon.getPokemonId(), set);
+        }
+        set.add(pokemon);
+        byId.put(pokemon.getId(), pokemon);
+    }
+
+    /**
+     * @return Whether we had the pokemon.
+     */
+    private boolean remove(Pokemon pokemon) {
+        Pokemon known = byId.remove(pokemon.getId());
+        if (known == null) {
+            return false;
+        }
+        TreeSet<Pokemon> set = bySpecies.get(known.getPokemonId());
+        set.remove(known);
+        if (set.isEmpty()) {
+            bySpecies.remove(known.getPokemonId());
+        }
+        return true;
+    }
+
+    private void addCandies(PokemonFamilyId family, int count) {
+        if (family != null) {
+            candies.put(family, Math.max(0, getCandies(family) + count));
+        }
+    }
+
+    /**
+     * @return How many candies evolving the species costs, or 0 if it doesn't evolve.
+     */
+    static int getCandyToEvolve(PokemonId species) {
+        PokemonMeta meta = PokemonMetaRegistry.getMeta(species);
+        return meta == null ? 0 : meta.getCandyToEvolve();
+    }
+
+    private static boolean isEmpty(String string) {
+        return string == null || string.isEmpty();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 10:15 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Paces every request we send to the Pokemon GO servers. Each account has a token bucket that
+ * refills at a steady rate up to a small burst; every request costs a few tokens depending on
+ * how heavy it is, and waits until its account can afford it. Waiting requests queue by
+ * priority, so when the scan loop, a cleanup and an XP farm all want the server at once, the
+ * catches and loots go first and the bookkeeping waits for the quiet moments. The budget is
+ * shared by everything, so it's the only pacing anyone needs.
+ */
+public class RequestGovernor {
+
+    private static final String TAG = "RequestGovernor";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * How many tokens each account gets back per second.
+     */
+    public static final double DEFAULT_RATE = 5;
+
+    /**
+     * The most tokens an account can save up.
+     */
+    public static final int DEFAULT_BURST = 15;
+
+    /**
+     * Requests that wait longer than this get a mention in the log, in milliseconds.
+     */
+    private static final long SLOW_WAIT = 10 * 1000;
+
+    private static final RequestClass[] CLASSES = RequestClass.values();
+
+    private final Clock clock;
+
+    /**
+     * Tokens per nanosecond.
+     */
+    private final double rate;
+
+    private final int burst;
+
+    /**
+     * Every account's bucket, by username. Guarded by this.
+     */
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    /**
+     * The bucket of the account we're logged into. Guarded by this.
+     */
+    private Bucket bucket;
+
+    /**
+     * Requests waiting for tokens, most important first. Only the head may take tokens.
+     * Guarded by this.
+     */
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+
+    /**
+     * Handed out to waiters so equal priorities go first come, first served. Guarded by this.
+     */
+    private long sequence;
+
+    private int maxQueueDepth;
+
+    private final Stats[] stats = new Stats[CLASSES.length];
+
+    /**
+     * Creates a governor with the default budget.
+     *
+     * @param clock Where buckets refill and requests wait.
+     */
+    public RequestGovernor(Clock clock) {
+        this(clock, DEFAULT_RATE, DEFAULT_BURST);
+    }
+
+    /**
+     * Creates a governor.
+     *
+     * @param clock         Where buckets refill and requests wait.
+     * @param ratePerSecond How many tokens each account gets back per second.
+     * @param burst         The most tokens an account can save up. Must cover the heaviest
+     *                      request class.
+     */
+    public RequestGovernor(Clock clock, double ratePerSecond, int burst) {
+        for (RequestClass type : CLASSES) {
+            if (type.cost > burst) {
+                throw new IllegalArgumentException(type + " costs more than the burst of " + burst);
+            }
+        }
+        this.clock = clock;
+        this.rate = ratePerSecond / 1e9;
+        this.burst = burst;
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats(CLASSES[i]);
+        }
+        bucket = new Bucket(burst, clock.nanoTime());
+    }
+
+    /**
+     * Switches to an account's bucket. Logging back into an account we've used before picks up
+     * its bucket where it left off, so switching accounts can't be used to skip the wait.
+     *
+     * @param account The account's username.
+     */
+    public synchronized void setAccount(String account) {
+        Bucket next = buckets.get(account);
+        if (next == null) {
+            next = new Bucket(burst, clock.nanoTime());
+            buckets.put(account, next);
+        }
+        bucket = next;
+        // The head may be able to afford its request on the new bucket right away.
+        notifyAll();
+    }
+
+    /**
+     * Waits until the current account can afford a request, then spends the tokens for it.
+     * Call it right before every request.
+     *
+     * @param type What kind of request is about to be made.
+     * @throws InterruptedException If we're interrupted while waiting. No tokens are spent.
+     */
+    public void acquire(RequestClass type) throws InterruptedException {
+        long queuedAt = clock.nanoTime();
+        synchronized (this) {
+            Waiter waiter = new Waiter(type, sequence++);
+            queue.add(waiter);
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            try {
+                while (true) {
+                    if (queue.peek() != waiter) {
+                        // Someone more important is ahead; they'll wake us when they're through.
+                        wait();
+                        continue;
+                    }
+                    long now = clock.nanoTime();
+                    bucket.refill(now, rate, burst);
+                    if (bucket.tokens >= type.cost) {
+                        bucket.tokens -= type.cost;
+                        queue.poll();
+                        stats[type.ordinal()].record(now - queuedAt);
+                        // Let the next in line have a look.
+                        notifyAll();
+                        break;
+                    }
+                    long nanos = (long) Math.ceil((type.cost - bucket.tokens) / rate);
+                    clock.await(this, Math.max(1, nanos / 1000000));
+                }
+            } catch (InterruptedException e) {
+                queue.remove(waiter);
+                notifyAll();
+                throw e;
+            }
+        }
+        long waited = (clock.nanoTime() - queuedAt) / 1000000;
+        if (waited > SLOW_WAIT) {
+            LOG.w("{} waited {} ms for a request slot.", type, waited);
+        }
+    }
+
+    /**
+     * Spends the tokens for a request if the current account can afford it right now and
+     * nothing is waiting ahead of it.
+     *
+     * @param type What kind of request is about to be made.
+     * @return Whether the tokens were spent. If not, nothing was.
+     */
+    public synchronized boolean tryAcquire(RequestClass type) {
+        if (!queue.isEmpty()) {
+            return false;
+        }
+        long now = clock.nanoTime();
+        bucket.refill(now, rate, burst);
+        if (bucket.tokens < type.cost) {
+            return false;
+        }
+        bucket.tokens -= type.cost;
+        stats[type.ordinal()].record(0);
+        return true;
+    }
+
+    /**
+     * @return How many requests are waiting right now.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The most requests that have ever been waiting at once.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return How long requests of a class have waited so far. A copy; it doesn't update.
+     */
+    public synchronized Stats getStats(RequestClass type) {
+        return stats[type.ordinal()].copy();
+    }
+
+    /**
+     * @return A readable summary of the queue and every class that has made a request.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder("Request governor report\n");
+        report.append("  queue depth: ").append(queue.size())
+                .append(" (max ").append(maxQueueDepth).append(")\n");
+        for (Stats stat : stats) {
+            if (stat.count == 0) {
+                continue;
+            }
+            report.append("  ").append(stat.type).append(": ")
+                    .append(stat.count).append(" requests, waited ")
+                    .append(stat.getAverageWait()).append(" ms on average, ")
+                    .append(stat.getMaxWait()).append(" ms at most\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * The kinds of request we make, with what each costs and how urgent it is.
+     */
+    public enum RequestClass {
+
+        /* Nothing else works until we're logged in. */
+        LOGIN(1, 0),
+        /* The pokemon won't wait. One throw, and the berry before it if there is one. */
+        CATCH(2, 0),
+        ENCOUNTER(2, 1),
+        LOOT(2, 1),
+        /* Map objects. The library often answers these from its own cache. */
+        MAP(1, 2),
+        GYM_DETAILS(1, 3),
+        /* Inventory refreshes and recycling, which keep the loot coming. */
+        INVENTORY(1, 3),
+        RECYCLE(1, 3),
+        EVOLVE(2, 4),
+        TRANSFER(1, 4);
+
+        /**
+         * How many tokens a request takes.
+         */
+        private final int cost;
+
+        /**
+         * Lower goes first.
+         */
+        private final int priority;
+
+        RequestClass(int cost, int priority) {
+            this.cost = cost;
+            this.priority = priority;
+        }
+
+        public int getCost() {
+            return cost;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * How long the requests of one class have waited for their tokens.
+     */
+    public static class Stats {
+
+        private final RequestClass type;
+
+        private long count;
+
+        private long totalWait;
+
+        private long maxWait;
+
+        Stats(RequestClass type) {
+            this.type = type;
+        }
+
+        void record(long waitNanos) {
+            count++;
+            totalWait += waitNanos;
+            maxWait = Math.max(maxWait, waitNanos);
+        }
+
+        Stats copy() {
+            Stats copy = new Stats(type);
+            copy.count = count;
+            copy.totalWait = totalWait;
+            copy.maxWait = maxWait;
+            return copy;
+        }
+
+        public RequestClass getType() {
+            return type;
+        }
+
+        /**
+         * @return How many requests of this class have been let through.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The average wait, in milliseconds.
+         */
+        public long getAverageWait() {
+            return count == 0 ? 0 : totalWait / count / 1000000;
+        }
+
+        /**
+         * @return The longest wait, in milliseconds.
+         */
+        public long getMaxWait() {
+            return maxWait / 1000000;
+        }
+    }
+
+    /**
+     * An account's tokens.
+     */
+    private static class Bucket {
+
+        private double tokens;
+
+        private long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        void refill(long now, double rate, int burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate);
+            refilledAt = now;
+        }
+    }
+
+    /**
+     * A request waiting its turn.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+
+        private final RequestClass type;
+
+        private final long sequence;
+
+        Waiter(RequestClass type, long sequence) {
+            this.type = type;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (type.priority != other.type.priority) {
+                return type.priority < other.type.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+}
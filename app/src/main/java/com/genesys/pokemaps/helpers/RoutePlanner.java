@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 11:02 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Plans a loop through known pokestops that gets the most loots per hour. A stop can only be
+ * looted once every five minutes, so a loop shorter than that just means waiting around, and a
+ * loop that's too long wastes time on far away stops. We build a tour with nearest neighbour,
+ * tighten it with 2-opt, keep the stretch of it that makes the best loop on its own, then drop
+ * stops whose detour costs more than they're worth.
+ */
+public class RoutePlanner {
+
+    /**
+     * How we're getting around. Speeds are in meters per second.
+     */
+    public enum TravelMode {
+        WALKING(1.4),
+        DRIVING(8.3);
+
+        private final double speed;
+
+        TravelMode(double speed) {
+            this.speed = speed;
+        }
+
+        public double getSpeed() {
+            return speed;
+        }
+    }
+
+    /**
+     * Hard limit on how long 2-opt may run for, in nanoseconds. Keeps planning snappy on slow
+     * phones; the tour is already decent by then.
+     */
+    private static final long OPTIMIZE_BUDGET = 250 * 1000 * 1000;
+
+    /**
+     * How many of each stop's nearest neighbours 2-opt considers swapping edges with.
+     */
+    private static final int NEIGHBOURS = 10;
+
+    private final TravelMode mode;
+
+    /**
+     * Creates a new planner.
+     *
+     * @param mode How we'll be travelling the route.
+     */
+    public RoutePlanner(TravelMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Plans a loop through some or all of the given stops.
+     *
+     * @param start Our current position. The tour is built outwards from the stop nearest to it.
+     * @param stops The positions of every known pokestop.
+     * @return The planned route. Its points are empty if there are fewer than two stops.
+     */
+    public Route plan(LatLng start, List<LatLng> stops) {
+        int n = stops.size();
+        if (n < 2) {
+            return new Route(new ArrayList<LatLng>(), 0, 0);
+        }
+
+        // Project everything onto a flat plane around our position; distances in meters.
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            LatLng stop = stops.get(i);
+            x[i] = GeoUtils.toX(start.latitude, start.longitude, stop.longitude);
+            y[i] = GeoUtils.toY(start.latitude, stop.latitude);
+        }
+
+        int[] tour = nearestNeighbour(x, y);
+        int[][] neighbours = nearestNeighbours(x, y);
+        twoOpt(tour, tour.length, x, y, neighbours, System.nanoTime() + OPTIMIZE_BUDGET / 2);
+        int length = bestWindow(tour, x, y);
+        length = prune(tour, length, x, y);
+        twoOpt(tour, length, x, y, neighbours, System.nanoTime() + OPTIMIZE_BUDGET / 2);
+
+        List<LatLng> points = new ArrayList<>(length + 1);
+        for (int i = 0; i < length; i++) {
+            points.add(stops.get(tour[i]));
+        }
+        // Close the loop.
+        points.add(stops.get(tour[0]));
+
+        double seconds = tourLength(tour, length, x, y) / mode.getSpeed();
+        return new Route(points, seconds, lootsPerHour(length, seconds));
+    }
+
+    /**
+     * Builds a tour by always walking to the closest unvisited stop, starting with the one
+     * closest to the origin.
+     */
+    private static int[] nearestNeighbour(double[] x, double[] y) {
+        int n = x.length;
+        int[] tour = new int[n];
+        boolean[] visited = new boolean[n];
+
+        int current = 0;
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            double d = x[i] * x[i] + y[i] * y[i];
+            if (d < best) {
+                best = d;
+                current = i;
+            }
+        }
+
+        for (int step = 0; step < n; step++) {
+            tour[step] = current;
+            visited[current] = true;
+            int next = -1;
+            best = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (!visited[i]) {
+                    double d = squaredDistance(x, y, current, i);
+                    if (d < best) {
+                        best = d;
+                        next = i;
+                    }
+                }
+            }
+            current = next;
+        }
+        return tour;
+    }
+
+    /**
+     * Finds the closest few stops to each stop.
+     *
+     * @return For each stop, the indices of its nearest neighbours, closest first.
+     */
+    private static int[][] nearestNeighbours(double[] x, double[] y) {
+        int n = x.length;
+        int k = Math.min(NEIGHBOURS, n - 1);
+        int[][] result = new int[n][k];
+        double[] distances = new double[k];
+        for (int i = 0; i < n; i++) {
+            int found = 0;
+            for (int j = 0; j < n; j++) {
+                if (i == j) {
+                    continue;
+                }
+                double d = squaredDistance(x, y, i, j);
+                if (found < k || d < distances[found - 1]) {
+                    // Insertion sort into the small neighbour list.
+                    int pos = found < k ? found++ : k - 1;
+                    while (pos > 0 && distances[pos - 1] > d) {
+                        distances[pos] = distances[pos - 1];
+                        result[i][pos] = result[i][pos - 1];
+                        pos--;
+                    }
+                    distances[pos] = d;
+                    result[i][pos] = j;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Improves the tour in place by reversing segments whenever that makes it shorter, until no
+     * improving move is left or we run out of time.
+     *
+     * @param length   How many entries of tour are in use.
+     * @param deadline System.nanoTime() after which we stop.
+     */
+    private static void twoOpt(int[] tour, int length, double[] x, double[] y,
+                               int[][] neighbours, long deadline) {
+        if (length < 4) {
+            return;
+        }
+        int[] position = new int[x.length];
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadline) {
+            improved = false;
+            for (int i = 0; i < length; i++) {
+                position[tour[i]] = i;
+            }
+            for (int i = 0; i < length && !improved; i++) {
+                int a = tour[i];
+                int b = tour[(i + 1) % length];
+                double ab = distance(x, y, a, b);
+                for (int c : neighbours[a]) {
+                    int j = position[c];
+                    if (j >= length || tour[j] != c) {
+                        // Pruned from the tour.
+                        continue;
+                    }
+                    double ac = distance(x, y, a, c);
+                    if (ac >= ab) {
+                        // Neighbours are sorted, so nothing further on can help.
+                        break;
+                    }
+                    int d = tour[(j + 1) % length];
+                    double delta = ac + distance(x, y, b, d) - ab - distance(x, y, c, d);
+                    if (delta < -1e-6) {
+                        reverse(tour, length, (i + 1) % length, j);
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverses the tour between positions from and to inclusive, wrapping around the end.
+     */
+    private static void reverse(int[] tour, int length, int from, int to) {
+        int count = ((to - from + length) % length + 1) / 2;
+        for (int k = 0; k < count; k++) {
+            int i = (from + k) % length;
+            int j = (to - k + length) % length;
+            int temp = tour[i];
+            tour[i] = tour[j];
+            tour[j] = temp;
+        }
+    }
+
+    /**
+     * Finds the run of consecutive stops on the tour that makes the best loop by itself (walking
+     * back from its last stop to its first) and moves it to the front of tour. On a 2-opt tour
+     * consecutive stops are close together, so this picks out the densest cluster.
+     *
+     * @return The number of stops in the chosen run.
+     */
+    private int bestWindow(int[] tour, double[] x, double[] y) {
+        int n = tour.length;
+        // Runs much longer than a cooldown only get worse, so don't bother looking past them.
+        double maxPath = 4 * mode.getSpeed() * LootEngine.LOOT_COOLDOWN / 1000d;
+        int bestStart = 0;
+        int bestLength = n;
+        double bestRate = lootsPerHour(n, tourLength(tour, n, x, y) / mode.getSpeed());
+        for (int i = 0; i < n; i++) {
+            double path = 0;
+            for (int k = 1; k < n && path <= maxPath; k++) {
+                int last = tour[(i + k) % n];
+                path += distance(x, y, tour[(i + k - 1) % n], last);
+                double loop = path + distance(x, y, last, tour[i]);
+                double rate = lootsPerHour(k + 1, loop / mode.getSpeed());
+                if (rate > bestRate) {
+                    bestRate = rate;
+                    bestStart = i;
+                    bestLength = k + 1;
+                }
+            }
+        }
+
+        int[] window = new int[bestLength];
+        for (int k = 0; k < bestLength; k++) {
+            window[k] = tour[(bestStart + k) % n];
+        }
+        System.arraycopy(window, 0, tour, 0, bestLength);
+        return bestLength;
+    }
+
+    /**
+     * Drops stops from the tour, cheapest to skip first, for as long as doing so raises our loots
+     * per hour.
+     *
+     * @param length How many entries of tour are in use.
+     * @return The number of stops left at the front of tour.
+     */
+    private int prune(int[] tour, int length, double[] x, double[] y) {
+        double total = tourLength(tour, length, x, y);
+        while (length > 2) {
+            int worst = -1;
+            double bestSaving = 0;
+            for (int i = 0; i < length; i++) {
+                int prev = tour[(i - 1 + length) % length];
+                int next = tour[(i + 1) % length];
+                double saving = distance(x, y, prev, tour[i]) + distance(x, y, tour[i], next)
+                        - distance(x, y, prev, next);
+                if (saving > bestSaving) {
+                    bestSaving = saving;
+                    worst = i;
+                }
+            }
+            if (worst < 0) {
+                break;
+            }
+            double current = lootsPerHour(length, total / mode.getSpeed());
+            double without = lootsPerHour(length - 1, (total - bestSaving) / mode.getSpeed());
+            if (without <= current) {
+                break;
+            }
+            System.arraycopy(tour, worst + 1, tour, worst, length - worst - 1);
+            length--;
+            total -= bestSaving;
+        }
+        return length;
+    }
+
+    /**
+     * Loots per hour for a loop of the given size and duration. Every stop on the loop can be
+     * looted once per lap, but never more than once per cooldown.
+     */
+    private static double lootsPerHour(int stops, double seconds) {
+        double lap = Math.max(seconds, LootEngine.LOOT_COOLDOWN / 1000d);
+        return stops * 3600 / lap;
+    }
+
+    private static double tourLength(int[] tour, int length, double[] x, double[] y) {
+        double total = 0;
+        for (int i = 0; i < length; i++) {
+            total += distance(x, y, tour[i], tour[(i + 1) % length]);
+        }
+        return total;
+    }
+
+    private static double distance(double[] x, double[] y, int a, int b) {
+        return Math.sqrt(squaredDistance(x, y, a, b));
+    }
+
+    private static double squaredDistance(double[] x, double[] y, int a, int b) {
+        double dx = x[a] - x[b];
+        double dy = y[a] - y[b];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * A planned loop.
+     */
+    public static class Route {
+
+        private final List<LatLng> points;
+
+        private final double lapSeconds;
+
+        private final double lootsPerHour;
+
+        Route(List<LatLng> points, double lapSeconds, double lootsPerHour) {
+            this.points = points;
+            this.lapSeconds = lapSeconds;
+            this.lootsPerHour = lootsPerHour;
+        }
+
+        /**
+         * @return The stops in visiting order. The first stop is repeated at the end to close
+         * the loop, so this can be handed straight to a polyline.
+         */
+        public List<LatLng> getPoints() {
+            return points;
+        }
+
+        /**
+         * @return How long one lap takes at our travel speed, in seconds.
+         */
+        public double getLapSeconds() {
+            return lapSeconds;
+        }
+
+        /**
+         * @return How many loots an hour the loop should give us.
+         */
+        public double getLootsPerHour() {
+            return lootsPerHour;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.map.fort.PokestopLootResult;
+import com.pokegoapi.api.map.pokemon.CatchResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+
+import POGOProtos.Inventory.Item.ItemAwardOuterClass.ItemAward;
+import POGOProtos.Networking.Responses.CatchPokemonResponseOuterClass.CatchPokemonResponse.CatchStatus;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 7:40 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * A record of every scan tick: where and when it ran, what it saw, what it caught and looted,
+ * and how long each stage took. Records are a fixed 64 bytes, appended to a memory-mapped file
+ * that wraps around once full, so writing one is a handful of memory stores with no system call
+ * and no allocation, and the file never grows past its capacity. The history survives restarts
+ * and can be exported as CSV or JSON for analysis.
+ */
+public class ScanHistory {
+
+    /**
+     * How many ticks we keep by default. About 13 hours of scanning at one tick every 3 seconds,
+     * in a 1MB file.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    /**
+     * "PMSH", so we don't mistake some other file for ours.
+     */
+    private static final int MAGIC = 0x504d5348;
+
+    /**
+     * Bump this whenever the record layout changes; older files are started over.
+     */
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int RECORD_SIZE = 64;
+
+    /* Header layout */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_COUNT = 16;
+
+    /* Record layout */
+    private static final int TIME = 0;
+    private static final int LATITUDE = 8;
+    private static final int LONGITUDE = 16;
+    private static final int STOPS = 24;
+    private static final int GYMS = 26;
+    private static final int CATCHABLE = 28;
+    private static final int NEARBY = 30;
+    private static final int CATCH_STATUS = 32;
+    private static final int FLAGS = 33;
+    private static final int LOOTS = 34;
+    private static final int LOOTS_SUCCESSFUL = 36;
+    private static final int ITEMS = 38;
+    private static final int XP = 40;
+    private static final int LATENCIES = 44;
+
+    private static final int FLAG_RENDERING = 1;
+    private static final int FLAG_FAILED = 2;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    /**
+     * How many ticks have ever been appended. The newest lives in slot (count - 1) % capacity.
+     * Guarded by this.
+     */
+    private long count;
+
+    private boolean closed;
+
+    /**
+     * Opens a history file, creating it or starting it over if it isn't one of ours.
+     *
+     * @param path     Where the history lives.
+     * @param capacity How many ticks to keep before the oldest are overwritten.
+     * @throws IOException If the file can't be opened or mapped.
+     */
+    public ScanHistory(File path, int capacity) throws IOException {
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (buffer.getInt(HEADER_MAGIC) == MAGIC
+                && buffer.getInt(HEADER_VERSION) == VERSION
+                && buffer.getInt(HEADER_RECORD_SIZE) == RECORD_SIZE
+                && buffer.getInt(HEADER_CAPACITY) == capacity) {
+            count = buffer.getLong(HEADER_COUNT);
+        } else {
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+            buffer.putLong(HEADER_COUNT, 0);
+        }
+    }
+
+    /**
+     * Appends a tick, overwriting the oldest one if we're full. Does nothing once closed, so the
+     * scan thread can finish its last tick after the service has gone.
+     */
+    public synchronized void append(Tick tick) {
+        if (closed) {
+            return;
+        }
+        int offset = HEADER_SIZE + (int) (count % capacity) * RECORD_SIZE;
+        buffer.putLong(offset + TIME, tick.time);
+        buffer.putDouble(offset + LATITUDE, tick.latitude);
+        buffer.putDouble(offset + LONGITUDE, tick.longitude);
+        buffer.putShort(offset + STOPS, clamp(tick.stops));
+        buffer.putShort(offset + GYMS, clamp(tick.gyms));
+        buffer.putShort(offset + CATCHABLE, clamp(tick.catchable));
+        buffer.putShort(offset + NEARBY, clamp(tick.nearby));
+        buffer.put(offset + CATCH_STATUS, (byte) tick.catchStatus);
+        buffer.put(offset + FLAGS, (byte) tick.flags);
+        buffer.putShort(offset + LOOTS, clamp(tick.loots));
+        buffer.putShort(offset + LOOTS_SUCCESSFUL, clamp(tick.lootsSuccessful));
+        buffer.putShort(offset + ITEMS, clamp(tick.items));
+        buffer.putInt(offset + XP, tick.xp);
+        for (int i = 0; i < tick.latencies.length; i++) {
+            buffer.putInt(offset + LATENCIES + i * 4, tick.latencies[i]);
+        }
+        // The count goes last, so a crash mid-record leaves the old count pointing past it.
+        count++;
+        buffer.putLong(HEADER_COUNT, count);
+    }
+
+    private static short clamp(int value) {
+        return (short) Math.min(value, Short.MAX_VALUE);
+    }
+
+    /**
+     * @return How many ticks we're holding.
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * @return How many ticks have ever been appended, including ones since overwritten.
+     */
+    public synchronized long getTotalCount() {
+        return count;
+    }
+
+    /**
+     * Copies every tick we're holding, oldest first. The lock is only held for the copy, so the
+     * scan thread never waits on the export's formatting or I/O.
+     */
+    private ByteBuffer snapshot() {
+        byte[] records;
+        synchronized (this) {
+            int size = (int) Math.min(count, capacity);
+            int first = (int) ((count - size) % capacity);
+            records = new byte[size * RECORD_SIZE];
+            ByteBuffer source = buffer.duplicate();
+            // Oldest ticks run from the first slot to the end of the file, then wrap to the start.
+            int tail = Math.min(size, capacity - first) * RECORD_SIZE;
+            source.position(HEADER_SIZE + first * RECORD_SIZE);
+            source.get(records, 0, tail);
+            source.position(HEADER_SIZE);
+            source.get(records, tail, records.length - tail);
+        }
+        return ByteBuffer.wrap(records);
+    }
+
+    /**
+     * Writes every tick we're holding as CSV, oldest first, with a header row.
+     *
+     * @param out Where to write. Not closed.
+     * @throws IOException If writing fails.
+     */
+    public void exportCsv(Writer out) throws IOException {
+        ByteBuffer records = snapshot();
+        out.write("time,latitude,longitude,stops,gyms,catchable,nearby,catch_status,rendering,"
+                + "failed,loots,loots_successful,items,xp");
+        for (Stage stage : Stage.values()) {
+            out.write("," + stage.name().toLowerCase(Locale.US) + "_ms");
+        }
+        out.write(",total_ms\n");
+        StringBuilder line = new StringBuilder();
+        for (int offset = 0; offset < records.limit(); offset += RECORD_SIZE) {
+            int flags = records.get(offset + FLAGS);
+            line.setLength(0);
+            line.append(records.getLong(offset + TIME)).append(',')
+                    .append(records.getDouble(offset + LATITUDE)).append(',')
+                    .append(records.getDouble(offset + LONGITUDE)).append(',')
+                    .append(records.getShort(offset + STOPS)).append(',')
+                    .append(records.getShort(offset + GYMS)).append(',')
+                    .append(records.getShort(offset + CATCHABLE)).append(',')
+                    .append(records.getShort(offset + NEARBY)).append(',')
+                    .append(catchStatusName(records.get(offset + CATCH_STATUS))).append(',')
+                    .append((flags & FLAG_RENDERING) != 0).append(',')
+                    .append((flags & FLAG_FAILED) != 0).append(',')
+                    .append(records.getShort(offset + LOOTS)).append(',')
+                    .append(records.getShort(offset + LOOTS_SUCCESSFUL)).append(',')
+                    .append(records.getShort(offset + ITEMS)).append(',')
+                    .append(records.getInt(offset + XP));
+            int total = 0;
+            for (int i = 0; i < Stage.values().length; i++) {
+                int latency = records.getInt(offset + LATENCIES + i * 4);
+                total += latency;
+                line.append(',').append(latency);
+            }
+            line.append(',').append(total).append('\n');
+            out.write(line.toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes every tick we're holding as a JSON array of objects, oldest first.
+     *
+     * @param out Where to write. Not closed.
+     * @throws IOException If writing fails.
+     */
+    public void exportJson(Writer out) throws IOException {
+        ByteBuffer records = snapshot();
+        out.write("[");
+        StringBuilder object = new StringBuilder();
+        for (int offset = 0; offset < records.limit(); offset += RECORD_SIZE) {
+            int flags = records.get(offset + FLAGS);
+            byte catchStatus = records.get(offset + CATCH_STATUS);
+            object.setLength(0);
+            object.append(offset == 0 ? "\n" : ",\n")
+                    .append("{\"time\":").append(records.getLong(offset + TIME))
+                    .append(",\"latitude\":").append(records.getDouble(offset + LATITUDE))
+                    .append(",\"longitude\":").append(records.getDouble(offset + LONGITUDE))
+                    .append(",\"stops\":").append(records.getShort(offset + STOPS))
+                    .append(",\"gyms\":").append(records.getShort(offset + GYMS))
+                    .append(",\"catchable\":").append(records.getShort(offset + CATCHABLE))
+                    .append(",\"nearby\":").append(records.getShort(offset + NEARBY))
+                    .append(",\"catchStatus\":");
+            if (catchStatus == 0) {
+                object.append("null");
+            } else {
+                object.append('"').append(catchStatusName(catchStatus)).append('"');
+            }
+            object.append(",\"rendering\":").append((flags & FLAG_RENDERING) != 0)
+                    .append(",\"failed\":").append((flags & FLAG_FAILED) != 0)
+                    .append(",\"loots\":").append(records.getShort(offset + LOOTS))
+                    .append(",\"lootsSuccessful\":").append(records.getShort(offset + LOOTS_SUCCESSFUL))
+                    .append(",\"items\":").append(records.getShort(offset + ITEMS))
+                    .append(",\"xp\":").append(records.getInt(offset + XP))
+                    .append(",\"latencies\":{");
+            int total = 0;
+            for (Stage stage : Stage.values()) {
+                int latency = records.getInt(offset + LATENCIES + stage.ordinal() * 4);
+                total += latency;
+                object.append('"').append(stage.name().toLowerCase(Locale.US)).append("\":")
+                        .append(latency).append(',');
+            }
+            object.append("\"total\":").append(total).append("}}");
+            out.write(object.toString());
+        }
+        out.write("\n]\n");
+        out.flush();
+    }
+
+    /**
+     * @return The name of a stored catch status, or an empty string if there was no catch.
+     */
+    private static String catchStatusName(byte stored) {
+        if (stored == 0) {
+            return "";
+        }
+        CatchStatus[] statuses = CatchStatus.values();
+        int ordinal = stored - 1;
+        return ordinal < statuses.length ? statuses[ordinal].name() : "UNKNOWN";
+    }
+
+    /**
+     * Flushes the history to disk and stops accepting ticks.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * The stages of a scan tick, in the order they run.
+     */
+    public enum Stage {
+        LOCATION,
+        LOOT,
+        NEARBY,
+        CATCH,
+        GYMS
+    }
+
+    /**
+     * One tick's worth of results, filled in by the scan loop as it goes. Create one per tick on
+     * the scan thread; it isn't thread safe.
+     */
+    public static class Tick {
+
+        private final long time;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        private int stops;
+
+        private int gyms;
+
+        private int catchable;
+
+        private int nearby;
+
+        /**
+         * The catch's status ordinal plus one, or 0 if we didn't throw.
+         */
+        private int catchStatus;
+
+        private int flags;
+
+        private int loots;
+
+        private int lootsSuccessful;
+
+        private int items;
+
+        private int xp;
+
+        /**
+         * Milliseconds spent in each stage, by ordinal.
+         */
+        private final int[] latencies = new int[Stage.values().length];
+
+        /**
+         * When the last stage finished, from System.nanoTime().
+         */
+        private long lastMark;
+
+        /**
+         * Starts a tick now.
+         *
+         * @param latitude  Where we're scanning from.
+         * @param longitude Where we're scanning from.
+         */
+        public Tick(double latitude, double longitude) {
+            this.time = System.currentTimeMillis();
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.lastMark = System.nanoTime();
+        }
+
+        /**
+         * Charges the time since the last stage finished (or the tick started) to a stage.
+         */
+        public void finishStage(Stage stage) {
+            long now = System.nanoTime();
+            latencies[stage.ordinal()] += (int) ((now - lastMark) / 1000000);
+            lastMark = now;
+        }
+
+        /**
+         * Records how many stops and gyms we know of.
+         */
+        public void setKnown(int stops, int gyms) {
+            this.stops = stops;
+            this.gyms = gyms;
+        }
+
+        public void setCatchable(int catchable) {
+            this.catchable = catchable;
+        }
+
+        public void setNearby(int nearby) {
+            this.nearby = nearby;
+        }
+
+        public void setRendering(boolean rendering) {
+            flags = rendering ? flags | FLAG_RENDERING : flags & ~FLAG_RENDERING;
+        }
+
+        /**
+         * Marks the tick as having ended in an error.
+         */
+        public void setFailed() {
+            flags |= FLAG_FAILED;
+        }
+
+        /**
+         * Records the tick's loots: how many, how many worked, and the items and XP they gave.
+         */
+        public void setLoot(List<PokestopLootResult> results) {
+            loots = results.size();
+            for (PokestopLootResult result : results) {
+                if (result.wasSuccessful()) {
+                    lootsSuccessful++;
+                    xp += result.getExperience();
+                    for (ItemAward award : result.getItemsAwarded()) {
+                        items += award.getItemCount();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Records the tick's catch, if there was one.
+         */
+        public void setCatch(CatchResult result) {
+            if (result == null || result.getStatus() == null) {
+                return;
+            }
+            catchStatus = result.getStatus().ordinal() + 1;
+            if (!result.isFailed()) {
+                for (Integer gained : result.getXpList()) {
+                    xp += gained;
+                }
+            }
+        }
+    }
+}
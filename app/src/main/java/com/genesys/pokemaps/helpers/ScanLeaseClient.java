@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 2:40 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * A device's side of cooperative scanning. Asks the ScanLedger for cells a few at a time, checks
+ * in often enough to keep them, confirms each one before scanning it and reports what it found.
+ * How requests reach the ledger is up to the transport: over TCP to another device, or straight
+ * into a ledger in the same process.
+ */
+public class ScanLeaseClient {
+
+    private static final String TAG = "ScanLeaseClient";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * How many cells we ask for at a time. Enough to keep busy between requests, few enough
+     * that there's plenty left for everyone else.
+     */
+    public static final int DEFAULT_BATCH = 4;
+
+    /**
+     * How often we check in with the ledger, in milliseconds. Well inside its lease timeout.
+     */
+    private static final long HEARTBEAT_INTERVAL = ScanLedger.LEASE_TIMEOUT / 3;
+
+    private final String device;
+
+    private final Transport transport;
+
+    private final Clock clock;
+
+    private final int batch;
+
+    /**
+     * The cells we hold, in the order we'll scan them. Guarded by this.
+     */
+    private final ArrayDeque<Long> leased = new ArrayDeque<>();
+
+    /**
+     * When we last heard from the ledger, in epoch milliseconds. Guarded by this.
+     */
+    private long lastContact;
+
+    /**
+     * Creates a client that asks for the default number of cells at a time.
+     *
+     * @param device    This device's name, unique among the devices taking part and without
+     *                  spaces.
+     * @param transport How requests reach the ledger.
+     * @param clock     Tells us when to check in.
+     */
+    public ScanLeaseClient(String device, Transport transport, Clock clock) {
+        this(device, transport, clock, DEFAULT_BATCH);
+    }
+
+    /**
+     * Creates a client.
+     *
+     * @param device    This device's name, unique among the devices taking part and without
+     *                  spaces.
+     * @param transport How requests reach the ledger.
+     * @param clock     Tells us when to check in.
+     * @param batch     How many cells to ask for at a time.
+     */
+    public ScanLeaseClient(String device, Transport transport, Clock clock, int batch) {
+        if (device.isEmpty() || device.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Bad device name: \"" + device + '"');
+        }
+        this.device = device;
+        this.transport = transport;
+        this.clock = clock;
+        this.batch = batch;
+    }
+
+    /**
+     * Picks the next cell to scan and has the ledger confirm it's ours to scan.
+     *
+     * @param latitude  Where we are, so we're given cells nearby.
+     * @param longitude Where we are, so we're given cells nearby.
+     * @return The cell to scan, or null if there's nothing to do right now.
+     * @throws IOException If the ledger can't be reached.
+     */
+    public synchronized Long next(double latitude, double longitude) throws IOException {
+        if (clock.currentTimeMillis() - lastContact >= HEARTBEAT_INTERVAL) {
+            heartbeat();
+        }
+        while (true) {
+            if (leased.isEmpty()) {
+                parseCells(call("LEASE " + device + ' ' + latitude + ' ' + longitude + ' '
+                        + batch));
+                if (leased.isEmpty()) {
+                    return null;
+                }
+            }
+            Long cell = leased.poll();
+            if ("OK".equals(call("BEGIN " + device + ' ' + cell))) {
+                return cell;
+            }
+            // Taken by a device with less to do, or ours lapsed; on to the next.
+            LOG.d("Lost cell {} before scanning it", cell);
+        }
+    }
+
+    /**
+     * Reports a scanned cell and what we found there.
+     *
+     * @param cell      The cell from next().
+     * @param sightings The pokemon we found.
+     * @return Whether the scan counted. It may not if we went quiet for too long.
+     * @throws IOException If the ledger can't be reached.
+     */
+    public synchronized boolean complete(long cell, List<ScanLedger.Sighting> sightings)
+            throws IOException {
+        StringBuilder request = new StringBuilder("DONE ").append(device).append(' ').append(cell);
+        for (ScanLedger.Sighting sighting : sightings) {
+            request.append(' ').append(sighting);
+        }
+        return "OK".equals(call(request.toString()));
+    }
+
+    /**
+     * Checks in with the ledger, and forgets any cells it has taken back. Called by next() as
+     * needed; call it directly during anything slow.
+     *
+     * @throws IOException If the ledger can't be reached.
+     */
+    public synchronized void heartbeat() throws IOException {
+        parseCells(call("BEAT " + device));
+    }
+
+    /**
+     * @return How many cells we hold that we haven't started yet.
+     */
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    private String call(String request) throws IOException {
+        String response = transport.call(request);
+        if (response.startsWith("ERROR")) {
+            throw new IOException("Ledger said " + response + " to " + request);
+        }
+        lastContact = clock.currentTimeMillis();
+        return response;
+    }
+
+    /**
+     * Replaces our cells with those in a CELLS response.
+     */
+    private void parseCells(String response) throws IOException {
+        if (!response.startsWith("CELLS")) {
+            throw new IOException("Expected cells, got " + response);
+        }
+        leased.clear();
+        String[] parts = response.split(" ");
+        for (int i = 1; i < parts.length; i++) {
+            leased.add(Long.parseLong(parts[i]));
+        }
+    }
+
+    /**
+     * Carries requests to the ledger and brings back its responses.
+     */
+    public interface Transport {
+
+        /**
+         * Sends a request and waits for the response.
+         *
+         * @param request A request line, without its line break.
+         * @return The response line, without its line break.
+         * @throws IOException If the ledger can't be reached.
+         */
+        String call(String request) throws IOException;
+    }
+
+    /**
+     * Hands requests straight to a ledger in the same process. For the device running the
+     * ledger, and for tests.
+     */
+    public static class LoopbackTransport implements Transport {
+
+        private final ScanLedger ledger;
+
+        public LoopbackTransport(ScanLedger ledger) {
+            this.ledger = ledger;
+        }
+
+        @Override
+        public String call(String request) {
+            return ledger.handle(request);
+        }
+    }
+
+    /**
+     * Talks to a ledger on another device over TCP. Connects on the first request, and again
+     * on the next one after the connection drops.
+     */
+    public static class SocketTransport implements Transport, Closeable {
+
+        /**
+         * How long we give the ledger to connect or answer, in milliseconds.
+         */
+        private static final int TIMEOUT = 10 * 1000;
+
+        private final String host;
+
+        private final int port;
+
+        /**
+         * Volatile so close() can reach it while a call is waiting on the ledger.
+         */
+        private volatile Socket socket;
+
+        private BufferedReader in;
+
+        private Writer out;
+
+        public SocketTransport(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public synchronized String call(String request) throws IOException {
+            if (socket == null) {
+                connect();
+            }
+            try {
+                out.write(request);
+                out.write('\n');
+                out.flush();
+                String response = in.readLine();
+                if (response == null) {
+                    throw new EOFException("Ledger hung up");
+                }
+                return response;
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+                socket.setSoTimeout(TIMEOUT);
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.socket = socket;
+        }
+
+        /**
+         * Hangs up, cutting short any call that's waiting on the ledger. The next call connects
+         * again.
+         */
+        @Override
+        public void close() throws IOException {
+            // Not synchronized, or it would wait out the very call it's meant to cut short.
+            Socket socket = this.socket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        private void disconnect() {
+            Socket socket = this.socket;
+            this.socket = null;
+            in = null;
+            out = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // It's gone either way.
+                }
+            }
+        }
+    }
+}
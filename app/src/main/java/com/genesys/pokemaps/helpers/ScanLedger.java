@@ -0,0 +1,609 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 2:05 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Splits an area between several devices so they scan it together without scanning anything
+ * twice. The area is cut into cells a single scan covers, and one device, the one running the
+ * ledger, hands them out as leases. Every device asks for a few cells near it, says when it
+ * starts scanning one and reports what it found when it's done; those findings go to the
+ * ledger's listener, which on the device hosting it merges them into GameManager's entity
+ * store. A scanned cell isn't handed out again until its freshness
+ * window is over.
+ * <p>
+ * Leases last as long as their device keeps in touch. One that's quiet for LEASE_TIMEOUT is
+ * presumed gone and its cells go back in the pool. A device that runs out of cells takes half
+ * of the unstarted cells from whoever has the most, so one slow device doesn't hold up the rest.
+ * A cell can only be taken before its scan has started, and starting one has to be confirmed by
+ * the ledger, so a stolen cell is never scanned by both.
+ * <p>
+ * Devices talk to the ledger in lines, one request and one response at a time, which
+ * ScanLeaseClient speaks:
+ * <pre>
+ * LEASE &lt;device&gt; &lt;latitude&gt; &lt;longitude&gt; &lt;max&gt;  -&gt;  CELLS &lt;cell&gt;...
+ * BEGIN &lt;device&gt; &lt;cell&gt;                          -&gt;  OK | LOST
+ * DONE &lt;device&gt; &lt;cell&gt; &lt;sighting&gt;...              -&gt;  OK | LOST
+ * BEAT &lt;device&gt;                                 -&gt;  CELLS &lt;cell&gt;...
+ * </pre>
+ * BEAT answers with the cells the device still holds. Anything the ledger doesn't understand
+ * gets ERROR and a reason. Device names may not contain spaces. Like the spawn feed, the ledger
+ * is only served to the local network.
+ */
+public class ScanLedger {
+
+    private static final String TAG = "ScanLedger";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    public static final int DEFAULT_PORT = 7734;
+
+    /**
+     * The size of a cell, in degrees of latitude and longitude. Three coverage cells, about 80
+     * meters north to south, so a scan from the middle reaches every corner.
+     */
+    public static final double CELL_DEGREES = CoverageGrid.CELL_DEGREES * 3;
+
+    /**
+     * How long a scanned cell is left alone, in milliseconds. Spawns last 15 minutes, so this
+     * sees every one at least once.
+     */
+    public static final long FRESHNESS_WINDOW = 10 * 60 * 1000;
+
+    /**
+     * How long a device can be quiet before its leases are taken back, in milliseconds.
+     */
+    public static final long LEASE_TIMEOUT = 30 * 1000;
+
+    /**
+     * The most devices connected at once.
+     */
+    private static final int MAX_DEVICES = 8;
+
+    private final Clock clock;
+
+    /**
+     * Every cell in the area, by cell id. Guarded by this.
+     */
+    private final Map<Long, Cell> cells = new LinkedHashMap<>();
+
+    /**
+     * Every device holding leases, by name. Guarded by this.
+     */
+    private final Map<String, Device> devices = new HashMap<>();
+
+    private final Listener listener;
+
+    /* Guarded by this. */
+    private long scans;
+    private long rescans;
+    private long steals;
+    private long expiries;
+
+    private final LanServer server = new LanServer(TAG, MAX_DEVICES, new LanServer.Handler() {
+        @Override
+        public void serve(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                out.write(handle(line));
+                out.write('\n');
+                out.flush();
+            }
+        }
+    });
+
+    /**
+     * Creates a ledger for a rectangular area.
+     *
+     * @param minLatitude  The area's southern edge.
+     * @param minLongitude The area's western edge.
+     * @param maxLatitude  The area's northern edge.
+     * @param maxLongitude The area's eastern edge.
+     * @param clock        Where lease times and freshness come from.
+     * @param listener     Told about everything the devices find.
+     */
+    public ScanLedger(double minLatitude, double minLongitude, double maxLatitude,
+                      double maxLongitude, Clock clock, Listener listener) {
+        this.clock = clock;
+        this.listener = listener;
+        for (int row = row(minLatitude); row <= row(maxLatitude); row++) {
+            for (int col = column(minLongitude); col <= column(maxLongitude); col++) {
+                long id = cellId(row, col);
+                cells.put(id, new Cell(id));
+            }
+        }
+    }
+
+    /* Cell geometry */
+
+    public static int row(double latitude) {
+        return (int) Math.floor(latitude / CELL_DEGREES);
+    }
+
+    public static int column(double longitude) {
+        return (int) Math.floor(longitude / CELL_DEGREES);
+    }
+
+    public static long cellId(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * @return The cell a position falls in.
+     */
+    public static long cellAt(double latitude, double longitude) {
+        return cellId(row(latitude), column(longitude));
+    }
+
+    /**
+     * @return The latitude of a cell's centre, where it should be scanned from.
+     */
+    public static double centerLatitude(long cell) {
+        return ((int) (cell >> 32) + 0.5) * CELL_DEGREES;
+    }
+
+    /**
+     * @return The longitude of a cell's centre, where it should be scanned from.
+     */
+    public static double centerLongitude(long cell) {
+        return ((int) cell + 0.5) * CELL_DEGREES;
+    }
+
+    /* Leases */
+
+    /**
+     * Leases the nearest cells that need scanning to a device, or if there are none, takes some
+     * from the device with the most cells it hasn't started yet.
+     *
+     * @param device    The device's name.
+     * @param latitude  Where the device is.
+     * @param longitude Where the device is.
+     * @param max       The most cells to lease.
+     * @return The cells leased, nearest first. Empty if there's nothing to do right now.
+     */
+    public synchronized List<Long> lease(String device, final double latitude,
+                                         final double longitude, int max) {
+        long now = clock.currentTimeMillis();
+        Device holder = touch(device, now);
+
+        List<Cell> free = new ArrayList<>();
+        for (Cell cell : cells.values()) {
+            if (cell.holder == null && cell.isStale(now)) {
+                free.add(cell);
+            }
+        }
+        List<Long> leased = new ArrayList<>();
+        if (!free.isEmpty()) {
+            Collections.sort(free, new Comparator<Cell>() {
+                @Override
+                public int compare(Cell a, Cell b) {
+                    return Double.compare(a.distanceSquared(latitude, longitude),
+                            b.distanceSquared(latitude, longitude));
+                }
+            });
+            for (int i = 0; i < free.size() && leased.size() < max; i++) {
+                Cell cell = free.get(i);
+                cell.holder = holder;
+                cell.started = false;
+                holder.cells.add(cell.id);
+                leased.add(cell.id);
+            }
+        } else if (holder.cells.isEmpty()) {
+            steal(holder, max, leased);
+        }
+        return leased;
+    }
+
+    /**
+     * Moves half of the unstarted cells of whoever has the most to an idle device. The cells
+     * leased last go, since their holder would have got to them last.
+     */
+    private void steal(Device thief, int max, List<Long> stolen) {
+        Device victim = null;
+        int most = 1;
+        for (Device device : devices.values()) {
+            int unstarted = device.countUnstarted();
+            if (device != thief && unstarted > most) {
+                victim = device;
+                most = unstarted;
+            }
+        }
+        if (victim == null) {
+            return;
+        }
+        int count = Math.min(max, most / 2);
+        for (Iterator<Long> it = victim.cells.descendingIterator();
+             it.hasNext() && stolen.size() < count; ) {
+            Cell cell = cells.get(it.next());
+            if (!cell.started) {
+                it.remove();
+                cell.holder = thief;
+                stolen.add(cell.id);
+            }
+        }
+        // Back in the order the victim would have scanned them.
+        Collections.reverse(stolen);
+        thief.cells.addAll(stolen);
+        steals += stolen.size();
+        LOG.d("{} took {} cells from {}", thief.name, stolen.size(), victim.name);
+    }
+
+    /**
+     * Confirms a device is starting to scan a cell. From here on the cell can't be taken from
+     * it, short of it going quiet.
+     *
+     * @return Whether the device still holds the cell. If not, it must not scan it.
+     */
+    public synchronized boolean begin(String device, long cell) {
+        Device holder = touch(device, clock.currentTimeMillis());
+        Cell leased = cells.get(cell);
+        if (leased == null || leased.holder != holder) {
+            return false;
+        }
+        leased.started = true;
+        return true;
+    }
+
+    /**
+     * Records a scanned cell and merges what was found there.
+     *
+     * @param device    The device's name.
+     * @param cell      The cell it scanned.
+     * @param sightings The pokemon it found.
+     * @return Whether the scan counted: the device still held the cell, or nobody did. The
+     * sightings go to the listener either way.
+     */
+    public boolean complete(String device, long cell, List<Sighting> sightings) {
+        boolean counted = record(device, cell);
+        // Outside the lock, so a slow listener doesn't hold up the other devices.
+        if (!sightings.isEmpty()) {
+            listener.onSightings(sightings);
+        }
+        return counted;
+    }
+
+    private synchronized boolean record(String device, long cell) {
+        long now = clock.currentTimeMillis();
+        Device holder = touch(device, now);
+        Cell scanned = cells.get(cell);
+        if (scanned == null || (scanned.holder != null && scanned.holder != holder)) {
+            return false;
+        }
+        // A lease that lapsed mid-scan still gets its scan counted, as long as no one else has
+        // the cell yet.
+        if (!scanned.isStale(now)) {
+            rescans++;
+        }
+        scans++;
+        scanned.scannedAt = now;
+        scanned.holder = null;
+        scanned.started = false;
+        holder.cells.remove(cell);
+        return true;
+    }
+
+    /**
+     * Keeps a device's leases alive.
+     *
+     * @return The cells it still holds, in the order it should scan them.
+     */
+    public synchronized List<Long> heartbeat(String device) {
+        return new ArrayList<>(touch(device, clock.currentTimeMillis()).cells);
+    }
+
+    /**
+     * Notes that a device is alive, and takes back the leases of those that have gone quiet.
+     *
+     * @return The device.
+     */
+    private Device touch(String name, long now) {
+        for (Iterator<Device> it = devices.values().iterator(); it.hasNext(); ) {
+            Device device = it.next();
+            if (now - device.lastSeen > LEASE_TIMEOUT && !device.name.equals(name)) {
+                for (long id : device.cells) {
+                    Cell cell = cells.get(id);
+                    cell.holder = null;
+                    cell.started = false;
+                }
+                expiries += device.cells.size();
+                LOG.i("{} went quiet, releasing its {} cells", device.name, device.cells.size());
+                it.remove();
+            }
+        }
+        Device device = devices.get(name);
+        if (device == null) {
+            device = new Device(name);
+            devices.put(name, device);
+        }
+        device.lastSeen = now;
+        return device;
+    }
+
+    /* Stats */
+
+    /**
+     * @return How many cells the area has.
+     */
+    public synchronized int getCellCount() {
+        return cells.size();
+    }
+
+    /**
+     * @return How many cells were scanned within their freshness window. Should always be none.
+     */
+    public synchronized long getRescans() {
+        return rescans;
+    }
+
+    public synchronized long getScans() {
+        return scans;
+    }
+
+    /**
+     * @return How many cells have changed hands to idle devices.
+     */
+    public synchronized long getSteals() {
+        return steals;
+    }
+
+    /**
+     * @return How many leases were taken back from devices that went quiet.
+     */
+    public synchronized long getExpiries() {
+        return expiries;
+    }
+
+    /* The line protocol */
+
+    /**
+     * Answers one request in the line protocol described above.
+     *
+     * @param request The request, without its line break.
+     * @return The response, without its line break.
+     */
+    public String handle(String request) {
+        String[] parts = request.trim().split(" ");
+        try {
+            switch (parts[0]) {
+                case "LEASE":
+                    return cellsLine(lease(parts[1], Double.parseDouble(parts[2]),
+                            Double.parseDouble(parts[3]), Integer.parseInt(parts[4])));
+                case "BEGIN":
+                    return begin(parts[1], Long.parseLong(parts[2])) ? "OK" : "LOST";
+                case "DONE":
+                    List<Sighting> sightings = new ArrayList<>(parts.length - 3);
+                    for (int i = 3; i < parts.length; i++) {
+                        sightings.add(Sighting.parse(parts[i]));
+                    }
+                    return complete(parts[1], Long.parseLong(parts[2]), sightings) ? "OK" : "LOST";
+                case "BEAT":
+                    return cellsLine(heartbeat(parts[1]));
+                default:
+                    return "ERROR unknown request " + parts[0];
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return "ERROR malformed request";
+        }
+    }
+
+    private static String cellsLine(List<Long> cells) {
+        StringBuilder line = new StringBuilder("CELLS");
+        for (long cell : cells) {
+            line.append(' ').append(cell);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Starts answering devices over TCP. Does nothing if we already are.
+     *
+     * @param address The address to listen on, usually LanServer.findLanAddress().
+     * @param port    The port to listen on, or 0 for any free one.
+     * @throws IOException If the port can't be bound.
+     */
+    public void start(InetAddress address, int port) throws IOException {
+        server.start(address, port);
+    }
+
+    /**
+     * Stops listening and drops every connected device.
+     */
+    public void stop() {
+        server.stop();
+    }
+
+    /**
+     * @return The port we're listening on, or -1 if we aren't.
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Hears about the pokemon devices find.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread of the device reporting them, without the ledger's lock held.
+         *
+         * @param sightings What a device found in one cell. Never empty.
+         */
+        void onSightings(List<Sighting> sightings);
+    }
+
+    /**
+     * A pokemon a device found, as reported to the ledger.
+     */
+    public static class Sighting {
+
+        private final long encounterId;
+
+        private final int species;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        /**
+         * When it despawns, in epoch milliseconds, or EntityStore.NEVER.
+         */
+        private final long expiresAt;
+
+        public Sighting(long encounterId, int species, double latitude, double longitude,
+                        long expiresAt) {
+            this.encounterId = encounterId;
+            this.species = species;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return The sighting as it goes in a DONE request, with no spaces.
+         */
+        @Override
+        public String toString() {
+            return encounterId + "," + species + ',' + latitude + ',' + longitude + ','
+                    + expiresAt;
+        }
+
+        static Sighting parse(String text) {
+            String[] fields = text.split(",");
+            return new Sighting(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                    Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                    Long.parseLong(fields[4]));
+        }
+
+        public long getEncounterId() {
+            return encounterId;
+        }
+
+        public int getSpecies() {
+            return species;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * A cell of the area, and who's scanning it.
+     */
+    private static class Cell {
+
+        private final long id;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        /**
+         * The device holding the lease, or null if it's free.
+         */
+        private Device holder;
+
+        /**
+         * Whether the holder has started scanning it, after which it can't be stolen.
+         */
+        private boolean started;
+
+        /**
+         * When it was last scanned, in epoch milliseconds, or 0 if never.
+         */
+        private long scannedAt;
+
+        Cell(long id) {
+            this.id = id;
+            latitude = centerLatitude(id);
+            longitude = centerLongitude(id);
+        }
+
+        boolean isStale(long now) {
+            return scannedAt == 0 || now - scannedAt >= FRESHNESS_WINDOW;
+        }
+
+        /**
+         * A flat approximation, which is all sorting nearby cells needs.
+         */
+        double distanceSquared(double latitude, double longitude) {
+            double dLat = this.latitude - latitude;
+            double dLng = (this.longitude - longitude) * Math.cos(Math.toRadians(latitude));
+            return dLat * dLat + dLng * dLng;
+        }
+    }
+
+    /**
+     * A device taking part, and the cells it holds in the order it should scan them.
+     */
+    private class Device {
+
+        private final String name;
+
+        private final ArrayDeque<Long> cells = new ArrayDeque<>();
+
+        private long lastSeen;
+
+        Device(String name) {
+            this.name = name;
+        }
+
+        int countUnstarted() {
+            int count = 0;
+            for (long id : cells) {
+                if (!ScanLedger.this.cells.get(id).started) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 11:10 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * A clock that only moves when it's told to. With auto advance on, every sleep or timed wait
+ * jumps the clock straight to its wake up time and returns, so a loop that spends most of its
+ * life waiting runs as fast as the CPU allows. Threads sleeping at the same time share the jump,
+ * but a sleep that starts while another thread is mid-work still moves the clock under it, so
+ * simulated time runs a little ahead of what the real thing would take. With auto advance off,
+ * sleepers wait for advance() to move the clock past their wake up time.
+ */
+public class SimulatedClock extends Clock {
+
+    /**
+     * How often a timed wait checks the simulated time when auto advance is off, in real
+     * milliseconds.
+     */
+    private static final long POLL_INTERVAL = 5;
+
+    private final boolean autoAdvance;
+
+    private final long startMillis;
+
+    /**
+     * Simulated nanoseconds since startMillis. Guarded by this.
+     */
+    private long elapsed;
+
+    /**
+     * Creates a new clock.
+     *
+     * @param startMillis What the time is to begin with, in epoch milliseconds.
+     * @param autoAdvance Whether sleeps move the clock themselves.
+     */
+    public SimulatedClock(long startMillis, boolean autoAdvance) {
+        this.startMillis = startMillis;
+        this.autoAdvance = autoAdvance;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return startMillis + elapsed / 1000000;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return elapsed;
+    }
+
+    /**
+     * Moves the clock forward, waking anyone whose sleep is over.
+     *
+     * @param millis How far, in milliseconds.
+     */
+    public synchronized void advance(long millis) {
+        if (millis > 0) {
+            elapsed += millis * 1000000;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return How much simulated time has gone by since the clock was created, in milliseconds.
+     */
+    public synchronized long getElapsed() {
+        return elapsed / 1000000;
+    }
+
+    @Override
+    public void sleep(long millis) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (millis <= 0) {
+            return;
+        }
+        synchronized (this) {
+            long wakeAt = elapsed + millis * 1000000;
+            if (autoAdvance) {
+                jumpTo(wakeAt);
+                return;
+            }
+            while (elapsed < wakeAt) {
+                wait();
+            }
+        }
+    }
+
+    @Override
+    public void await(Object monitor, long millis) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (autoAdvance) {
+            synchronized (this) {
+                jumpTo(elapsed + Math.max(0, millis) * 1000000);
+            }
+            return;
+        }
+        // Someone else moves the clock; look again shortly. Callers check their condition
+        // after every wait, so waking early is fine.
+        monitor.wait(POLL_INTERVAL);
+    }
+
+    private void jumpTo(long wakeAt) {
+        if (wakeAt > elapsed) {
+            elapsed = wakeAt;
+            notifyAll();
+        }
+    }
+}
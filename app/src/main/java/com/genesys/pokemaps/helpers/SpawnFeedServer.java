@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 1:10 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Streams what we discover to other devices on the LAN, so a team scanning the same area doesn't
+ * have to scan it twice. Subscribers connect over plain TCP and get one UTF-8 line per message:
+ * <pre>
+ * HELLO &lt;version&gt; &lt;server time&gt;
+ * SPAWN &lt;encounter id&gt; &lt;pokedex number&gt; &lt;latitude&gt; &lt;longitude&gt; &lt;expires at&gt;
+ * STOP &lt;id&gt; &lt;latitude&gt; &lt;longitude&gt; &lt;lootable at&gt;
+ * GONE &lt;id&gt;
+ * RESET
+ * SYNC &lt;server time&gt;
+ * </pre>
+ * Ids are the entity store's, so STOP ids are EntityStore.fortId() of the fort id, and times are
+ * epoch milliseconds. A new subscriber first gets everything in the entity store, then deltas
+ * as they happen. Deltas are gathered for a moment and sent together, and every batch ends with
+ * a SYNC; everything before it is consistent as of that time. Saying the same SPAWN or GONE
+ * twice is harmless, so clients can apply lines as they come.
+ * <p>
+ * Deltas are only ever queued here, so a slow subscriber never holds up the scan loop. One that
+ * falls too far behind has its queue thrown away and gets a RESET followed by a fresh snapshot,
+ * which is never bigger than the store, once it catches up.
+ * <p>
+ * The feed carries where we are, so it's only ever served to the local network: it listens on
+ * our Wi-Fi address alone, and turns away anyone connecting from outside private address space.
+ */
+public class SpawnFeedServer implements LootEngine.CooldownListener {
+
+    private static final String TAG = "SpawnFeedServer";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    public static final int DEFAULT_PORT = 7733;
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    /**
+     * How many lines a subscriber may have waiting before it gets a snapshot instead.
+     */
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    /**
+     * How long deltas are gathered before they're sent, in milliseconds.
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 250;
+
+    /**
+     * The most subscribers we serve at once. A team, not the whole LAN.
+     */
+    private static final int MAX_SUBSCRIBERS = 8;
+
+    private final EntityStore store;
+
+    private final Clock clock;
+
+    private final int maxPending;
+
+    private final long batchWindow;
+
+    /**
+     * The latest STOP line for every pokestop we know the cooldown of, by its store id. Guarded
+     * by this.
+     */
+    private final Map<Long, String> cooldowns = new HashMap<>();
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final LanServer server = new LanServer(TAG, MAX_SUBSCRIBERS, new LanServer.Handler() {
+        @Override
+        public void serve(Socket socket) throws IOException {
+            socket.setKeepAlive(true);
+            Subscriber subscriber = new Subscriber(socket);
+            // Listed before the snapshot is taken, so nothing that happens meanwhile is lost.
+            subscribers.add(subscriber);
+            subscriber.run();
+        }
+    });
+
+    /**
+     * How many snapshots we've sent to subscribers that fell behind.
+     */
+    private final AtomicInteger resets = new AtomicInteger();
+
+    /**
+     * Creates a server with the default limits. Nothing is listened on until start().
+     *
+     * @param store Where the snapshots for new subscribers come from.
+     * @param clock Where batches wait and their times come from.
+     */
+    public SpawnFeedServer(EntityStore store, Clock clock) {
+        this(store, clock, DEFAULT_MAX_PENDING, DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * Creates a server. Nothing is listened on until start().
+     *
+     * @param store       Where the snapshots for new subscribers come from.
+     * @param clock       Where batches wait and their times come from.
+     * @param maxPending  How many lines a subscriber may have waiting before it gets a snapshot
+     *                    instead.
+     * @param batchWindow How long deltas are gathered before they're sent, in milliseconds.
+     */
+    public SpawnFeedServer(EntityStore store, Clock clock, int maxPending, long batchWindow) {
+        this.store = store;
+        this.clock = clock;
+        this.maxPending = maxPending;
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Starts listening for subscribers. Does nothing if we already are.
+     *
+     * @param address The address to listen on, usually LanServer.findLanAddress().
+     * @param port    The port to listen on, or 0 for any free one.
+     * @throws IOException If the port can't be bound.
+     */
+    public void start(InetAddress address, int port) throws IOException {
+        server.start(address, port);
+    }
+
+    /**
+     * Stops listening and disconnects every subscriber.
+     */
+    public void stop() {
+        server.stop();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    public boolean isRunning() {
+        return server.isRunning();
+    }
+
+    /**
+     * @return The port we're listening on, or -1 if we aren't.
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return How many snapshots we've sent to subscribers that fell behind.
+     */
+    public int getResetCount() {
+        return resets.get();
+    }
+
+    /**
+     * Tells subscribers about a pokemon we've found.
+     *
+     * @param encounterId Its encounter id.
+     * @param species     Its pokedex number.
+     * @param latitude    Where it is.
+     * @param longitude   Where it is.
+     * @param expiresAt   When it despawns, in epoch milliseconds, or EntityStore.NEVER.
+     */
+    public void spawned(long encounterId, int species, double latitude, double longitude,
+                        long expiresAt) {
+        publish(spawnLine(encounterId, species, latitude, longitude, expiresAt));
+    }
+
+    /**
+     * Tells subscribers a pokemon or pokestop has gone away.
+     *
+     * @param id Its store id.
+     */
+    public void despawned(long id) {
+        synchronized (this) {
+            cooldowns.remove(id);
+        }
+        publish("GONE " + id);
+    }
+
+    @Override
+    public void onCooldownChanged(String fortId, double latitude, double longitude,
+                                  long lootableAt) {
+        long id = EntityStore.fortId(fortId);
+        String line = stopLine(id, latitude, longitude, lootableAt);
+        synchronized (this) {
+            cooldowns.put(id, line);
+        }
+        publish(line);
+    }
+
+    private void publish(String line) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(line);
+        }
+    }
+
+    /**
+     * Writes everything in the store, and every cooldown we know of, to a subscriber.
+     */
+    private void writeSnapshot(final Writer out) throws IOException {
+        final Map<Long, String> cooldowns;
+        synchronized (this) {
+            cooldowns = new HashMap<>(this.cooldowns);
+        }
+        // Visiting holds the store's lock, so gather the lines first and write them after.
+        final List<String> lines = new ArrayList<>();
+        store.visit(GameEvent.EntityType.POKEMON, new EntityStore.Visitor() {
+            @Override
+            public void visit(EntityStore store, int slot) {
+                lines.add(spawnLine(store.getId(slot), store.getSpecies(slot),
+                        store.getLatitude(slot), store.getLongitude(slot),
+                        store.getExpiry(slot)));
+            }
+        });
+        store.visit(GameEvent.EntityType.POKESTOP, new EntityStore.Visitor() {
+            @Override
+            public void visit(EntityStore store, int slot) {
+                String line = cooldowns.get(store.getId(slot));
+                lines.add(line != null ? line : stopLine(store.getId(slot),
+                        store.getLatitude(slot), store.getLongitude(slot), 0));
+            }
+        });
+        for (String line : lines) {
+            writeLine(out, line);
+        }
+    }
+
+    private static String spawnLine(long encounterId, int species, double latitude,
+                                    double longitude, long expiresAt) {
+        return "SPAWN " + encounterId + ' ' + species + ' ' + latitude + ' ' + longitude + ' '
+                + expiresAt;
+    }
+
+    private static String stopLine(long id, double latitude, double longitude, long lootableAt) {
+        return "STOP " + id + ' ' + latitude + ' ' + longitude + ' ' + lootableAt;
+    }
+
+    private static void writeLine(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    /**
+     * One connected device, with the lines waiting to be sent to it and the thread sending them.
+     */
+    private class Subscriber implements Runnable {
+
+        private final Socket socket;
+
+        private final Writer out;
+
+        /**
+         * Lines waiting to go out. Guarded by this.
+         */
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+
+        /**
+         * Whether we threw lines away and owe a snapshot. Guarded by this.
+         */
+        private boolean overflowed;
+
+        /**
+         * Guarded by this.
+         */
+        private boolean closed;
+
+        Subscriber(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        }
+
+        /**
+         * Queues a line. Never blocks.
+         */
+        synchronized void offer(String line) {
+            if (closed || overflowed) {
+                return;
+            }
+            if (pending.size() >= maxPending) {
+                // The snapshot will cover everything we're dropping.
+                pending.clear();
+                overflowed = true;
+            } else {
+                pending.add(line);
+            }
+            notifyAll();
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                pending.clear();
+                notifyAll();
+            }
+            LanServer.closeQuietly(socket);
+        }
+
+        @Override
+        public void run() {
+            try {
+                writeLine(out, "HELLO " + PROTOCOL_VERSION + ' ' + clock.currentTimeMillis());
+                writeSnapshot(out);
+                writeLine(out, "SYNC " + clock.currentTimeMillis());
+                out.flush();
+
+                while (true) {
+                    synchronized (this) {
+                        while (pending.isEmpty() && !overflowed && !closed) {
+                            wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    // Let the rest of the tick's deltas catch up, so they go out together.
+                    clock.sleep(batchWindow);
+
+                    List<String> batch;
+                    boolean reset;
+                    synchronized (this) {
+                        batch = new ArrayList<>(pending);
+                        pending.clear();
+                        reset = overflowed;
+                        overflowed = false;
+                    }
+                    if (reset) {
+                        resets.incrementAndGet();
+                        LOG.d("{} fell behind, sending a snapshot", socket.getInetAddress());
+                        writeLine(out, "RESET");
+                        writeSnapshot(out);
+                    } else {
+                        for (String line : batch) {
+                            writeLine(out, line);
+                        }
+                    }
+                    writeLine(out, "SYNC " + clock.currentTimeMillis());
+                    out.flush();
+                }
+            } catch (SocketException e) {
+                LOG.d("{} disconnected", socket.getInetAddress());
+            } catch (IOException e) {
+                LOG.w(e, "Lost subscriber {}", socket.getInetAddress());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                subscribers.remove(this);
+                close();
+            }
+        }
+    }
+}
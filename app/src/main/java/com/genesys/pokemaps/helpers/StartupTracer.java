@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 8:50 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Times app startup. Every init step runs inside a section, which shows up in systrace and in
+ * our startup report. Work that the first screen doesn't need is handed to defer() instead: it
+ * runs one task at a time whenever the main thread goes idle, so it never stands between the
+ * user and a usable screen. Once the first screen is usable and the deferred queue has drained,
+ * the report goes to the log.
+ */
+public class StartupTracer {
+
+    private static final String TAG = "StartupTracer";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    private static final StartupTracer instance = new StartupTracer();
+
+    /**
+     * When our process started, in uptime milliseconds. Older devices can't tell us, so there
+     * it's when this class was loaded, which is as early as our own code runs.
+     */
+    private final long processStart;
+
+    /**
+     * Every section that has finished, in the order they finished. Guarded by this.
+     */
+    private final List<Section> sections = new ArrayList<>();
+
+    /**
+     * Work waiting for the main thread to go idle. Only touched on the main thread.
+     */
+    private final Queue<Section> deferred = new ArrayDeque<>();
+
+    /**
+     * When the first screen became usable, or 0 if it hasn't yet. Guarded by this.
+     */
+    private long interactiveAt;
+
+    /**
+     * Whether our idle handler is waiting to run deferred work. Only touched on the main thread.
+     */
+    private boolean idleHandlerAdded;
+
+    private boolean reported;
+
+    private StartupTracer() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            processStart = Process.getStartUptimeMillis();
+        } else {
+            processStart = SystemClock.uptimeMillis();
+        }
+    }
+
+    public static StartupTracer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts timing an init step. Sections may nest on the same thread, but must be ended in the
+     * reverse order they were begun.
+     *
+     * @param name What's being done. Keep it short; systrace cuts long names.
+     * @return The section, to end() once the step is done.
+     */
+    public Section begin(String name) {
+        Section section = new Section(this, name, false);
+        section.start();
+        return section;
+    }
+
+    /**
+     * Runs some work once the main thread has nothing better to do. Must be called on the main
+     * thread.
+     *
+     * @param name     What the work is, for the report.
+     * @param runnable The work.
+     */
+    public void defer(String name, Runnable runnable) {
+        Section section = new Section(this, name, true);
+        section.runnable = runnable;
+        deferred.add(section);
+        if (!idleHandlerAdded) {
+            idleHandlerAdded = true;
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    // One task per idle moment, so input that arrives in between goes first.
+                    Section next = deferred.poll();
+                    if (next != null) {
+                        next.start();
+                        try {
+                            next.runnable.run();
+                        } catch (RuntimeException e) {
+                            LOG.e(e, "Deferred startup task {} failed", next.name);
+                        } finally {
+                            next.end();
+                        }
+                    }
+                    if (deferred.isEmpty()) {
+                        idleHandlerAdded = false;
+                        reportIfDone();
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the moment the user could first do something. Only the first call counts. Must be
+     * called on the main thread.
+     */
+    public void markInteractive() {
+        synchronized (this) {
+            if (interactiveAt != 0) {
+                return;
+            }
+            interactiveAt = SystemClock.uptimeMillis();
+        }
+        LOG.i("Interactive {} ms after process start.", interactiveAt - processStart);
+        reportIfDone();
+    }
+
+    /**
+     * @return How long it took from process start until the first screen was usable, in
+     * milliseconds, or -1 if it isn't yet.
+     */
+    public synchronized long getTimeToInteractive() {
+        return interactiveAt == 0 ? -1 : interactiveAt - processStart;
+    }
+
+    /**
+     * @return Every section that has finished so far.
+     */
+    public synchronized List<Section> getSections() {
+        return Collections.unmodifiableList(new ArrayList<>(sections));
+    }
+
+    /**
+     * @return A readable startup report: time to interactive, then every section with when it
+     * started (relative to process start) and how long it took.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder("Startup report\n");
+        report.append("  time to interactive: ")
+                .append(interactiveAt == 0 ? "not yet" : (interactiveAt - processStart) + " ms")
+                .append('\n');
+        for (Section section : sections) {
+            report.append("  ")
+                    .append(section.deferred ? "[idle] " : "")
+                    .append(section.name).append(": +")
+                    .append(section.startedAt - processStart).append(" ms, took ")
+                    .append(section.getDuration()).append(" ms")
+                    .append(section.mainThread ? "" : " (background)")
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    private void reportIfDone() {
+        synchronized (this) {
+            if (reported || interactiveAt == 0 || idleHandlerAdded) {
+                return;
+            }
+            reported = true;
+        }
+        LOG.i(getReport());
+    }
+
+    private synchronized void onSectionEnded(Section section) {
+        sections.add(section);
+    }
+
+    /**
+     * A timed step of startup.
+     */
+    public static class Section {
+
+        private final StartupTracer tracer;
+
+        private final String name;
+
+        private final boolean deferred;
+
+        private Runnable runnable;
+
+        private boolean mainThread;
+
+        private long startedAt;
+
+        private long endedAt;
+
+        Section(StartupTracer tracer, String name, boolean deferred) {
+            this.tracer = tracer;
+            this.name = name;
+            this.deferred = deferred;
+        }
+
+        void start() {
+            mainThread = Looper.myLooper() == Looper.getMainLooper();
+            startedAt = SystemClock.uptimeMillis();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.beginSection(name);
+            }
+        }
+
+        /**
+         * Stops timing the step. Call it on the thread that began it.
+         */
+        public void end() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.endSection();
+            }
+            endedAt = SystemClock.uptimeMillis();
+            tracer.onSectionEnded(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Whether this ran from the idle queue rather than inline.
+         */
+        public boolean isDeferred() {
+            return deferred;
+        }
+
+        /**
+         * @return How long the step took, in milliseconds.
+         */
+        public long getDuration() {
+            return endedAt - startedAt;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 10:45 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Records every request the game library makes, with its body, the response and how long it
+ * took, to a gzipped archive; and plays an archive back later with no network at all. Replaying
+ * a real session runs the whole app the same way every time, from protobuf decoding to the map,
+ * so it's what we profile against.
+ * <p>
+ * Every game RPC is a POST to the same endpoint, and loots, encounters and transfers run several
+ * at a time, so the order calls arrive in changes from run to run. A request is therefore
+ * matched by the RPCs in its RequestEnvelope: their types, then their messages. The rest of the
+ * envelope, the signature, auth ticket, request id and position, is different every time and
+ * left out. A request gets the first unplayed response recorded for the same messages, or
+ * failing that, for the same types, as when the player stood somewhere else; it never gets a
+ * response to a different kind of call. Anything that isn't an envelope, like the login pages,
+ * is matched by method and URL in the order it was recorded. A call the archive has no response
+ * left for fails with an IOException, like a dropped connection would.
+ * <p>
+ * In debug builds GameManager sets this up from files in the app's private files directory:
+ * with a {@value #REPLAY_FILE} there the session is replayed from it, otherwise with a
+ * {@value #RECORD_MARKER} there the session is recorded to a new traffic-*.bin next to it. The
+ * login exchanges carry our auth tokens, so archives never go anywhere other apps can read;
+ * use adb's run-as to put files there and get recordings back.
+ */
+public class TrafficInterceptor implements Interceptor {
+
+    private static final String TAG = "TrafficInterceptor";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * The archive to replay, if present.
+     */
+    public static final String REPLAY_FILE = "traffic.replay";
+
+    /**
+     * Asks for the session to be recorded, if present. Its contents don't matter.
+     */
+    public static final String RECORD_MARKER = "traffic.record";
+
+    /**
+     * "PGT2", at the start of every archive. PGT1 archives didn't have request bodies.
+     */
+    private static final int MAGIC = 0x50475432;
+
+    /* The tags RequestEnvelope keeps its RPCs under (field 4), and each its type and message. */
+    private static final int ENVELOPE_REQUESTS = 4 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int REQUEST_TYPE = 1 << 3 | WireFormat.WIRETYPE_VARINT;
+    private static final int REQUEST_MESSAGE = 2 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    /**
+     * What we do with each request.
+     */
+    public enum Mode {
+        /* Send it, and leave it at that. */
+        PASS_THROUGH,
+        /* Send it and write the exchange to the archive. */
+        RECORD,
+        /* Answer it from the archive. */
+        REPLAY
+    }
+
+    private volatile Mode mode = Mode.PASS_THROUGH;
+
+    /**
+     * The archive we're recording to. Guarded by this.
+     */
+    private DataOutputStream archive;
+
+    /**
+     * When recording started, in epoch milliseconds.
+     */
+    private long recordingStarted;
+
+    /**
+     * The responses left to replay, by method, URL and RPC types, oldest first. Guarded by this.
+     */
+    private final Map<String, Queue<Exchange>> replay = new HashMap<>();
+
+    /**
+     * Replayed latencies are multiplied by this. 1 plays back at the recorded speed, 0 as fast
+     * as we can.
+     */
+    private volatile double timeScale = 1;
+
+    /**
+     * Records or replays according to the files in a directory, as described above. Does
+     * nothing if neither file is there.
+     *
+     * @param directory Where to look. Must be private to the app.
+     */
+    public void configure(File directory) {
+        try {
+            File replayFile = new File(directory, REPLAY_FILE);
+            if (replayFile.exists()) {
+                replay(replayFile, 1);
+            } else if (new File(directory, RECORD_MARKER).exists()) {
+                String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                        .format(new Date());
+                record(new File(directory, "traffic-" + stamp + ".bin"));
+            }
+        } catch (IOException e) {
+            LOG.w(e, "Couldn't set up traffic recording or replay");
+        }
+    }
+
+    /**
+     * Starts recording to a new archive. Anything already recording or replaying is stopped.
+     *
+     * @param file Where to write the archive. Overwritten if it exists.
+     * @throws IOException If the file can't be written.
+     */
+    public synchronized void record(File file) throws IOException {
+        stop();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), true)));
+        out.writeInt(MAGIC);
+        out.flush();
+        archive = out;
+        recordingStarted = System.currentTimeMillis();
+        mode = Mode.RECORD;
+        LOG.i("Recording traffic to {}", file);
+    }
+
+    /**
+     * Starts replaying an archive. Anything already recording or replaying is stopped.
+     *
+     * @param file      The archive.
+     * @param timeScale What to multiply the recorded latencies by. 0 for no delay at all.
+     * @throws IOException If the archive can't be read.
+     */
+    public synchronized void replay(File file, double timeScale) throws IOException {
+        stop();
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " isn't a traffic archive");
+            }
+            while (true) {
+                Exchange exchange;
+                try {
+                    exchange = Exchange.read(in);
+                } catch (EOFException e) {
+                    // The end, or a recording cut short when the app was killed. Either way
+                    // we have everything up to here.
+                    break;
+                }
+                exchange.rpcs = Rpcs.parse(exchange.requestBody);
+                String key = key(exchange.method, exchange.url, exchange.rpcs);
+                Queue<Exchange> queue = replay.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    replay.put(key, queue);
+                }
+                queue.add(exchange);
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        this.timeScale = timeScale;
+        mode = Mode.REPLAY;
+        LOG.i("Replaying {} exchanges from {}", count, file);
+    }
+
+    /**
+     * Stops recording or replaying, and closes the archive we were recording to.
+     */
+    public synchronized void stop() {
+        mode = Mode.PASS_THROUGH;
+        replay.clear();
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                LOG.w(e, "Couldn't close the traffic archive");
+            }
+            archive = null;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return How many recorded responses haven't been replayed yet.
+     */
+    public synchronized int getRemaining() {
+        int remaining = 0;
+        for (Queue<Exchange> queue : replay.values()) {
+            remaining += queue.size();
+        }
+        return remaining;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Mode mode = this.mode;
+        if (mode == Mode.REPLAY) {
+            return replay(chain.request());
+        }
+        if (mode == Mode.PASS_THROUGH) {
+            return chain.proceed(chain.request());
+        }
+
+        Request request = chain.request();
+        byte[] requestBody = bodyOf(request);
+
+        long started = System.currentTimeMillis();
+        Response response = chain.proceed(request);
+        // Read the whole body so we can keep a copy. Game responses are small protobufs.
+        ResponseBody body = response.body();
+        MediaType contentType = body.contentType();
+        byte[] bytes = body.bytes();
+        long finished = System.currentTimeMillis();
+
+        Exchange exchange = new Exchange();
+        exchange.method = response.request().method();
+        exchange.url = response.request().url().toString();
+        exchange.requestBody = requestBody;
+        exchange.offset = started - recordingStarted;
+        exchange.latency = (int) (finished - started);
+        exchange.code = response.code();
+        exchange.message = response.message();
+        exchange.protocol = response.protocol().toString();
+        exchange.headers = response.headers();
+        exchange.contentType = contentType == null ? "" : contentType.toString();
+        exchange.body = bytes;
+        synchronized (this) {
+            if (archive != null) {
+                try {
+                    exchange.write(archive);
+                    // Flushed through to the file, so a recording survives the app being killed.
+                    archive.flush();
+                } catch (IOException e) {
+                    LOG.w(e, "Couldn't record traffic, stopping");
+                    stop();
+                }
+            }
+        }
+        return response.newBuilder()
+                .body(ResponseBody.create(contentType, bytes))
+                .build();
+    }
+
+    private Response replay(Request request) throws IOException {
+        Rpcs rpcs = Rpcs.parse(bodyOf(request));
+        String key = key(request.method(), request.url().toString(), rpcs);
+        Exchange exchange = null;
+        synchronized (this) {
+            Queue<Exchange> queue = replay.get(key);
+            if (queue != null && rpcs != null) {
+                for (Iterator<Exchange> it = queue.iterator(); it.hasNext(); ) {
+                    Exchange recorded = it.next();
+                    if (Arrays.equals(recorded.rpcs.messages, rpcs.messages)) {
+                        it.remove();
+                        exchange = recorded;
+                        break;
+                    }
+                }
+            }
+            if (exchange == null && queue != null) {
+                exchange = queue.poll();
+            }
+        }
+        if (exchange == null) {
+            throw new IOException("No recorded response left for " + key);
+        }
+
+        long sent = System.currentTimeMillis();
+        long delay = (long) (exchange.latency * timeScale);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying " + key);
+            }
+        }
+        MediaType contentType = exchange.contentType.isEmpty()
+                ? null : MediaType.parse(exchange.contentType);
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.get(exchange.protocol))
+                .code(exchange.code)
+                .message(exchange.message)
+                .headers(exchange.headers)
+                .body(ResponseBody.create(contentType, exchange.body))
+                .sentRequestAtMillis(sent)
+                .receivedResponseAtMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    private static byte[] bodyOf(Request request) throws IOException {
+        if (request.body() == null) {
+            return new byte[0];
+        }
+        Buffer buffer = new Buffer();
+        request.body().writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    /**
+     * @return What a request is replayed by: its method and URL, and the types of its RPCs if
+     * it has any.
+     */
+    private static String key(String method, String url, Rpcs rpcs) {
+        return rpcs == null ? method + ' ' + url : method + ' ' + url + ' ' + rpcs.types;
+    }
+
+    /**
+     * The RPCs in a RequestEnvelope, without the rest of the envelope.
+     */
+    private static class Rpcs {
+
+        /**
+         * Their types in order, comma separated.
+         */
+        private String types;
+
+        /**
+         * Their messages in order, each after its length.
+         */
+        private byte[] messages;
+
+        /**
+         * Reads the RPCs out of a request body.
+         *
+         * @return Them, or null if the body isn't a RequestEnvelope with any in it.
+         */
+        static Rpcs parse(byte[] body) {
+            StringBuilder types = new StringBuilder();
+            ByteArrayOutputStream messages = new ByteArrayOutputStream();
+            try {
+                CodedInputStream envelope = CodedInputStream.newInstance(body);
+                for (int tag = envelope.readTag(); tag != 0; tag = envelope.readTag()) {
+                    if (tag != ENVELOPE_REQUESTS) {
+                        if (!envelope.skipField(tag)) {
+                            return null;
+                        }
+                        continue;
+                    }
+                    CodedInputStream request = CodedInputStream.newInstance(
+                            envelope.readByteArray());
+                    int type = 0;
+                    byte[] message = new byte[0];
+                    for (int field = request.readTag(); field != 0; field = request.readTag()) {
+                        if (field == REQUEST_TYPE) {
+                            type = request.readEnum();
+                        } else if (field == REQUEST_MESSAGE) {
+                            message = request.readByteArray();
+                        } else if (!request.skipField(field)) {
+                            return null;
+                        }
+                    }
+                    if (types.length() > 0) {
+                        types.append(',');
+                    }
+                    types.append(type);
+                    messages.write(message.length >>> 24);
+                    messages.write(message.length >>> 16);
+                    messages.write(message.length >>> 8);
+                    messages.write(message.length);
+                    messages.write(message);
+                }
+            } catch (IOException e) {
+                // Not protobuf at all, like a login form.
+                return null;
+            }
+            if (types.length() == 0) {
+                return null;
+            }
+            Rpcs rpcs = new Rpcs();
+            rpcs.types = types.toString();
+            rpcs.messages = messages.toByteArray();
+            return rpcs;
+        }
+    }
+
+    /**
+     * One request and its response, as stored in the archive.
+     */
+    private static class Exchange {
+
+        private String method;
+
+        private String url;
+
+        /**
+         * What we sent, empty if the request had no body.
+         */
+        private byte[] requestBody;
+
+        /**
+         * When the request was sent, in milliseconds since recording started.
+         */
+        private long offset;
+
+        /**
+         * How long the response took, in milliseconds.
+         */
+        private int latency;
+
+        private int code;
+
+        private String message;
+
+        private String protocol;
+
+        private Headers headers;
+
+        /**
+         * The body's content type, or "" if it didn't have one.
+         */
+        private String contentType;
+
+        private byte[] body;
+
+        /**
+         * The RPCs in requestBody, or null if it isn't a RequestEnvelope. Worked out when an
+         * archive is loaded for replay; not stored.
+         */
+        private Rpcs rpcs;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(method);
+            out.writeUTF(url);
+            out.writeInt(requestBody.length);
+            out.write(requestBody);
+            out.writeLong(offset);
+            out.writeInt(latency);
+            out.writeShort(code);
+            out.writeUTF(message);
+            out.writeUTF(protocol);
+            out.writeShort(headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                out.writeUTF(headers.name(i));
+                out.writeUTF(headers.value(i));
+            }
+            out.writeUTF(contentType);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        static Exchange read(DataInputStream in) throws IOException {
+            Exchange exchange = new Exchange();
+            exchange.method = in.readUTF();
+            exchange.url = in.readUTF();
+            exchange.requestBody = new byte[in.readInt()];
+            in.readFully(exchange.requestBody);
+            exchange.offset = in.readLong();
+            exchange.latency = in.readInt();
+            exchange.code = in.readShort();
+            exchange.message = in.readUTF();
+            exchange.protocol = in.readUTF();
+            Headers.Builder headers = new Headers.Builder();
+            for (int i = in.readShort(); i > 0; i--) {
+                headers.add(in.readUTF(), in.readUTF());
+            }
+            exchange.headers = headers.build();
+            exchange.contentType = in.readUTF();
+            exchange.body = new byte[in.readInt()];
+            in.readFully(exchange.body);
+            return exchange;
+        }
+    }
+}
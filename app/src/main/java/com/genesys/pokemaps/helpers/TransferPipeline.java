@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps.helpers;
+
+import com.pokegoapi.api.pokemon.Pokemon;
+import com.pokegoapi.exceptions.RemoteServerException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+import POGOProtos.Networking.Responses.ReleasePokemonResponseOuterClass.ReleasePokemonResponse;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 4:10 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Clears duplicates out of the pokebank in bulk. Candidates come from the PokebankIndex (keep the
+ * best few of each species, never favourites), and transfers run a few at a time, paced by the
+ * request governor so we don't hammer the servers. Transient failures are retried; a dry
+ * run just reports what would go.
+ */
+public class TransferPipeline {
+
+    private static final String TAG = "TransferPipeline";
+
+    private static final Logger LOG = Logger.get(TAG);
+
+    /**
+     * The most transfers we'll have running at once.
+     */
+    private static final int MAX_CONCURRENT_TRANSFERS = 2;
+
+    /**
+     * How many times we try a transfer before giving up on it.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * How long to wait before the first retry, in milliseconds. Doubles after each attempt.
+     */
+    private static final long RETRY_BACKOFF = 1000;
+
+    private final PokebankIndex index;
+
+    private final GameExecutor executor = new GameExecutor(TAG, MAX_CONCURRENT_TRANSFERS);
+
+    /**
+     * Paces the transfer requests. Transfers are bookkeeping, so they wait for catches and loots.
+     */
+    private final RequestGovernor governor;
+
+    /**
+     * Times the retry backoff.
+     */
+    private final Clock clock;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param index    The index to pick candidates from. Kept up to date as we transfer.
+     * @param governor Paces the transfer requests.
+     * @param clock    Times the retry backoff.
+     */
+    public TransferPipeline(PokebankIndex index, RequestGovernor governor, Clock clock) {
+        this.index = index;
+        this.governor = governor;
+        this.clock = clock;
+    }
+
+    /**
+     * Picks out the pokemon a cleanup would transfer.
+     *
+     * @param keep How many of the best of each species to keep.
+     * @return The candidates, species by species, worst first within each.
+     */
+    public List<Pokemon> select(int keep) {
+        List<Pokemon> candidates = new ArrayList<>();
+        for (PokemonId species : index.getSpecies()) {
+            candidates.addAll(index.getDuplicates(species, keep));
+        }
+        return candidates;
+    }
+
+    /**
+     * Transfers the given pokemon, blocking until every transfer has finished or given up.
+     *
+     * @param candidates The pokemon to transfer.
+     * @param dryRun     If true, nothing is transferred; the report lists what would have been.
+     * @param listener   Told about each pokemon as it's done, on this thread. May be null.
+     * @return What happened.
+     * @throws InterruptedException If we're interrupted while waiting. Transfers in flight are
+     *                              left to finish.
+     */
+    public Report run(List<Pokemon> candidates, boolean dryRun, final Listener listener)
+            throws InterruptedException {
+        final int total = candidates.size();
+        final Report report = new Report(dryRun);
+        if (dryRun) {
+            for (int i = 0; i < total; i++) {
+                report.transferred.add(candidates.get(i));
+                if (listener != null) {
+                    listener.onProgress(candidates.get(i), true, i + 1, total);
+                }
+            }
+            return report;
+        }
+
+        // Only as many tasks in the executor's queue as it has threads, so a few hundred
+        // candidates can't overflow it.
+        ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+        int done = 0;
+        for (final Pokemon pokemon : candidates) {
+            if (inFlight.size() == MAX_CONCURRENT_TRANSFERS) {
+                finish(inFlight.poll(), report, listener, ++done, total);
+            }
+            inFlight.add(new Pending(pokemon, executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return transfer(pokemon);
+                }
+            }, null)));
+        }
+        // Wait for the stragglers.
+        while (!inFlight.isEmpty()) {
+            finish(inFlight.poll(), report, listener, ++done, total);
+        }
+        return report;
+    }
+
+    /**
+     * Waits for a transfer to finish and reports how it went. One the executor dropped before it
+     * ran counts as failed.
+     */
+    private static void finish(Pending pending, Report report, Listener listener, int done,
+                               int total) throws InterruptedException {
+        boolean transferred = false;
+        try {
+            transferred = pending.future.get();
+        } catch (ExecutionException e) {
+            LOG.w(e.getCause(), "Couldn't transfer {}", pending.pokemon.getPokemonId());
+        } catch (CancellationException e) {
+            LOG.w("Transfer of {} was cancelled", pending.pokemon.getPokemonId());
+        }
+        report.add(pending.pokemon, transferred);
+        if (listener != null) {
+            listener.onProgress(pending.pokemon, transferred, done, total);
+        }
+    }
+
+    /**
+     * Transfers one pokemon, retrying if the servers hiccup.
+     *
+     * @return Whether it was transferred.
+     */
+    private boolean transfer(Pokemon pokemon) throws Exception {
+        long backoff = RETRY_BACKOFF;
+        for (int attempt = 1; ; attempt++) {
+            governor.acquire(RequestGovernor.RequestClass.TRANSFER);
+            try {
+                ReleasePokemonResponse.Result result = pokemon.transferPokemon();
+                if (result == ReleasePokemonResponse.Result.SUCCESS) {
+                    index.onTransferred(pokemon);
+                    return true;
+                }
+                if (result != ReleasePokemonResponse.Result.FAILED || attempt == MAX_ATTEMPTS) {
+                    // Deployed to a gym, an egg or out of attempts; retrying won't help.
+                    LOG.i("Couldn't transfer {}: {}", pokemon.getPokemonId(), result);
+                    return false;
+                }
+            } catch (RemoteServerException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            clock.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * A transfer we've handed to the executor.
+     */
+    private static class Pending {
+
+        private final Pokemon pokemon;
+
+        private final Future<Boolean> future;
+
+        Pending(Pokemon pokemon, Future<Boolean> future) {
+            this.pokemon = pokemon;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Hears about a cleanup's progress.
+     */
+    public interface Listener {
+
+        /**
+         * Called once per pokemon, in the order they were handed to run().
+         *
+         * @param pokemon     The pokemon.
+         * @param transferred Whether it was (or, in a dry run, would be) transferred.
+         * @param done        How many pokemon have been handled so far, this one included.
+         * @param total       How many pokemon the run is handling.
+         */
+        void onProgress(Pokemon pokemon, boolean transferred, int done, int total);
+    }
+
+    /**
+     * The outcome of a cleanup.
+     */
+    public static class Report {
+
+        private final boolean dryRun;
+
+        private final List<Pokemon> transferred = Collections.synchronizedList(new ArrayList<Pokemon>());
+
+        private final List<Pokemon> failed = Collections.synchronizedList(new ArrayList<Pokemon>());
+
+        Report(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        void add(Pokemon pokemon, boolean transferred) {
+            (transferred ? this.transferred : failed).add(pokemon);
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        /**
+         * @return The pokemon we transferred, or in a dry run, would have.
+         */
+        public List<Pokemon> getTransferred() {
+            return transferred;
+        }
+
+        /**
+         * @return The pokemon we gave up on.
+         */
+        public List<Pokemon> getFailed() {
+            return failed;
+        }
+    }
+}
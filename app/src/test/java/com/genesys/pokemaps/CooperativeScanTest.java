@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import com.genesys.pokemaps.helpers.EntityStore;
+import com.genesys.pokemaps.helpers.GameEvent;
+import com.genesys.pokemaps.helpers.ScanLeaseClient;
+import com.genesys.pokemaps.helpers.ScanLedger;
+import com.genesys.pokemaps.helpers.SimulatedClock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 3:05 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Runs several devices against one ScanLedger on a simulated clock and checks the area gets
+ * split between them: more devices finish sooner, nothing is scanned twice, and cells move on
+ * from devices that fall behind or go quiet.
+ */
+public class CooperativeScanTest {
+
+    private static final long START = 1476900000000L;
+
+    /**
+     * How long a device takes to scan a cell.
+     */
+    private static final long SCAN_TIME = 5000;
+
+    /* The south west corner of the test area, in the middle of a cell. */
+    private static final double LATITUDE =
+            (ScanLedger.row(40.7) + 0.5) * ScanLedger.CELL_DEGREES;
+    private static final double LONGITUDE =
+            (ScanLedger.column(-74.0) + 0.5) * ScanLedger.CELL_DEGREES;
+
+    private SimulatedClock clock;
+
+    /**
+     * Where the ledger's listener puts what devices find, like GameManager's store on a device
+     * hosting a team scan.
+     */
+    private EntityStore results;
+
+    @Before
+    public void setUp() {
+        clock = new SimulatedClock(START, false);
+        results = new EntityStore();
+    }
+
+    @Test
+    public void throughputScalesWithDevices() throws Exception {
+        // Small enough that one device finishes inside the freshness window.
+        int side = 10;
+        int alone = scanArea(side, 1);
+        assertEquals(side * side, alone);
+        for (int devices = 2; devices <= 4; devices *= 2) {
+            int rounds = scanArea(side, devices);
+            // Every device is busy every round but the last.
+            assertTrue(devices + " devices took " + rounds + " rounds",
+                    rounds <= (alone + devices - 1) / devices + 1);
+        }
+    }
+
+    /**
+     * Has some devices scan a square area until it's all done, one cell each per round.
+     *
+     * @return How many rounds it took.
+     */
+    private int scanArea(int side, int deviceCount) throws Exception {
+        ScanLedger ledger = area(side);
+        List<ScanLeaseClient> devices = new ArrayList<>();
+        List<double[]> positions = new ArrayList<>();
+        for (int i = 0; i < deviceCount; i++) {
+            devices.add(new ScanLeaseClient("device-" + i,
+                    new ScanLeaseClient.LoopbackTransport(ledger), clock));
+            // Spread out along the southern edge.
+            positions.add(new double[]{LATITUDE,
+                    LONGITUDE + i * side / deviceCount * ScanLedger.CELL_DEGREES});
+        }
+
+        Set<Long> scanned = new HashSet<>();
+        int rounds = 0;
+        while (ledger.getScans() < ledger.getCellCount()) {
+            assertTrue("Stuck after " + rounds + " rounds", rounds < side * side * 2);
+            List<Long> cells = new ArrayList<>();
+            for (int i = 0; i < deviceCount; i++) {
+                double[] position = positions.get(i);
+                cells.add(devices.get(i).next(position[0], position[1]));
+            }
+            clock.advance(SCAN_TIME);
+            for (int i = 0; i < deviceCount; i++) {
+                Long cell = cells.get(i);
+                if (cell != null) {
+                    assertTrue("Scanned twice: " + cell, scanned.add(cell));
+                    assertTrue(devices.get(i).complete(cell,
+                            Collections.<ScanLedger.Sighting>emptyList()));
+                    positions.set(i, new double[]{ScanLedger.centerLatitude(cell),
+                            ScanLedger.centerLongitude(cell)});
+                }
+            }
+            rounds++;
+        }
+        assertEquals(0, ledger.getRescans());
+        return rounds;
+    }
+
+    @Test
+    public void idleDevicesTakeWorkFromBusyOnes() throws Exception {
+        ScanLedger ledger = area(2);
+        ScanLeaseClient busy = client("busy", ledger);
+        ScanLeaseClient idle = client("idle", ledger);
+
+        // Busy leases all four cells and starts on one, which leaves nothing free.
+        Long first = busy.next(LATITUDE, LONGITUDE);
+        assertNotNull(first);
+        assertEquals(3, busy.getLeasedCount());
+
+        Long stolen = idle.next(LATITUDE, LONGITUDE);
+        assertNotNull(stolen);
+        assertFalse(stolen.equals(first));
+        assertEquals(1, ledger.getSteals());
+
+        // Busy finds out when it gets there, and skips it.
+        Set<Long> scanned = new HashSet<>();
+        scanned.add(stolen);
+        assertTrue(idle.complete(stolen, Collections.<ScanLedger.Sighting>emptyList()));
+        for (Long cell = first; cell != null; cell = busy.next(LATITUDE, LONGITUDE)) {
+            assertTrue("Scanned twice: " + cell, scanned.add(cell));
+            assertTrue(busy.complete(cell, Collections.<ScanLedger.Sighting>emptyList()));
+        }
+        assertEquals(4, scanned.size());
+        assertEquals(0, ledger.getRescans());
+    }
+
+    @Test
+    public void quietDevicesLoseTheirCells() throws Exception {
+        ScanLedger ledger = area(1);
+        ScanLeaseClient quiet = client("quiet", ledger);
+        ScanLeaseClient other = client("other", ledger);
+
+        Long cell = quiet.next(LATITUDE, LONGITUDE);
+        assertNotNull(cell);
+        // Started, so it can't be stolen.
+        assertNull(other.next(LATITUDE, LONGITUDE));
+
+        clock.advance(ScanLedger.LEASE_TIMEOUT + 1);
+        assertEquals(cell, other.next(LATITUDE, LONGITUDE));
+        assertEquals(1, ledger.getExpiries());
+        assertFalse(quiet.complete(cell, Collections.<ScanLedger.Sighting>emptyList()));
+    }
+
+    @Test
+    public void scannedCellsRestUntilTheyGoStale() throws Exception {
+        ScanLedger ledger = area(1);
+        ScanLeaseClient device = client("device", ledger);
+
+        Long cell = device.next(LATITUDE, LONGITUDE);
+        assertTrue(device.complete(cell, Collections.<ScanLedger.Sighting>emptyList()));
+        clock.advance(ScanLedger.FRESHNESS_WINDOW - 1);
+        assertNull(device.next(LATITUDE, LONGITUDE));
+        clock.advance(1);
+        assertEquals(cell, device.next(LATITUDE, LONGITUDE));
+    }
+
+    @Test(timeout = 10000)
+    public void devicesTalkToTheLedgerOverTcp() throws Exception {
+        ScanLedger ledger = area(1);
+        ledger.start(InetAddress.getLoopbackAddress(), 0);
+        ScanLeaseClient.SocketTransport transport =
+                new ScanLeaseClient.SocketTransport("127.0.0.1", ledger.getPort());
+        try {
+            ScanLeaseClient device = new ScanLeaseClient("remote", transport, clock);
+            Long cell = device.next(LATITUDE, LONGITUDE);
+            assertNotNull(cell);
+
+            List<ScanLedger.Sighting> sightings = new ArrayList<>();
+            sightings.add(new ScanLedger.Sighting(42, 16, LATITUDE, LONGITUDE, EntityStore.NEVER));
+            assertTrue(device.complete(cell, sightings));
+
+            // Handed to the ledger's listener.
+            assertTrue(results.contains(42));
+            assertEquals(1, results.size());
+        } finally {
+            transport.close();
+            ledger.stop();
+        }
+    }
+
+    /**
+     * @return A ledger for a square area side cells across, with its south west corner at
+     * LATITUDE, LONGITUDE.
+     */
+    private ScanLedger area(int side) {
+        double size = (side - 1) * ScanLedger.CELL_DEGREES;
+        ScanLedger ledger = new ScanLedger(LATITUDE, LONGITUDE, LATITUDE + size, LONGITUDE + size,
+                clock, new ScanLedger.Listener() {
+                    @Override
+                    public void onSightings(List<ScanLedger.Sighting> sightings) {
+                        for (ScanLedger.Sighting sighting : sightings) {
+                            results.put(GameEvent.EntityType.POKEMON, sighting.getEncounterId(),
+                                    sighting.getLatitude(), sighting.getLongitude(),
+                                    sighting.getSpecies(), sighting.getExpiresAt(), 0);
+                        }
+                    }
+                });
+        assertEquals(side * side, ledger.getCellCount());
+        return ledger;
+    }
+
+    private ScanLeaseClient client(String name, ScanLedger ledger) {
+        return new ScanLeaseClient(name, new ScanLeaseClient.LoopbackTransport(ledger), clock);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import com.genesys.pokemaps.helpers.EncounterCache;
+import com.genesys.pokemaps.helpers.LootEngine;
+import com.genesys.pokemaps.helpers.PokebankIndex;
+import com.genesys.pokemaps.helpers.RequestGovernor;
+import com.genesys.pokemaps.helpers.RequestGovernor.RequestClass;
+import com.genesys.pokemaps.helpers.SimulatedClock;
+import com.genesys.pokemaps.helpers.TransferPipeline;
+import com.pokegoapi.api.map.fort.Pokestop;
+import com.pokegoapi.api.map.fort.PokestopLootResult;
+import com.pokegoapi.api.map.pokemon.CatchablePokemon;
+import com.pokegoapi.api.map.pokemon.encounter.EncounterResult;
+import com.pokegoapi.api.pokemon.Pokemon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import POGOProtos.Data.PokemonDataOuterClass.PokemonData;
+import POGOProtos.Enums.PokemonIdOuterClass.PokemonId;
+import POGOProtos.Map.Fort.FortDataOuterClass.FortData;
+import POGOProtos.Map.Pokemon.MapPokemonOuterClass.MapPokemon;
+import POGOProtos.Networking.Responses.EncounterResponseOuterClass.EncounterResponse;
+import POGOProtos.Networking.Responses.FortSearchResponseOuterClass.FortSearchResponse;
+import POGOProtos.Networking.Responses.ReleasePokemonResponseOuterClass.ReleasePokemonResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/19/26 at 11:30 PM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Runs long farming sessions on a simulated clock through the real LootEngine, EncounterCache
+ * and TransferPipeline, with fake pokestops, pokemon and bank entries standing in for the
+ * library's, and checks that throughput holds up, cooldowns and despawns are respected and
+ * nothing piles up.
+ */
+public class FarmingSoakTest {
+
+    private static final long START = 1476900000000L;
+
+    private static final long SESSION = 8 * 60 * 60 * 1000;
+
+    /* What ScanService and GameManager wait for. */
+    private static final long TICK = 3000;
+    private static final long ENCOUNTER_TIMEOUT = 5000;
+
+    /**
+     * What EncounterCache makes us wait between an encounter and the first throw.
+     */
+    private static final long THROW_DELAY = 2000;
+
+    private static final int MAX_CONCURRENT_LOOTS = 3;
+
+    private static final long SPAWN_LIFETIME = 15 * 60 * 1000;
+
+    private static final long FARM_INTERVAL = 30 * 60 * 1000;
+
+    private static final int FARM_TRANSFERS = 40;
+
+    /* Where we stand all session. */
+    private static final double LATITUDE = 40.7;
+    private static final double LONGITUDE = -74.0;
+
+    @Test(timeout = 60000)
+    public void longSessionKeepsItsPace() throws Exception {
+        final SimulatedClock clock = new SimulatedClock(START, true);
+        RequestGovernor governor = new RequestGovernor(clock);
+        LootEngine lootEngine = new LootEngine(MAX_CONCURRENT_LOOTS, governor, clock);
+        EncounterCache encounterCache = new EncounterCache(governor, clock);
+        TransferPipeline transferPipeline =
+                new TransferPipeline(new PokebankIndex(), governor, clock);
+        Random random = new Random(42);
+
+        // Three stops in range and one just out of it.
+        List<FakeStop> stops = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            stops.add(new FakeStop("stop-" + i, LATITUDE + 0.0001 * i, LONGITUDE, clock));
+        }
+        FakeStop farStop = new FakeStop("far", LATITUDE + 0.001, LONGITUDE, clock);
+        List<Pokestop> mapStops = new ArrayList<Pokestop>(stops);
+        mapStops.add(farStop);
+
+        List<FakePokemon> spawned = new ArrayList<>();
+        List<CatchablePokemon> wild = new ArrayList<>();
+        int ticks = 0;
+        int catches = 0;
+        int peakEncounters = 0;
+        long nextId = 1;
+        long nextFarm = FARM_INTERVAL;
+        while (clock.getElapsed() < SESSION) {
+            governor.acquire(RequestClass.MAP);
+            long now = clock.currentTimeMillis();
+            for (int i = random.nextInt(4); i > 0; i--) {
+                FakePokemon pokemon = new FakePokemon(nextId++, now + SPAWN_LIFETIME);
+                spawned.add(pokemon);
+                wild.add(pokemon);
+            }
+            for (Iterator<CatchablePokemon> it = wild.iterator(); it.hasNext(); ) {
+                if (it.next().getExpirationTimestampMs() <= now) {
+                    it.remove();
+                }
+            }
+
+            lootEngine.update(mapStops);
+            lootEngine.loot(LATITUDE, LONGITUDE);
+
+            encounterCache.prefetch(wild);
+            peakEncounters = Math.max(peakEncounters, encounterCache.size());
+            EncounterCache.Entry entry;
+            while ((entry = encounterCache.next(ENCOUNTER_TIMEOUT)) != null) {
+                clock.sleep(entry.getThrowDelay(clock.currentTimeMillis()));
+                governor.acquire(RequestClass.CATCH);
+                CatchablePokemon pokemon = entry.getPokemon();
+                wild.remove(pokemon);
+                catches++;
+            }
+
+            if (clock.getElapsed() >= nextFarm) {
+                List<Pokemon> bank = new ArrayList<>();
+                for (int i = 0; i < FARM_TRANSFERS; i++) {
+                    // Every tenth one hits a server hiccup first.
+                    bank.add(new FakeBankPokemon(nextId++, i % 10 == 0 ? 1 : 0));
+                }
+                TransferPipeline.Report report = transferPipeline.run(bank, false, null);
+                assertEquals(FARM_TRANSFERS, report.getTransferred().size());
+                nextFarm += FARM_INTERVAL;
+            }
+            ticks++;
+            clock.sleep(TICK);
+        }
+
+        // A tick is the scan interval plus a throw for each of the 1.5 spawns it finds; the
+        // budget covers that, so the governor should barely slow us down.
+        long expectedTicks = SESSION / (TICK + THROW_DELAY * 3 / 2);
+        assertTrue("Only " + ticks + " of " + expectedTicks + " ticks",
+                ticks > expectedTicks * 9 / 10);
+
+        // Every stop in range comes out of cooldown and gets spun soon after, and never before.
+        long expectedLoots = SESSION / LootEngine.LOOT_COOLDOWN;
+        for (FakeStop stop : stops) {
+            assertEquals(stop.getId() + " spun in cooldown", 0, stop.early.get());
+            assertTrue(stop.getId() + " spun " + stop.loots.get() + " times",
+                    stop.loots.get() > expectedLoots * 9 / 10);
+        }
+        assertEquals(0, farStop.loots.get() + farStop.early.get());
+
+        // Nothing is encountered twice, and nearly everything that spawns gets caught.
+        for (FakePokemon pokemon : spawned) {
+            assertTrue("Encountered " + pokemon.getEncounterId() + " twice",
+                    pokemon.encounters.get() <= 1);
+        }
+        assertTrue("Caught " + catches + " of " + spawned.size(),
+                catches > spawned.size() * 9 / 10);
+
+        // Farming drains the bucket, but a catch only ever waits for its own tokens.
+        long catchWait = governor.getStats(RequestClass.CATCH).getMaxWait();
+        assertTrue("A catch waited " + catchWait + " ms", catchWait <= 1000);
+
+        // Caught pokemon stay in the cache until they despawn: about 1.5 a tick for 15 minutes,
+        // a few hundred at most.
+        assertTrue("Peaked at " + peakEncounters + " encounters", peakEncounters < 600);
+        assertEquals(0, governor.getQueueDepth());
+    }
+
+    @Test(timeout = 30000)
+    public void catchesJumpTheQueue() throws Exception {
+        final SimulatedClock clock = new SimulatedClock(START, false);
+        final RequestGovernor governor = new RequestGovernor(clock);
+        final List<RequestClass> order = Collections.synchronizedList(new ArrayList<RequestClass>());
+
+        // Empty the bucket, so everything after this has to wait.
+        drain(governor);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(start(governor, RequestClass.TRANSFER, order));
+            awaitQueueDepth(governor, i + 1);
+        }
+        threads.add(start(governor, RequestClass.CATCH, order));
+        awaitQueueDepth(governor, 5);
+
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                clock.advance(100);
+                thread.join(10);
+            }
+        }
+        assertEquals(5, order.size());
+        assertEquals(RequestClass.CATCH, order.get(0));
+    }
+
+    /**
+     * Spends tokens until no request class can afford to go without waiting.
+     */
+    private static void drain(RequestGovernor governor) {
+        boolean spent = true;
+        while (spent) {
+            spent = false;
+            for (RequestClass type : RequestClass.values()) {
+                spent |= governor.tryAcquire(type);
+            }
+        }
+    }
+
+    private static Thread start(final RequestGovernor governor, final RequestClass type,
+                                final List<RequestClass> order) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    governor.acquire(type);
+                    order.add(type);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueDepth(RequestGovernor governor, int depth)
+            throws InterruptedException {
+        while (governor.getQueueDepth() < depth) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * A pokestop that keeps its own cooldown, like the server does, and counts how it's spun.
+     */
+    private static class FakeStop extends Pokestop {
+
+        private final String id;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        private final SimulatedClock clock;
+
+        private final AtomicInteger loots = new AtomicInteger();
+
+        /**
+         * Spins while it was still in cooldown.
+         */
+        private final AtomicInteger early = new AtomicInteger();
+
+        private volatile long cooldownCompleteAt;
+
+        FakeStop(String id, double latitude, double longitude, SimulatedClock clock) {
+            super(null, FortData.getDefaultInstance());
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.clock = clock;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Override
+        public long getCooldownCompleteTimestampMs() {
+            return cooldownCompleteAt;
+        }
+
+        @Override
+        public PokestopLootResult loot() {
+            long now = clock.currentTimeMillis();
+            if (now < cooldownCompleteAt) {
+                early.incrementAndGet();
+                return result(FortSearchResponse.Result.IN_COOLDOWN_PERIOD);
+            }
+            loots.incrementAndGet();
+            cooldownCompleteAt = now + LootEngine.LOOT_COOLDOWN;
+            return result(FortSearchResponse.Result.SUCCESS);
+        }
+
+        private static PokestopLootResult result(final FortSearchResponse.Result result) {
+            return new PokestopLootResult(FortSearchResponse.getDefaultInstance()) {
+                @Override
+                public FortSearchResponse.Result getResult() {
+                    return result;
+                }
+
+                @Override
+                public boolean wasSuccessful() {
+                    return result == FortSearchResponse.Result.SUCCESS;
+                }
+            };
+        }
+    }
+
+    /**
+     * A wild pokemon whose encounters always succeed, and counts them.
+     */
+    private static class FakePokemon extends CatchablePokemon {
+
+        private final long encounterId;
+
+        private final long expiresAt;
+
+        private final AtomicInteger encounters = new AtomicInteger();
+
+        FakePokemon(long encounterId, long expiresAt) {
+            super(null, MapPokemon.getDefaultInstance());
+            this.encounterId = encounterId;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public long getEncounterId() {
+            return encounterId;
+        }
+
+        @Override
+        public PokemonId getPokemonId() {
+            return PokemonId.PIDGEY;
+        }
+
+        @Override
+        public long getExpirationTimestampMs() {
+            return expiresAt;
+        }
+
+        @Override
+        public EncounterResult encounterPokemon() {
+            encounters.incrementAndGet();
+            return new EncounterResult() {
+                @Override
+                public boolean wasSuccessful() {
+                    return true;
+                }
+
+                @Override
+                public EncounterResponse.Status getStatus() {
+                    return EncounterResponse.Status.ENCOUNTER_SUCCESS;
+                }
+
+                @Override
+                public PokemonData getPokemonData() {
+                    return PokemonData.getDefaultInstance();
+                }
+            };
+        }
+    }
+
+    /**
+     * A pokemon in the bank that transfers after failing a given number of times.
+     */
+    private static class FakeBankPokemon extends Pokemon {
+
+        private final long id;
+
+        private int failures;
+
+        FakeBankPokemon(long id, int failures) {
+            super(null, PokemonData.getDefaultInstance());
+            this.id = id;
+            this.failures = failures;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public PokemonId getPokemonId() {
+            return PokemonId.RATTATA;
+        }
+
+        @Override
+        public synchronized ReleasePokemonResponse.Result transferPokemon() {
+            if (failures > 0) {
+                failures--;
+                return ReleasePokemonResponse.Result.FAILED;
+            }
+            return ReleasePokemonResponse.Result.SUCCESS;
+        }
+    }
+}
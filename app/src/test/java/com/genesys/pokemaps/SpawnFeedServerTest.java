@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Primed
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.genesys.pokemaps;
+
+import com.genesys.pokemaps.helpers.Clock;
+import com.genesys.pokemaps.helpers.EntityStore;
+import com.genesys.pokemaps.helpers.GameEvent;
+import com.genesys.pokemaps.helpers.SpawnFeedServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hand crafted by Primed with love for the Pokemaps project.
+ * Created on 10/20/26 at 1:40 AM
+ * https://github.com/Primed/Pokemaps
+ * <p>
+ * Subscribes to a spawn feed over loopback, the way a teammate's device would, and checks what
+ * comes down the wire.
+ */
+public class SpawnFeedServerTest {
+
+    private static final String STOP_ID = "0123456789abcdef0123456789abcdef.16";
+
+    private EntityStore store;
+
+    private SpawnFeedServer server;
+
+    private final List<Socket> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        store = new EntityStore();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void newSubscribersGetASnapshotThenDeltas() throws Exception {
+        store.put(GameEvent.EntityType.POKEMON, 42, 1.5, 2.5, 16, 1000, 0);
+        store.put(GameEvent.EntityType.POKESTOP, EntityStore.fortId(STOP_ID), 3.5, 4.5,
+                EntityStore.NO_SPECIES, EntityStore.NEVER, 0);
+        server = new SpawnFeedServer(store, Clock.SYSTEM, 64, 50);
+        server.start(InetAddress.getLoopbackAddress(), 0);
+
+        BufferedReader in = connect();
+        List<String> snapshot = readBatch(in);
+        assertTrue(snapshot.get(0).startsWith("HELLO " + SpawnFeedServer.PROTOCOL_VERSION + " "));
+        assertTrue(snapshot.contains("SPAWN 42 16 1.5 2.5 1000"));
+        assertTrue(snapshot.contains("STOP " + EntityStore.fortId(STOP_ID) + " 3.5 4.5 0"));
+        awaitSubscribers(1);
+
+        // Everything from one tick goes out in one batch.
+        server.spawned(43, 19, 5.5, 6.5, 2000);
+        server.onCooldownChanged(STOP_ID, 3.5, 4.5, 3000);
+        server.despawned(42);
+        List<String> batch = readBatch(in);
+        assertEquals(3, batch.size());
+        assertEquals("SPAWN 43 19 5.5 6.5 2000", batch.get(0));
+        assertEquals("STOP " + EntityStore.fortId(STOP_ID) + " 3.5 4.5 3000", batch.get(1));
+        assertEquals("GONE 42", batch.get(2));
+
+        // Later subscribers see the cooldown in their snapshot.
+        List<String> later = readBatch(connect());
+        assertTrue(later.contains("STOP " + EntityStore.fortId(STOP_ID) + " 3.5 4.5 3000"));
+    }
+
+    @Test(timeout = 10000)
+    public void slowSubscribersGetASnapshotInsteadOfABacklog() throws Exception {
+        store.put(GameEvent.EntityType.POKEMON, 1, 1, 1, 1, EntityStore.NEVER, 0);
+        server = new SpawnFeedServer(store, Clock.SYSTEM, 4, 200);
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        BufferedReader in = connect();
+        readBatch(in);
+        awaitSubscribers(1);
+
+        // Far more than fits in the queue, all within one batch window.
+        for (long id = 100; id < 200; id++) {
+            server.spawned(id, 1, 1, 1, EntityStore.NEVER);
+        }
+        List<String> batch = readBatch(in);
+        assertEquals("RESET", batch.get(0));
+        assertTrue(batch.contains("SPAWN 1 1 1.0 1.0 " + EntityStore.NEVER));
+        // The snapshot is the store, not the hundred lines it replaced.
+        assertEquals(2, batch.size());
+        assertEquals(1, server.getResetCount());
+
+        // Once caught up, deltas flow as usual.
+        server.despawned(1);
+        assertEquals("GONE 1", readBatch(in).get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void stoppingDisconnectsSubscribers() throws Exception {
+        server = new SpawnFeedServer(store, Clock.SYSTEM);
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        BufferedReader in = connect();
+        readBatch(in);
+        awaitSubscribers(1);
+
+        server.stop();
+        assertEquals(null, in.readLine());
+        awaitSubscribers(0);
+    }
+
+    private BufferedReader connect() throws IOException {
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        client.setSoTimeout(5000);
+        clients.add(client);
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+    }
+
+    /**
+     * Reads lines up to the next SYNC, which isn't included.
+     */
+    private static List<String> readBatch(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line = in.readLine(); !line.startsWith("SYNC "); line = in.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private void awaitSubscribers(int count) throws InterruptedException {
+        while (server.getSubscriberCount() != count) {
+            Thread.sleep(1);
+        }
+    }
+}